@@ -0,0 +1,619 @@
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * BattlefieldBenchmark measures the hot paths of a battlefield tick at several population sizes:
+ * collision detection and resolution, movement, the RPSKL rule lookup, and painting a frame into an
+ * offscreen BufferedImage. Every suite is warmed up before it is measured, and each measured
+ * iteration is timed on its own so the report can show percentiles as well as the mean.
+ *
+ * <pre>
+ * java BattlefieldBenchmark [--populations 100,1000,10000,100000]
+ *                           [--suites collide,move,resolve,resolve-by-name,paint,paint-tiles,paint-heatmap]
+ *                           [--warmup N] [--iterations N] [--seed S] [--speed-scales 1,4,16,64] [--moves N]
+ *                           [--max-bytes-per-tick N]
+ * </pre>
+ *
+ * Collision and movement run at a constant density, so the battlefield grows with the population.
+ * Painting always draws into a 1920x1080 frame with every character on screen. The paint suite draws
+ * every character as a sprite, while paint-tiles and paint-heatmap draw crowded tiles as density tiles
+ * with LevelOfDetailRenderer; with populations of 1000 to 1000000 they show whether a frame stays flat.
+ * Run it from the source_code directory so the sprites are found; otherwise blank sprites are drawn.
+ * <p>
+ * The tickrate suite is not part of the default run. It plays the same battle of --moves moves at every
+ * speed scale, with discrete and with swept collisions, and compares the survivors against a reference
+ * run of one move per tick with swept collisions. The error is the share of characters that ended up
+ * with a different outcome, so it shows how few ticks each collision mode can get away with.
+ * <p>
+ * The alloc suite is not part of the default run either. It runs a battle sequentially, in parallel and
+ * with swept collisions until the population settles, then measures the bytes allocated per tick over
+ * two windows of --iterations ticks, the second one recorded with the flight recorder. The battle
+ * publishes to an event bus with one subscriber, as in the game, so publishing events is covered too.
+ * Only the second window counts: a one-off allocation, such as a buffer that grows once, lands in the
+ * first, while anything allocated on every tick shows up in both. If the second window allocates more
+ * than --max-bytes-per-tick, the mode is reported as failed with its largest allocation sites, taken
+ * from the samples of the simulation thread and the collision workers, and the program exits with
+ * status 1, so it can guard the allocation-free hot path in a build.
+ */
+public class BattlefieldBenchmark {
+
+    private static final int FRAME_WIDTH = 1920;
+    private static final int FRAME_HEIGHT = 1080;
+    private static final double AREA_PER_CHARACTER = 200.0 * 200.0;
+
+    private static volatile long sink;
+
+    private int[] populations = {100, 1_000, 10_000, 100_000};
+    private List<String> suites = Arrays.asList("collide", "move", "resolve", "resolve-by-name", "paint", "paint-tiles");
+    private int warmup = 20;
+    private int iterations = 50;
+    private long seed = 42;
+    private int[] speedScales = {1, 4, 16, 64};
+    private int moves = 256;
+    private double maxBytesPerTick = 1;
+    private boolean allocationCheckFailed;
+
+    /**
+     * The main method that runs the selected suites and prints a report.
+     *
+     * @param args Command line arguments, see the class description.
+     */
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        BattlefieldBenchmark benchmark = new BattlefieldBenchmark();
+        benchmark.parseArguments(args);
+        benchmark.run();
+        if (benchmark.allocationCheckFailed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Reads the command line options.
+     *
+     * @param args Command line arguments.
+     */
+    private void parseArguments(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--populations":
+                    populations = Arrays.stream(args[i + 1].split(",")).mapToInt(Integer::parseInt).toArray();
+                    break;
+                case "--suites":
+                    suites = Arrays.asList(args[i + 1].split(","));
+                    break;
+                case "--warmup":
+                    warmup = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--iterations":
+                    iterations = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(args[i + 1]);
+                    break;
+                case "--speed-scales":
+                    speedScales = Arrays.stream(args[i + 1].split(",")).mapToInt(Integer::parseInt).toArray();
+                    break;
+                case "--moves":
+                    moves = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--max-bytes-per-tick":
+                    maxBytesPerTick = Double.parseDouble(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+    }
+
+    /**
+     * Runs every selected suite at every population and prints one row per combination.
+     */
+    private void run() {
+        if (!suites.stream().allMatch(name -> name.equals("tickrate") || name.equals("alloc"))) {
+            System.out.printf("%-16s %10s %12s %12s %12s %10s%n", "suite", "population", "mean(us)", "p50(us)", "p99(us)", "ns/char");
+        }
+        for (String name : suites) {
+            if (name.equals("tickrate")) {
+                runTickRate();
+                continue;
+            }
+            if (name.equals("alloc")) {
+                runAllocationCheck();
+                continue;
+            }
+            for (int population : populations) {
+                Suite suite = createSuite(name);
+                suite.setUp(population, new Random(seed));
+                long[] times = measure(suite);
+                report(name, population, times);
+            }
+        }
+    }
+
+    /**
+     * Runs the tick rate versus accuracy comparison at every population and prints its own table.
+     */
+    private void runTickRate() {
+        System.out.printf("%-10s %10s %6s %8s %12s %12s %10s%n",
+                "tickrate", "population", "scale", "mode", "ticks", "elapsed(ms)", "error(%)");
+        for (int population : populations) {
+            int[] reference = simulate(population, 1, true).survivors;
+            for (int scale : speedScales) {
+                for (boolean swept : new boolean[] {false, true}) {
+                    // The first run only warms the code up
+                    simulate(population, scale, swept);
+                    Battle battle = simulate(population, scale, swept);
+                    int wrong = 0;
+                    for (int type = 0; type < reference.length; type++) {
+                        wrong += Math.abs(battle.survivors[type] - reference[type]);
+                    }
+                    System.out.printf("%-10s %10d %6d %8s %12d %12.1f %10.2f%n", "", population, scale,
+                            swept ? "swept" : "discrete", battle.ticks, battle.elapsed / 1e6,
+                            100.0 * wrong / population);
+                }
+            }
+        }
+    }
+
+    /**
+     * Measures the steady-state allocation of a tick at every population, sequentially, in parallel and
+     * with swept collisions, and prints its own table followed by the largest allocation sites.
+     */
+    private void runAllocationCheck() {
+        System.out.printf("%-10s %10s %10s %12s %14s %14s %14s%n",
+                "alloc", "population", "mode", "survivors", "B/tick(first)", "B/tick(sim)", "B/tick(jfr)");
+        for (int population : populations) {
+            for (String mode : new String[] {"sequential", "parallel", "swept"}) {
+                int side = sideFor(population);
+                BattlefieldEngine engine = new BattlefieldEngine();
+                engine.getEntities().copyFrom(populate(population, side, new Random(seed)));
+                engine.setFieldSize(side, side);
+                // Keep characters that walk off the field, so the population only shrinks through fights
+                engine.setDespawnMargin(Integer.MAX_VALUE / 4);
+                engine.setParallelCollisions(!mode.equals("sequential"));
+                engine.setSweptCollisions(mode.equals("swept"));
+                GameEventBus events = new GameEventBus();
+                engine.setEventBus(events);
+                GameEventBus.Subscription subscription = events.subscribe("alloc-events", event -> sink += event.getId());
+                for (int i = 0; i < warmup * 10; i++) {
+                    engine.step();
+                }
+
+                Map<String, Long> sites = new HashMap<>();
+                long firstBytes;
+                long jfrBytes;
+                long simBytes;
+                try (Recording recording = new Recording()) {
+                    long start = GameMetrics.threadAllocatedBytes();
+                    for (int i = 0; i < iterations; i++) {
+                        engine.step();
+                    }
+                    firstBytes = GameMetrics.threadAllocatedBytes() - start;
+                    recording.enable("jdk.ObjectAllocationSample").withStackTrace().with("throttle", "off");
+                    recording.start();
+                    // Load the recorder's event classes before the measured ticks
+                    engine.step();
+                    long before = GameMetrics.threadAllocatedBytes();
+                    for (int i = 0; i < iterations; i++) {
+                        engine.step();
+                    }
+                    simBytes = GameMetrics.threadAllocatedBytes() - before;
+                    recording.stop();
+                    jfrBytes = collectAllocationSites(recording, sites);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    allocationCheckFailed = true;
+                    continue;
+                } finally {
+                    subscription.close();
+                }
+
+                double perTick = (double) Math.max(simBytes, jfrBytes) / iterations;
+                System.out.printf("%-10s %10d %10s %12d %14.1f %14.1f %14.1f%n", "", population, mode,
+                        engine.getEntities().size(), (double) firstBytes / iterations, (double) simBytes / iterations,
+                        (double) jfrBytes / iterations);
+                if (perTick > maxBytesPerTick) {
+                    allocationCheckFailed = true;
+                    System.out.printf("FAILED: %s at population %d allocates %.1f B/tick, above the limit of %.1f%n",
+                            mode, population, perTick, maxBytesPerTick);
+                    sites.entrySet().stream()
+                            .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                            .limit(5)
+                            .forEach(site -> System.out.printf("%-10s %10s %10s %12s %14d  %s%n", "", "", "", "",
+                                    site.getValue(), site.getKey()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds up the allocation samples of a finished recording that were taken inside a tick on the
+     * simulation thread or a collision worker, by allocating method. Samples of the recorder itself
+     * are left out.
+     *
+     * @param recording The stopped recording.
+     * @param sites     The map the sampled bytes are added to, keyed by allocating method.
+     * @return The total sampled bytes.
+     * @throws IOException If the recording cannot be read back.
+     */
+    private static long collectAllocationSites(Recording recording, Map<String, Long> sites) throws IOException {
+        Path file = Files.createTempFile("battlefield-alloc", ".jfr");
+        try {
+            recording.dump(file);
+            String simulationThread = Thread.currentThread().getName();
+            long total = 0;
+            for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+                String thread = event.getThread() != null ? event.getThread().getJavaName() : "";
+                if (!thread.equals(simulationThread) && !thread.startsWith("ForkJoinPool.commonPool")) {
+                    continue;
+                }
+                if (!isInTick(event.getStackTrace())) {
+                    continue;
+                }
+                long weight = event.getLong("weight");
+                total += weight;
+                sites.merge(describeSite(event.getStackTrace()), weight, Long::sum);
+            }
+            return total;
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Checks whether an allocation sample was taken while a tick was running.
+     *
+     * @param stackTrace The stack trace of the sample, or null if none was recorded.
+     * @return True if the stack passes through the engine or the collision detector.
+     */
+    private static boolean isInTick(RecordedStackTrace stackTrace) {
+        if (stackTrace == null) {
+            return true;
+        }
+        for (RecordedFrame frame : stackTrace.getFrames()) {
+            String type = frame.getMethod().getType().getName();
+            if (type.startsWith("BattlefieldEngine") || type.startsWith("CollisionDetector")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Describes where an allocation sample was taken by its innermost frames outside the JDK.
+     *
+     * @param stackTrace The stack trace of the sample, or null if none was recorded.
+     * @return The method, or the chain of methods, that allocated.
+     */
+    private static String describeSite(RecordedStackTrace stackTrace) {
+        if (stackTrace == null) {
+            return "(no stack trace)";
+        }
+        StringBuilder site = new StringBuilder();
+        for (RecordedFrame frame : stackTrace.getFrames()) {
+            String type = frame.getMethod().getType().getName();
+            if (site.length() > 0) {
+                site.append(" <- ");
+            }
+            site.append(type).append('.').append(frame.getMethod().getName()).append(':').append(frame.getLineNumber());
+            if (!type.startsWith("java.") && !type.startsWith("jdk.") && !type.startsWith("sun.")) {
+                break;
+            }
+        }
+        return site.toString();
+    }
+
+    /**
+     * Plays one battle of the configured number of moves, grouped into ticks of the given scale.
+     * Every battle with the same population starts from the same characters.
+     *
+     * @param population The number of characters.
+     * @param scale      The number of moves per tick.
+     * @param swept      True to use swept collisions.
+     * @return The survivors and the time taken.
+     */
+    private Battle simulate(int population, int scale, boolean swept) {
+        int side = sideFor(population);
+        BattlefieldEngine engine = new BattlefieldEngine();
+        engine.getEntities().copyFrom(populate(population, side, new Random(seed)));
+        engine.setFieldSize(side, side);
+        // Resolve the starting overlaps the same way in every run
+        engine.checkForCollisions();
+        engine.setSweptCollisions(swept);
+        engine.setSpeedScale(scale);
+
+        Battle battle = new Battle();
+        battle.ticks = (moves + scale - 1) / scale;
+        long start = System.nanoTime();
+        for (int t = 0; t < battle.ticks; t++) {
+            engine.step();
+        }
+        battle.elapsed = System.nanoTime() - start;
+        battle.survivors = engine.countByType();
+        return battle;
+    }
+
+    /**
+     * Creates a suite by name.
+     *
+     * @param name The suite name.
+     * @return A new suite.
+     */
+    private static Suite createSuite(String name) {
+        switch (name) {
+            case "collide":
+                return new CollideSuite();
+            case "move":
+                return new MoveSuite();
+            case "resolve":
+                return new ResolveSuite(false);
+            case "resolve-by-name":
+                return new ResolveSuite(true);
+            case "paint":
+                return new PaintSuite(LevelOfDetailRenderer.SPRITES);
+            case "paint-tiles":
+                return new PaintSuite(LevelOfDetailRenderer.TILES);
+            case "paint-heatmap":
+                return new PaintSuite(LevelOfDetailRenderer.HEATMAP);
+            default:
+                throw new IllegalArgumentException("Unknown suite: " + name);
+        }
+    }
+
+    /**
+     * Warms a suite up and then times each measured iteration.
+     *
+     * @param suite The suite to measure.
+     * @return The duration of every measured iteration in nanoseconds.
+     */
+    private long[] measure(Suite suite) {
+        for (int i = 0; i < warmup; i++) {
+            suite.prepare();
+            suite.run();
+        }
+        long[] times = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            suite.prepare();
+            long start = System.nanoTime();
+            suite.run();
+            times[i] = System.nanoTime() - start;
+        }
+        return times;
+    }
+
+    /**
+     * Prints the statistics of one suite and population.
+     *
+     * @param name       The suite name.
+     * @param population The number of characters.
+     * @param times      The duration of every measured iteration in nanoseconds.
+     */
+    private static void report(String name, int population, long[] times) {
+        Arrays.sort(times);
+        double mean = Arrays.stream(times).average().orElse(0);
+        long p50 = times[times.length / 2];
+        long p99 = times[Math.min(times.length - 1, (int) Math.ceil(times.length * 0.99) - 1)];
+        System.out.printf("%-16s %10d %12.1f %12.1f %12.1f %10.1f%n", name, population,
+                mean / 1e3, p50 / 1e3, p99 / 1e3, mean / population);
+    }
+
+    /**
+     * Fills an entity store with random characters spread over a square battlefield.
+     *
+     * @param population The number of characters.
+     * @param side       The side length of the battlefield.
+     * @param random     The random generator to use.
+     * @return The populated store.
+     */
+    static EntityStore populate(int population, int side, Random random) {
+        return populate(population, side, side, random);
+    }
+
+    /**
+     * Fills an entity store with random characters spread over a rectangular battlefield.
+     *
+     * @param population The number of characters.
+     * @param width      The battlefield width.
+     * @param height     The battlefield height.
+     * @param random     The random generator to use.
+     * @return The populated store.
+     */
+    static EntityStore populate(int population, int width, int height, Random random) {
+        EntityStore store = new EntityStore();
+        for (int i = 0; i < population; i++) {
+            int type = random.nextInt(CharacterType.count());
+            CharacterType characterType = CharacterType.get(type);
+            store.add(random.nextInt(width), random.nextInt(height), characterType.getWidth(), characterType.getHeight(),
+                    characterType.getVelocityX(), characterType.getVelocityY(), type);
+        }
+        return store;
+    }
+
+    /**
+     * Gets the side length of a square battlefield that holds a population at the benchmark density.
+     *
+     * @param population The number of characters.
+     * @return The side length in pixels.
+     */
+    static int sideFor(int population) {
+        return (int) Math.ceil(Math.sqrt(population * AREA_PER_CHARACTER));
+    }
+
+    /**
+     * Battle is the result of one tick rate run.
+     */
+    private static final class Battle {
+
+        private int ticks;
+        private long elapsed;
+        private int[] survivors;
+    }
+
+    /**
+     * Suite is a single benchmarked operation.
+     */
+    private abstract static class Suite {
+
+        /**
+         * Builds the state the operation runs on.
+         *
+         * @param population The number of characters.
+         * @param random     The random generator to use.
+         */
+        abstract void setUp(int population, Random random);
+
+        /**
+         * Resets the state before an iteration. Not timed.
+         */
+        void prepare() {
+        }
+
+        /**
+         * Runs the operation once. Timed.
+         */
+        abstract void run();
+    }
+
+    /**
+     * CollideSuite times BattlefieldEngine.checkForCollisions, which every tick of the game runs.
+     * Collisions remove characters, so the battlefield is restored before every iteration.
+     */
+    private static final class CollideSuite extends Suite {
+
+        private final BattlefieldEngine engine = new BattlefieldEngine();
+        private EntityStore template;
+
+        @Override
+        void setUp(int population, Random random) {
+            template = populate(population, sideFor(population), random);
+            engine.setParallelCollisions(true);
+        }
+
+        @Override
+        void prepare() {
+            engine.getEntities().copyFrom(template);
+        }
+
+        @Override
+        void run() {
+            engine.checkForCollisions();
+            sink += engine.getEntities().size();
+        }
+    }
+
+    /**
+     * MoveSuite times BattlefieldEngine.moveCharacters.
+     */
+    private static final class MoveSuite extends Suite {
+
+        private final BattlefieldEngine engine = new BattlefieldEngine();
+
+        @Override
+        void setUp(int population, Random random) {
+            engine.getEntities().copyFrom(populate(population, sideFor(population), random));
+        }
+
+        @Override
+        void run() {
+            engine.moveCharacters();
+            sink += engine.getEntities().getX(0);
+        }
+    }
+
+    /**
+     * ResolveSuite times one RPSKL lookup per character, either by type ordinal as the engine does,
+     * or by first looking the types up by name, as spawning from a CharacterShape does.
+     */
+    private static final class ResolveSuite extends Suite {
+
+        private final boolean byName;
+        private int[] first;
+        private int[] second;
+        private String[] firstNames;
+        private String[] secondNames;
+
+        /**
+         * Constructor for ResolveSuite.
+         *
+         * @param byName True to look the types up by name first.
+         */
+        ResolveSuite(boolean byName) {
+            this.byName = byName;
+        }
+
+        @Override
+        void setUp(int population, Random random) {
+            first = new int[population];
+            second = new int[population];
+            firstNames = new String[population];
+            secondNames = new String[population];
+            for (int i = 0; i < population; i++) {
+                first[i] = random.nextInt(CharacterType.count());
+                second[i] = random.nextInt(CharacterType.count());
+                firstNames[i] = new String(CharacterType.get(first[i]).getName());
+                secondNames[i] = new String(CharacterType.get(second[i]).getName());
+            }
+        }
+
+        @Override
+        void run() {
+            long total = 0;
+            if (byName) {
+                for (int i = 0; i < firstNames.length; i++) {
+                    total += BattlefieldEngine.resolveCollision(CharacterType.forName(firstNames[i]).getOrdinal(),
+                            CharacterType.forName(secondNames[i]).getOrdinal());
+                }
+            } else {
+                for (int i = 0; i < first.length; i++) {
+                    total += BattlefieldEngine.resolveCollision(first[i], second[i]);
+                }
+            }
+            sink += total;
+        }
+    }
+
+    /**
+     * PaintSuite times drawing a full frame, as paintComponent does, into an offscreen image.
+     */
+    private static final class PaintSuite extends Suite {
+
+        private final BufferedImage frame = new BufferedImage(FRAME_WIDTH, FRAME_HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        private final WorldSnapshot snapshot = new WorldSnapshot();
+        private final LevelOfDetailRenderer renderer;
+        private Graphics2D g2;
+
+        /**
+         * Constructor for PaintSuite.
+         *
+         * @param mode The level of detail to draw with.
+         */
+        PaintSuite(int mode) {
+            renderer = new LevelOfDetailRenderer(mode);
+        }
+
+        @Override
+        void setUp(int population, Random random) {
+            snapshot.copyFrom(populate(population, FRAME_WIDTH, FRAME_HEIGHT, random), 0);
+            g2 = frame.createGraphics();
+        }
+
+        @Override
+        void run() {
+            sink += renderer.draw(g2, snapshot, 0, 0, FRAME_WIDTH, FRAME_HEIGHT);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import kuusisto.tinysound.Sound;
+
+/**
+ * SoundEffectsBenchmark checks that the sound effects stay bounded however many collisions a battle
+ * resolves. It runs a headless battle of --population characters with a wave every --wave-ticks ticks,
+ * publishing to an event bus with SoundEffects subscribed, as in the game. The effects play into silent
+ * sounds that only count how often they are started and stopped and how many play at once, so no audio
+ * device is needed.
+ *
+ * <pre>
+ * java SoundEffectsBenchmark [--population N] [--ticks N] [--wave-ticks N] [--cue-millis N]
+ * </pre>
+ *
+ * The report shows how many wins the battle resolved, how many cues they were coalesced into, and how
+ * many voices were stolen or cues dropped. The program exits with status 1 if more than
+ * SoundEffects.MAX_VOICES sounds ever played at once.
+ */
+public class SoundEffectsBenchmark {
+
+    private static final double AREA_PER_CHARACTER = 60.0 * 60.0;
+
+    private int population = 100_000;
+    private int ticks = 400;
+    private int waveTicks = 20;
+    private int cueMillis = 300;
+
+    private final Object lock = new Object();
+    private final List<SilentSound> silentSounds = new ArrayList<>();
+    private int peakPlaying;
+    private long plays;
+
+    /**
+     * The main method that runs the battle and prints the report.
+     *
+     * @param args Command line arguments, see the class description.
+     * @throws InterruptedException If interrupted while waiting for the subscriber.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        System.setProperty("java.awt.headless", "true");
+        SoundEffectsBenchmark benchmark = new SoundEffectsBenchmark();
+        benchmark.parseArguments(args);
+        System.exit(benchmark.run() ? 0 : 1);
+    }
+
+    /**
+     * Reads the command line options.
+     *
+     * @param args Command line arguments.
+     */
+    private void parseArguments(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--population":
+                    population = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--ticks":
+                    ticks = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--wave-ticks":
+                    waveTicks = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--cue-millis":
+                    cueMillis = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+    }
+
+    /**
+     * Runs the battle with the sound effects subscribed and prints the report.
+     *
+     * @return True if the voice limit held.
+     * @throws InterruptedException If interrupted while waiting for the subscriber.
+     */
+    private boolean run() throws InterruptedException {
+        int side = (int) Math.ceil(Math.sqrt(population * AREA_PER_CHARACTER));
+        BattlefieldEngine engine = new BattlefieldEngine();
+        engine.setFieldSize(side, side);
+        GameEventBus events = new GameEventBus();
+        engine.setEventBus(events);
+
+        SoundEffects effects = new SoundEffects();
+        Sound[][] sounds = new Sound[CharacterType.count()][SoundEffects.VOICES_PER_TYPE];
+        long[] durations = new long[CharacterType.count()];
+        for (int type = 0; type < sounds.length; type++) {
+            for (int handle = 0; handle < sounds[type].length; handle++) {
+                SilentSound sound = new SilentSound();
+                silentSounds.add(sound);
+                sounds[type][handle] = sound;
+            }
+            durations[type] = TimeUnit.MILLISECONDS.toNanos(cueMillis);
+        }
+        effects.setSounds(sounds, durations);
+        effects.subscribe(events);
+
+        Random random = new Random(7);
+        for (CharacterType type : CharacterType.values()) {
+            engine.spawnBatch(SpawnBatch.uniform(type, population / CharacterType.count(), side, side, random));
+        }
+        long wins = 0;
+        long tickNanos = 0;
+        for (int tick = 0; tick < ticks; tick++) {
+            if (tick > 0 && tick % waveTicks == 0) {
+                CharacterType type = CharacterType.get(random.nextInt(CharacterType.count()));
+                engine.spawnBatch(SpawnBatch.uniform(type, population / 10, side, side, random));
+            }
+            long start = System.nanoTime();
+            engine.step();
+            tickNanos += System.nanoTime() - start;
+            wins += engine.getCollisionsResolved();
+            // Give the subscriber time to keep up, as the game's fixed timestep would
+            Thread.sleep(1);
+        }
+        Thread.sleep(cueMillis + 100L);
+        effects.close();
+
+        System.out.printf("population=%d ticks=%d wins=%d tick.ms=%.2f%n", population, ticks, wins,
+                tickNanos / 1e6 / ticks);
+        System.out.printf("cues=%d coalesced=%d stolen=%d dropped=%d peakVoices=%d plays=%d peakPlaying=%d%n",
+                effects.getCuesPlayed(), effects.getWinsCoalesced(), effects.getVoicesStolen(),
+                effects.getCuesDropped(), effects.getPeakVoices(), plays, peakPlaying);
+        return peakPlaying <= SoundEffects.MAX_VOICES;
+    }
+
+    /**
+     * Counts the silent sounds that are playing. Must hold the lock.
+     *
+     * @param now The current System.nanoTime.
+     * @return The number of sounds whose cue has not finished.
+     */
+    private int countPlaying(long now) {
+        int count = 0;
+        for (SilentSound sound : silentSounds) {
+            if (sound.endNanos > now) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * SilentSound counts the times it is played and plays until its cue would have finished or it is stopped.
+     */
+    private final class SilentSound implements Sound {
+
+        private long endNanos;
+
+        @Override
+        public void play() {
+            play(1.0);
+        }
+
+        @Override
+        public void play(double volume) {
+            play(volume, 0.0);
+        }
+
+        @Override
+        public void play(double volume, double pan) {
+            synchronized (lock) {
+                long now = System.nanoTime();
+                endNanos = now + TimeUnit.MILLISECONDS.toNanos(cueMillis);
+                plays++;
+                peakPlaying = Math.max(peakPlaying, countPlaying(now));
+            }
+        }
+
+        @Override
+        public void stop() {
+            synchronized (lock) {
+                endNanos = 0;
+            }
+        }
+
+        @Override
+        public void unload() {
+            stop();
+        }
+    }
+}
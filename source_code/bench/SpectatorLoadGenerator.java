@@ -0,0 +1,344 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SpectatorLoadGenerator connects hundreds of spectators to a SpectatorServer and reports how the
+ * server copes. By default it runs its own battle: a headless engine ticking at the game's rate with
+ * a wave of new characters every second and a jump scare every five, streamed by an embedded server.
+ * All spectators are served by a single selector thread. The first --models of them decode every
+ * frame into a SpectatorModel, which checks each delta against the server's hash; the rest only split
+ * the stream into frames. --slow of the spectators read only once every two seconds, so the server
+ * has to drop their backlog and send them keyframes instead.
+ *
+ * <pre>
+ * java SpectatorLoadGenerator [--clients N] [--models N] [--slow N] [--population N] [--seconds S]
+ *                             [--tick-millis T] [--backlog BYTES] [--host HOST --port PORT]
+ * </pre>
+ *
+ * With --port the spectators watch a running game or other server instead, for example one started
+ * with -Dbattlefield.spectatorPort. The program exits with status 1 if a decoding spectator fell out of
+ * step, or if a fast spectator was not in step at the end.
+ */
+public class SpectatorLoadGenerator {
+
+    private static final double AREA_PER_CHARACTER = 200.0 * 200.0;
+    private static final long SLOW_READ_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final int SLOW_RECEIVE_BUFFER = 4096;
+
+    private int clients = 300;
+    private int models = 50;
+    private int slow = 10;
+    private int population = 10_000;
+    private int seconds = 10;
+    private int tickMillis = 50;
+    private int backlog = SpectatorServer.DEFAULT_MAX_BACKLOG_BYTES;
+    private String host = "127.0.0.1";
+    private int port;
+
+    private volatile long ticks;
+    private volatile long publishNanos;
+
+    /**
+     * The main method that runs the load test and prints a report.
+     *
+     * @param args Command line arguments, see the class description.
+     * @throws Exception If the battle or the spectators fail.
+     */
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        SpectatorLoadGenerator generator = new SpectatorLoadGenerator();
+        generator.parseArguments(args);
+        System.exit(generator.run() ? 0 : 1);
+    }
+
+    /**
+     * Reads the command line options.
+     *
+     * @param args Command line arguments.
+     */
+    private void parseArguments(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--clients":
+                    clients = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--models":
+                    models = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--slow":
+                    slow = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--population":
+                    population = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--seconds":
+                    seconds = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--tick-millis":
+                    tickMillis = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--backlog":
+                    backlog = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--host":
+                    host = args[i + 1];
+                    break;
+                case "--port":
+                    port = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+    }
+
+    /**
+     * Runs the battle, if it is embedded, and the spectators, and prints the report.
+     *
+     * @return True if every check passed.
+     * @throws Exception If the battle or the spectators fail.
+     */
+    private boolean run() throws Exception {
+        SpectatorServer server = null;
+        Thread battle = null;
+        if (port == 0) {
+            server = new SpectatorServer(0, backlog);
+            port = server.getPort();
+            SpectatorServer streamed = server;
+            battle = new Thread(() -> runBattle(streamed), "load-battle");
+            battle.setDaemon(true);
+            battle.start();
+        }
+
+        Spectator[] spectators = new Spectator[clients];
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        try (Selector selector = Selector.open()) {
+            for (int c = 0; c < clients; c++) {
+                boolean isSlow = c >= clients - slow;
+                SocketChannel channel = SocketChannel.open();
+                if (isSlow) {
+                    // A small receive window makes the server notice a slow reader sooner
+                    channel.setOption(StandardSocketOptions.SO_RCVBUF, SLOW_RECEIVE_BUFFER);
+                }
+                channel.connect(new InetSocketAddress(host, port));
+                channel.configureBlocking(false);
+                spectators[c] = new Spectator(channel, c < models, isSlow);
+                spectators[c].key = channel.register(selector, SelectionKey.OP_READ, spectators[c]);
+            }
+            while (System.nanoTime() < end) {
+                selector.select(100);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ((Spectator) key.attachment()).read();
+                }
+                long now = System.nanoTime();
+                for (Spectator spectator : spectators) {
+                    spectator.pauseOrResume(now);
+                }
+            }
+            for (Spectator spectator : spectators) {
+                spectator.channel.close();
+            }
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        if (battle != null) {
+            battle.interrupt();
+            battle.join();
+        }
+
+        boolean passed = report(spectators, server, elapsed);
+        if (server != null) {
+            server.close();
+        }
+        return passed;
+    }
+
+    /**
+     * Runs the embedded battle at the configured tick rate until interrupted, streaming every tick.
+     *
+     * @param server The server that streams the battle.
+     */
+    private void runBattle(SpectatorServer server) {
+        int side = (int) Math.ceil(Math.sqrt(population * AREA_PER_CHARACTER));
+        BattlefieldEngine engine = new BattlefieldEngine();
+        engine.setFieldSize(side, side);
+        Random random = new Random(1);
+        for (CharacterType type : CharacterType.values()) {
+            engine.spawnBatch(SpawnBatch.uniform(type, population / CharacterType.count(), side, side, random));
+        }
+        int ticksPerSecond = Math.max(1, 1000 / tickMillis);
+        long next = System.nanoTime();
+        while (!Thread.currentThread().isInterrupted()) {
+            long tick = engine.getTickCount();
+            if (tick > 0 && tick % ticksPerSecond == 0) {
+                CharacterType type = CharacterType.get(random.nextInt(CharacterType.count()));
+                engine.spawnBatch(SpawnBatch.uniform(type, population / 50, side, side, random));
+            }
+            if (tick > 0 && tick % (ticksPerSecond * 5) == 0) {
+                server.recordJumpScare();
+            }
+            engine.step();
+            long publishStart = System.nanoTime();
+            server.publish(engine);
+            publishNanos += System.nanoTime() - publishStart;
+            ticks++;
+
+            next += TimeUnit.MILLISECONDS.toNanos(tickMillis);
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Prints the report and checks the spectators.
+     *
+     * @param spectators The spectators.
+     * @param server     The embedded server, or null when watching another server.
+     * @param elapsed    The length of the run in seconds.
+     * @return True if every check passed.
+     */
+    private boolean report(Spectator[] spectators, SpectatorServer server, double elapsed) {
+        long frames = 0;
+        long bytes = 0;
+        long keyframes = 0;
+        long failures = 0;
+        long unsynced = 0;
+        long jumpScares = -1;
+        for (Spectator spectator : spectators) {
+            frames += spectator.frames;
+            bytes += spectator.bytes;
+            failures += spectator.failures;
+            if (spectator.model != null) {
+                keyframes += spectator.model.getKeyframes();
+                if (!spectator.slow && !spectator.model.isSynced()) {
+                    unsynced++;
+                }
+                if (!spectator.slow && jumpScares < 0) {
+                    jumpScares = spectator.model.getJumpScares();
+                }
+            }
+        }
+        System.out.printf("spectators=%d decoding=%d slow=%d seconds=%.1f%n", spectators.length,
+                Math.min(models, spectators.length), Math.min(slow, spectators.length), elapsed);
+        System.out.printf("received.frames=%d received.MB=%.1f received.kBps.perSpectator=%.1f%n", frames, bytes / 1e6,
+                bytes / 1e3 / elapsed / spectators.length);
+        System.out.printf("decoded.keyframes=%d decoded.failures=%d decoded.unsynced=%d decoded.jumpScares=%d%n",
+                keyframes, failures, unsynced, Math.max(jumpScares, 0));
+        if (server != null) {
+            System.out.printf("server.ticks=%d server.publish.us.perTick=%.1f server.keyframes=%d server.resyncs=%d"
+                    + " server.MB=%.1f%n", ticks, publishNanos / 1e3 / Math.max(1, ticks), server.getKeyframesSent(),
+                    server.getResyncs(), server.getBytesSent() / 1e6);
+        }
+        return failures == 0 && unsynced == 0;
+    }
+
+    /**
+     * Spectator is one connected spectator with its read buffer and optional model.
+     */
+    private static final class Spectator {
+
+        private final SocketChannel channel;
+        private final SpectatorModel model;
+        private final boolean slow;
+        private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        private SelectionKey key;
+        private long nextRead;
+        private long frames;
+        private long bytes;
+        private long failures;
+
+        /**
+         * Constructor for Spectator.
+         *
+         * @param channel The connected channel.
+         * @param decode  True to decode every frame into a model.
+         * @param slow    True to read only once every two seconds.
+         */
+        Spectator(SocketChannel channel, boolean decode, boolean slow) {
+            this.channel = channel;
+            this.model = decode ? new SpectatorModel() : null;
+            this.slow = slow;
+        }
+
+        /**
+         * Reads what arrived and handles every complete frame.
+         */
+        void read() {
+            try {
+                int read = channel.read(buffer);
+                if (read < 0) {
+                    key.cancel();
+                    return;
+                }
+                bytes += read;
+                buffer.flip();
+                while (buffer.remaining() >= 4) {
+                    int length = buffer.getInt(buffer.position());
+                    if (buffer.remaining() < 4 + length) {
+                        break;
+                    }
+                    ByteBuffer frame = buffer.duplicate();
+                    frame.position(buffer.position() + 4).limit(buffer.position() + 4 + length);
+                    buffer.position(buffer.position() + 4 + length);
+                    frames++;
+                    if (model != null) {
+                        try {
+                            model.apply(frame);
+                        } catch (IOException e) {
+                            failures++;
+                            System.err.println(e.getMessage());
+                        }
+                    }
+                }
+                int needed = buffer.remaining() >= 4 ? 4 + buffer.getInt(buffer.position()) : 0;
+                buffer.compact();
+                if (needed > buffer.capacity()) {
+                    ByteBuffer larger = ByteBuffer.allocate(Math.max(needed, buffer.capacity() * 2));
+                    buffer.flip();
+                    larger.put(buffer);
+                    buffer = larger;
+                }
+            } catch (IOException e) {
+                failures++;
+                key.cancel();
+            }
+        }
+
+        /**
+         * Stops a slow spectator from reading right after it has read, and lets it read again once its
+         * pause is over.
+         *
+         * @param now The current time in nanoseconds.
+         */
+        void pauseOrResume(long now) {
+            if (!slow || !key.isValid()) {
+                return;
+            }
+            if (key.interestOps() != 0) {
+                if (bytes > 0) {
+                    key.interestOps(0);
+                    nextRead = now + SLOW_READ_NANOS;
+                }
+            } else if (now >= nextRead) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+import java.awt.AWTException;
+import java.awt.BufferCapabilities;
+import java.awt.Canvas;
+import java.awt.Color;
+import java.awt.DisplayMode;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.ImageCapabilities;
+import java.awt.Toolkit;
+import java.awt.image.BufferStrategy;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * ActiveRenderCanvas draws the battlefield by active rendering instead of Swing's repaint pipeline.
+ * A dedicated render thread draws the latest snapshot into the back buffer of a BufferStrategy and
+ * shows it once per display refresh, so frames are neither coalesced nor delayed by the event
+ * dispatch thread. Page flipping in accelerated memory is requested first and a plain blitting
+ * strategy is used when the pipeline cannot flip; with -Dsun.java2d.opengl=true or the default
+ * XRender pipeline on Linux the buffers live on the graphics card.
+ * Frames are paced to the refresh rate of the screen the canvas is on, and Toolkit.sync flushes
+ * every frame to the display before the render thread sleeps until the next one.
+ */
+public class ActiveRenderCanvas extends Canvas implements Runnable {
+
+    private static final int DEFAULT_REFRESH_RATE = 60;
+
+    private final Supplier<WorldSnapshot> snapshots;
+    private final Color background;
+    private volatile boolean running;
+    private volatile long framePeriodNanos;
+    private Thread thread;
+    private volatile FrameTimeStats stats;
+    private volatile GameMetrics metrics;
+    private volatile int levelOfDetail;
+    private final LevelOfDetailRenderer renderer = new LevelOfDetailRenderer(LevelOfDetailRenderer.SPRITES);
+
+    /**
+     * Constructor for ActiveRenderCanvas.
+     *
+     * @param snapshots  Supplies the latest published snapshot; only called on the render thread.
+     * @param background The color the battlefield is cleared to before every frame.
+     */
+    public ActiveRenderCanvas(Supplier<WorldSnapshot> snapshots, Color background) {
+        this.snapshots = snapshots;
+        this.background = background;
+        // The render thread draws every pixel, so AWT must not clear the canvas behind its back
+        setIgnoreRepaint(true);
+        this.framePeriodNanos = TimeUnit.SECONDS.toNanos(1) / DEFAULT_REFRESH_RATE;
+        this.stats = new FrameTimeStats("active", framePeriodNanos);
+    }
+
+    /**
+     * Creates the buffer strategy and starts the render thread once the canvas is displayable.
+     */
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        framePeriodNanos = TimeUnit.SECONDS.toNanos(1) / getRefreshRate();
+        stats = new FrameTimeStats("active", framePeriodNanos);
+        createStrategy();
+        start();
+    }
+
+    /**
+     * Stops the render thread before the canvas and its buffers are disposed of.
+     */
+    @Override
+    public void removeNotify() {
+        stop();
+        super.removeNotify();
+    }
+
+    /**
+     * Gets the frame time statistics of the render thread.
+     *
+     * @return The statistics, reset whenever the canvas becomes displayable.
+     */
+    public FrameTimeStats getFrameStats() {
+        return stats;
+    }
+
+    /**
+     * Sets the game loop metrics the render thread reports its frame times to and draws the
+     * overlay of, while they are switched on.
+     *
+     * @param metrics The metrics, or null for none.
+     */
+    public void setMetrics(GameMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets how crowded parts of the battlefield are drawn, from the next frame on.
+     *
+     * @param mode LevelOfDetailRenderer.SPRITES, TILES or HEATMAP.
+     */
+    public void setLevelOfDetail(int mode) {
+        levelOfDetail = mode;
+    }
+
+    /**
+     * Requests a page-flipping strategy with accelerated buffers, falling back to the best strategy
+     * the pipeline supports.
+     */
+    private void createStrategy() {
+        BufferCapabilities flipping = new BufferCapabilities(new ImageCapabilities(true), new ImageCapabilities(true),
+                BufferCapabilities.FlipContents.UNDEFINED);
+        try {
+            createBufferStrategy(2, flipping);
+        } catch (AWTException e) {
+            createBufferStrategy(2);
+        }
+    }
+
+    /**
+     * Gets the refresh rate of the screen the canvas is on.
+     *
+     * @return The refresh rate in Hz, or 60 if the screen does not report one.
+     */
+    private int getRefreshRate() {
+        GraphicsConfiguration configuration = getGraphicsConfiguration();
+        if (configuration == null) {
+            return DEFAULT_REFRESH_RATE;
+        }
+        DisplayMode mode = configuration.getDevice().getDisplayMode();
+        int rate = mode.getRefreshRate();
+        return rate == DisplayMode.REFRESH_RATE_UNKNOWN || rate <= 0 ? DEFAULT_REFRESH_RATE : rate;
+    }
+
+    /**
+     * Starts the render thread. The thread is a daemon so it never keeps the application alive.
+     */
+    private synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this, "battlefield-render");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the render thread and waits for the frame it is drawing, if any, to finish.
+     */
+    private void stop() {
+        Thread current;
+        synchronized (this) {
+            running = false;
+            current = thread;
+            thread = null;
+        }
+        if (current != null && current != Thread.currentThread()) {
+            LockSupport.unpark(current);
+            try {
+                current.join(TimeUnit.NANOSECONDS.toMillis(framePeriodNanos) * 4);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Draws frames until the render thread is stopped, one per display refresh.
+     * A frame that overruns its slot is not made up for: the next frame is scheduled one period
+     * after the late one instead of being rushed out.
+     */
+    @Override
+    public void run() {
+        long nextFrame = System.nanoTime();
+        while (running) {
+            renderer.setMode(levelOfDetail);
+            long start = System.nanoTime();
+            try {
+                renderFrame();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            long end = System.nanoTime();
+            stats.record(start, end);
+            GameMetrics current = metrics;
+            if (current != null) {
+                current.recordPaint(end - start);
+            }
+
+            nextFrame += framePeriodNanos;
+            if (nextFrame < end) {
+                nextFrame = end + framePeriodNanos;
+            }
+            LockSupport.parkNanos(this, nextFrame - end);
+        }
+    }
+
+    /**
+     * Draws the latest snapshot into the back buffer and shows it, repeating the frame if the
+     * buffer contents were lost to the graphics card in the meantime.
+     */
+    private void renderFrame() {
+        BufferStrategy strategy = getBufferStrategy();
+        if (strategy == null || getWidth() <= 0 || getHeight() <= 0) {
+            return;
+        }
+        WorldSnapshot snapshot = snapshots.get();
+        GameMetrics current = metrics;
+        do {
+            do {
+                Graphics2D g2 = (Graphics2D) strategy.getDrawGraphics();
+                try {
+                    g2.setColor(background);
+                    g2.fillRect(0, 0, getWidth(), getHeight());
+                    renderer.draw(g2, snapshot, 0, 0, getWidth(), getHeight());
+                    if (current != null) {
+                        MetricsOverlay.draw(g2, current);
+                    }
+                } finally {
+                    g2.dispose();
+                }
+            } while (strategy.contentsRestored());
+            strategy.show();
+        } while (strategy.contentsLost());
+        Toolkit.getDefaultToolkit().sync();
+    }
+}
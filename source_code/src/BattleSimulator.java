@@ -0,0 +1,486 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * BattleSimulator is the command-line entry point for headless batch runs of the RPSKL battle.
+ * It drives a BattlefieldEngine for a fixed number of ticks as fast as the CPU allows, spawning
+ * characters from a spawn script at random positions chosen by a seeded generator, and reports the
+ * survivors of each type together with the simulation speed. No display is needed.
+ *
+ * <pre>
+ * java BattleSimulator [--ticks N] [--seed S] [--width W] [--height H] [--sequential] [--script FILE]
+ *                      [--swept] [--speed-scale K] [--max-spawns-per-tick M]
+ *                      [--record FILE | --replay FILE] [--load FILE [--mmap]] [--save FILE]
+ *                      [--shards N [--shard-port P] [--external-shards] [--compare]]
+ * </pre>
+ *
+ * A spawn script has one entry per line in the form "tick type count", for example "0 kuromi 500"
+ * or "120 hello kitty 20". Blank lines and lines starting with # are ignored. Without a script,
+ * 200 characters of every type are spawned on the first tick.
+ * With --speed-scale every tick covers K moves, so a run of N / K ticks covers the same battle time as
+ * N ticks at scale 1; --swept enables swept collisions so that the larger steps stay accurate.
+ * Every script entry is queued as one spawn batch; --max-spawns-per-tick spreads large batches over
+ * several ticks, at most M characters per tick.
+ * --record writes a replay log of the run, and --replay runs the battle of a replay log instead of a
+ * spawn script, with the field size and engine settings of the recording, as fast as the CPU allows.
+ * A replay runs for as many ticks as were recorded unless --ticks is given, which is reported if it
+ * differs from the recording.
+ * A log recorded by the game with -Dbattlefield.record can be replayed the same way.
+ * --load resumes the battle of a battlefield save, from the game's Save button or an earlier --save,
+ * before the script runs, optionally reading it through a memory mapping; --save writes the battlefield
+ * at the end of the run.
+ * <p>
+ * --shards splits the battlefield into N vertical strips, each simulated by a BattlefieldShard in its own
+ * JVM, with this process as the ShardCoordinator. The shards are started as child processes on this
+ * machine, unless --external-shards is given, in which case the coordinator listens on --shard-port and
+ * waits for N shards started by hand with "java BattlefieldShard HOST:PORT". A sharded run gives exactly
+ * the result of a single engine; --compare runs the same battle on a single engine afterwards and checks
+ * every surviving character. Sharded runs use discrete collisions and cannot be recorded, replayed,
+ * loaded, saved or rate limited.
+ */
+public class BattleSimulator {
+
+    private int ticks = 1000;
+    private boolean ticksGiven;
+    private long seed = 1;
+    private int width = 1920;
+    private int height = 1080;
+    private boolean parallel = true;
+    private boolean swept;
+    private int speedScale = 1;
+    private int maxSpawnsPerTick;
+    private Path recordPath;
+    private Path replayPath;
+    private Path loadPath;
+    private Path savePath;
+    private boolean mappedLoad;
+    private int shardCount;
+    private int shardPort;
+    private boolean externalShards;
+    private boolean compare;
+    private final List<SpawnEntry> script = new ArrayList<>();
+    private long collisionsResolved;
+
+    /**
+     * The main method that runs a batch simulation.
+     *
+     * @param args Command line arguments, see the class description.
+     */
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        BattleSimulator simulator = new BattleSimulator();
+        try {
+            simulator.parseArguments(args);
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java BattleSimulator [--ticks N] [--seed S] [--width W] [--height H]"
+                    + " [--sequential] [--script FILE] [--swept] [--speed-scale K] [--max-spawns-per-tick M]"
+                    + " [--record FILE | --replay FILE] [--load FILE [--mmap]] [--save FILE]"
+                    + " [--shards N [--shard-port P] [--external-shards] [--compare]]");
+            System.exit(2);
+        }
+        try {
+            if (simulator.shardCount > 0) {
+                simulator.runSharded();
+            } else {
+                simulator.run();
+            }
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Reads the command line options and the spawn script.
+     *
+     * @param args Command line arguments.
+     * @throws IOException If the spawn script cannot be read.
+     */
+    private void parseArguments(String[] args) throws IOException {
+        String scriptPath = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--ticks":
+                    ticks = Integer.parseInt(requireValue(args, ++i));
+                    ticksGiven = true;
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(requireValue(args, ++i));
+                    break;
+                case "--width":
+                    width = Integer.parseInt(requireValue(args, ++i));
+                    break;
+                case "--height":
+                    height = Integer.parseInt(requireValue(args, ++i));
+                    break;
+                case "--sequential":
+                    parallel = false;
+                    break;
+                case "--script":
+                    scriptPath = requireValue(args, ++i);
+                    break;
+                case "--swept":
+                    swept = true;
+                    break;
+                case "--speed-scale":
+                    speedScale = Integer.parseInt(requireValue(args, ++i));
+                    break;
+                case "--max-spawns-per-tick":
+                    maxSpawnsPerTick = Integer.parseInt(requireValue(args, ++i));
+                    break;
+                case "--record":
+                    recordPath = Paths.get(requireValue(args, ++i));
+                    break;
+                case "--replay":
+                    replayPath = Paths.get(requireValue(args, ++i));
+                    break;
+                case "--load":
+                    loadPath = Paths.get(requireValue(args, ++i));
+                    break;
+                case "--mmap":
+                    mappedLoad = true;
+                    break;
+                case "--save":
+                    savePath = Paths.get(requireValue(args, ++i));
+                    break;
+                case "--shards":
+                    shardCount = Integer.parseInt(requireValue(args, ++i));
+                    break;
+                case "--shard-port":
+                    shardPort = Integer.parseInt(requireValue(args, ++i));
+                    break;
+                case "--external-shards":
+                    externalShards = true;
+                    break;
+                case "--compare":
+                    compare = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        if (recordPath != null && replayPath != null) {
+            throw new IllegalArgumentException("--record and --replay cannot be combined");
+        }
+        if (loadPath != null && (recordPath != null || replayPath != null)) {
+            throw new IllegalArgumentException("--load cannot be combined with --record or --replay");
+        }
+        if (shardCount > 0 && (swept || maxSpawnsPerTick > 0 || recordPath != null || replayPath != null
+                || loadPath != null || savePath != null)) {
+            throw new IllegalArgumentException("--shards cannot be combined with --swept, --max-spawns-per-tick,"
+                    + " --record, --replay, --load or --save");
+        }
+        if (shardCount == 0 && (externalShards || compare)) {
+            throw new IllegalArgumentException("--external-shards and --compare need --shards");
+        }
+        if (scriptPath != null) {
+            readScript(scriptPath);
+        } else {
+            for (CharacterType type : CharacterType.values()) {
+                script.add(new SpawnEntry(0, type, 200));
+            }
+        }
+    }
+
+    /**
+     * Gets the value following an option.
+     *
+     * @param args  Command line arguments.
+     * @param index The index of the value.
+     * @return The option value.
+     */
+    private static String requireValue(String[] args, int index) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + args[index - 1]);
+        }
+        return args[index];
+    }
+
+    /**
+     * Parses a spawn script into spawn entries.
+     *
+     * @param path The file path of the script.
+     * @throws IOException If the script cannot be read.
+     */
+    private void readScript(String path) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split("\\s+");
+                if (parts.length < 3) {
+                    throw new IllegalArgumentException("Line " + lineNumber + ": expected \"tick type count\"");
+                }
+                String name = String.join(" ", Arrays.copyOfRange(parts, 1, parts.length - 1));
+                CharacterType type = CharacterType.forName(name);
+                if (type == null) {
+                    throw new IllegalArgumentException("Line " + lineNumber + ": unknown character type " + name);
+                }
+                script.add(new SpawnEntry(Long.parseLong(parts[0]), type, Integer.parseInt(parts[parts.length - 1])));
+            }
+        }
+    }
+
+    /**
+     * Runs the simulation and prints the report.
+     *
+     * @throws IOException If the replay log cannot be read or written.
+     */
+    private void run() throws IOException {
+        BattlefieldEngine engine = new BattlefieldEngine();
+        engine.setFieldSize(width, height);
+        engine.setParallelCollisions(parallel);
+        engine.setSweptCollisions(swept);
+        engine.setSpeedScale(speedScale);
+        engine.setMaxSpawnsPerTick(maxSpawnsPerTick);
+        if (loadPath != null) {
+            long start = System.nanoTime();
+            BattlefieldSave save = BattlefieldSave.read(loadPath, mappedLoad);
+            engine.restore(save);
+            engine.setFieldSize(save.getFieldWidth(), save.getFieldHeight());
+            System.out.printf("loaded=%d tick=%d loadTime=%.1fms%n", save.getEntities().size(), save.getTick(),
+                    (System.nanoTime() - start) / 1e6);
+        }
+        long spawned;
+        long elapsed;
+        if (replayPath != null) {
+            try (ReplayPlayer replay = new ReplayPlayer(replayPath)) {
+                replay.configure(engine);
+                seed = replay.getSeed();
+                long recorded = replay.getTickCount();
+                if (recorded != ReplayRecorder.UNKNOWN_TICKS) {
+                    if (!ticksGiven) {
+                        ticks = (int) recorded;
+                    } else if (ticks != recorded) {
+                        System.err.printf("--ticks %d differs from the %d ticks recorded in %s%n",
+                                ticks, recorded, replayPath);
+                    }
+                }
+                long start = System.nanoTime();
+                for (long tick = 0; tick < ticks; tick++) {
+                    replay.apply(engine);
+                    engine.step();
+                }
+                elapsed = System.nanoTime() - start;
+                spawned = replay.getSpawnCount();
+            }
+        } else {
+            ReplayRecorder recorder = recordPath != null ? new ReplayRecorder(recordPath, seed, engine) : null;
+            engine.setRecorder(recorder);
+            try {
+                long start = System.nanoTime();
+                spawned = runScript(engine);
+                elapsed = System.nanoTime() - start;
+            } finally {
+                if (recorder != null) {
+                    recorder.close();
+                }
+            }
+        }
+
+        double seconds = elapsed / 1e9;
+        System.out.printf("ticks=%d seed=%d field=%dx%d spawned=%d swept=%b speedScale=%d%n",
+                ticks, seed, engine.getFieldWidth(), engine.getFieldHeight(), spawned,
+                engine.isSweptCollisions(), engine.getSpeedScale());
+        System.out.printf("elapsed=%.3fs ticksPerSecond=%.1f%n", seconds, ticks / Math.max(seconds, 1e-9));
+        int[] survivors = engine.countByType();
+        for (int type = 0; type < survivors.length; type++) {
+            System.out.printf("survivors.%s=%d%n", CharacterType.get(type).getName().replace(' ', '_'), survivors[type]);
+        }
+        System.out.printf("despawned=%d%n", engine.getDespawnedCount());
+        if (savePath != null) {
+            long start = System.nanoTime();
+            BattlefieldSave save = engine.capture();
+            save.write(savePath);
+            System.out.printf("saved=%d tick=%d saveTime=%.1fms%n", save.getEntities().size(), save.getTick(),
+                    (System.nanoTime() - start) / 1e6);
+        }
+    }
+
+    /**
+     * Steps the engine through the spawn script, spawning at random positions from the seeded generator.
+     *
+     * @param engine The engine to drive.
+     * @return The number of characters spawned.
+     */
+    private long runScript(BattlefieldEngine engine) {
+        Random random = new Random(seed);
+        long spawned = 0;
+        for (long tick = 0; tick < ticks; tick++) {
+            for (SpawnBatch batch : spawnsFor(tick, random)) {
+                engine.spawnBatch(batch);
+                spawned += batch.size();
+            }
+            engine.step();
+            collisionsResolved += engine.getCollisionsResolved();
+        }
+        return spawned;
+    }
+
+    /**
+     * Creates the spawn batches the script queues before a tick, at random positions from the seeded
+     * generator.
+     *
+     * @param tick   The tick about to run.
+     * @param random The seeded generator, shared by every tick of the run.
+     * @return The batches, in script order.
+     */
+    private List<SpawnBatch> spawnsFor(long tick, Random random) {
+        List<SpawnBatch> batches = new ArrayList<>();
+        for (SpawnEntry entry : script) {
+            if (entry.tick == tick) {
+                batches.add(SpawnBatch.uniform(entry.type, entry.count, width, height, random));
+            }
+        }
+        return batches;
+    }
+
+    /**
+     * Runs the simulation split over shard processes and prints the report, then runs the same battle on
+     * a single engine if --compare was given and checks that both ended with the same characters.
+     *
+     * @throws IOException If the shards cannot be started or reached.
+     */
+    private void runSharded() throws IOException {
+        BattlefieldEngine reference = new BattlefieldEngine();
+        reference.setFieldSize(width, height);
+        reference.setParallelCollisions(parallel);
+        reference.setSpeedScale(speedScale);
+
+        List<Process> processes = new ArrayList<>();
+        EntityStore survivors;
+        long spawned = 0;
+        long elapsed;
+        try (ServerSocket server = new ServerSocket(shardPort)) {
+            if (externalShards) {
+                System.out.printf("Waiting for %d shards on port %d%n", shardCount, server.getLocalPort());
+            } else {
+                String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+                for (int k = 0; k < shardCount; k++) {
+                    processes.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                            "BattlefieldShard", "127.0.0.1:" + server.getLocalPort())
+                            .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                            .redirectError(ProcessBuilder.Redirect.INHERIT)
+                            .start());
+                }
+            }
+            try (ShardCoordinator coordinator = new ShardCoordinator(server, shardCount, width, height,
+                    reference.getDespawnMargin(), speedScale)) {
+                Random random = new Random(seed);
+                long start = System.nanoTime();
+                for (long tick = 0; tick < ticks; tick++) {
+                    List<SpawnBatch> batches = spawnsFor(tick, random);
+                    for (SpawnBatch batch : batches) {
+                        spawned += batch.size();
+                    }
+                    coordinator.step(batches);
+                }
+                survivors = coordinator.finish();
+                elapsed = System.nanoTime() - start;
+                System.out.printf("ticks=%d seed=%d field=%dx%d spawned=%d shards=%d speedScale=%d%n",
+                        ticks, seed, width, height, spawned, shardCount, speedScale);
+                System.out.printf("elapsed=%.3fs ticksPerSecond=%.1f roundsPerTick=%.2f%n", elapsed / 1e9,
+                        ticks / Math.max(elapsed / 1e9, 1e-9), (double) coordinator.getRounds() / Math.max(ticks, 1));
+                int[] counts = new int[CharacterType.count()];
+                for (int i = 0; i < survivors.size(); i++) {
+                    counts[survivors.getType(i)]++;
+                }
+                for (int type = 0; type < counts.length; type++) {
+                    System.out.printf("survivors.%s=%d%n", CharacterType.get(type).getName().replace(' ', '_'), counts[type]);
+                }
+                System.out.printf("despawned=%d%n", coordinator.getDespawnedCount());
+                System.out.printf("collisions=%d%n", coordinator.getCollisionsResolved());
+                if (compare) {
+                    compareWithSingleEngine(reference, survivors, coordinator);
+                }
+            }
+        } finally {
+            for (Process process : processes) {
+                try {
+                    process.waitFor();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    process.destroy();
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the battle of the script on a single engine and checks that it ends with exactly the
+     * characters of the sharded run, with the same despawn and collision counts. A difference is
+     * printed and makes the program exit with status 1.
+     *
+     * @param engine      The single engine, set up like the shards.
+     * @param survivors   The survivors of the sharded run, sorted by id.
+     * @param coordinator The coordinator of the sharded run.
+     */
+    private void compareWithSingleEngine(BattlefieldEngine engine, EntityStore survivors, ShardCoordinator coordinator) {
+        collisionsResolved = 0;
+        long start = System.nanoTime();
+        runScript(engine);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("single.elapsed=%.3fs single.ticksPerSecond=%.1f%n", seconds, ticks / Math.max(seconds, 1e-9));
+
+        EntityStore expected = engine.getEntities();
+        String difference = null;
+        if (engine.getDespawnedCount() != coordinator.getDespawnedCount()) {
+            difference = "despawned " + engine.getDespawnedCount() + " != " + coordinator.getDespawnedCount();
+        } else if (collisionsResolved != coordinator.getCollisionsResolved()) {
+            difference = "collisions " + collisionsResolved + " != " + coordinator.getCollisionsResolved();
+        } else if (expected.size() != survivors.size()) {
+            difference = "survivors " + expected.size() + " != " + survivors.size();
+        } else {
+            for (int i = 0; i < expected.size() && difference == null; i++) {
+                if (expected.getId(i) != survivors.getId(i) || expected.getType(i) != survivors.getType(i)
+                        || expected.getX(i) != survivors.getX(i) || expected.getY(i) != survivors.getY(i)) {
+                    difference = "character " + expected.getId(i) + " at index " + i;
+                }
+            }
+        }
+        if (difference == null) {
+            System.out.println("compare=identical");
+        } else {
+            System.out.println("compare=different: " + difference);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * SpawnEntry is a single line of a spawn script.
+     */
+    private static final class SpawnEntry {
+
+        private final long tick;
+        private final CharacterType type;
+        private final int count;
+
+        /**
+         * Constructor for SpawnEntry.
+         *
+         * @param tick  The tick before which the characters are spawned.
+         * @param type  The character type.
+         * @param count The number of characters to spawn.
+         */
+        SpawnEntry(long tick, CharacterType type, int count) {
+            this.tick = tick;
+            this.type = type;
+            this.count = count;
+        }
+    }
+}
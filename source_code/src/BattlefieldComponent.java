@@ -1,124 +1,559 @@
+import java.awt.BorderLayout;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseListener;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.swing.AbstractAction;
 import javax.swing.JComponent;
+import javax.swing.KeyStroke;
+import javax.swing.JPopupMenu;
+import javax.swing.SwingUtilities;
 import javax.swing.Timer;
+import javax.swing.UIManager;
 
 /**
  * BattlefieldComponent manages and renders the characters on the battlefield.
  * It is responsible for updating the position of characters, checking for collisions,
  * and drawing the characters on the screen.
+ * The battle itself is run by a headless BattlefieldEngine on its own simulation thread, which hands
+ * finished ticks to the painting code as snapshots, so a heavy battlefield never blocks buttons,
+ * menus or painting on the event dispatch thread.
+ * Characters outside the visible area are not drawn, and characters that wander past the
+ * despawn boundary around the battlefield are retired from the simulation altogether.
+ * Only the parts of the battlefield that changed are repainted: the engine records the damage of
+ * every tick, and the event dispatch thread paints the merged damaged regions one by one, so a
+ * battlefield where nothing moves costs almost nothing to display.
+ * Started with -Dbattlefield.render=active, the battlefield is instead drawn by an ActiveRenderCanvas
+ * that fills the component and renders on its own thread once per display refresh. Either way,
+ * -Dbattlefield.frameStats=true prints the frame time statistics of the render path every few seconds.
+ * F3 toggles the collection of game loop metrics and an overlay that shows them; the same metrics
+ * are exported over JMX and as flight recorder events, see GameMetrics.
+ * Crowded parts of the battlefield are drawn as density tiles instead of sprites, see
+ * LevelOfDetailRenderer. -Dbattlefield.lod=sprites, tiles or heatmap picks the starting mode, tiles by
+ * default, and F4 switches between them.
+ * The battle can be recorded to a replay log, and a replay log can be played back in place of
+ * player input, several ticks per frame for a faster than real-time replay.
  */
 public class BattlefieldComponent extends JComponent {
 
-    private final List<CharacterShape> characters;
-    private Timer timer;
-    private static final int[][] RPSKL_RULES = {
-            {0, -1, 1, -1, 1},
-            {1, 0, -1, 1, -1},
-            {-1, 1, 0, -1, 1},
-            {1, -1, 1, 0, -1},
-            {-1, 1, -1, 1, 0}
-    };
-    private final List<String> validMoves = Arrays.asList("hello kitty", "my melody", "badtz maru", "cinnamoroll", "kuromi");
+    private static final long TICK_MILLIS = 50; // Milliseconds between simulation ticks (update rate)
+    private static final int CULL_MARGIN = 16; // Pixels around the visible area that are still drawn
+    private static final int DAMAGE_TILE_SIZE = 32; // Side length of the tiles damage is tracked in
+    private static final int MAX_DAMAGE_REGIONS = 32; // More damaged regions than this repaint everything
+    private static final int FRAME_STATS_MILLIS = 5000; // Milliseconds between frame time reports
+    private static final int METRICS_REFRESH_MILLIS = 1000; // Milliseconds between overlay refreshes
+    private final BattlefieldEngine engine;
+    private final SnapshotBuffer snapshots = new SnapshotBuffer();
+    private final DirtyRegionTracker tickDamage = new DirtyRegionTracker(DAMAGE_TILE_SIZE);
+    private final DirtyRegionTracker pendingDamage = new DirtyRegionTracker(DAMAGE_TILE_SIZE);
+    private final AtomicBoolean damageRepaintScheduled = new AtomicBoolean();
+    private final List<Rectangle> damagedRegions = new ArrayList<>();
+    private final Runnable repaintDamageTask = this::repaintDamage;
+    private final Rectangle paintClip = new Rectangle();
+    private final FrameTimeStats passiveStats = new FrameTimeStats("passive", TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS));
+    private final ActiveRenderCanvas activeCanvas;
+    private final LevelOfDetailRenderer renderer;
+    private final GameMetrics metrics = new GameMetrics();
+    private final GameEventBus events = new GameEventBus();
+    private boolean overlayShown;
+    private ReplayRecorder recorder;
+    private volatile ReplayPlayer replay;
+    private volatile int replayTicksPerFrame = 1;
+    private volatile SpectatorServer spectatorServer;
+    private boolean paintingDamage;
+    private WorldSnapshot damageSnapshot; // The snapshot every region of a damage repaint is drawn from
+    private SimulationLoop simulation;
+    private volatile int characterCount;
+    private int culledCount;
 
     /**
      * Constructs a new BattlefieldComponent.
-     * Initializes the character list and sets up the game loop.
+     * Initializes the engine and sets up the game loop.
      */
     public BattlefieldComponent() {
-        characters = new ArrayList<>();
+        engine = new BattlefieldEngine();
+        engine.setEventBus(events);
+        renderer = new LevelOfDetailRenderer(LevelOfDetailRenderer.parseMode(System.getProperty("battlefield.lod"),
+                LevelOfDetailRenderer.TILES));
+        if ("active".equals(System.getProperty("battlefield.render"))) {
+            activeCanvas = new ActiveRenderCanvas(snapshots::acquire, UIManager.getColor("Panel.background"));
+            setLayout(new BorderLayout());
+            add(activeCanvas, BorderLayout.CENTER);
+            // Lightweight popups would be hidden behind the heavyweight canvas
+            JPopupMenu.setDefaultLightWeightPopupEnabled(false);
+        } else {
+            activeCanvas = null;
+            engine.setDamageTracker(tickDamage);
+        }
+        addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                if (replay == null) { // A replay sets the recorded field size itself
+                    engine.setFieldSize(getWidth(), getHeight());
+                }
+            }
+        });
+        if (Boolean.getBoolean("battlefield.frameStats")) {
+            new Timer(FRAME_STATS_MILLIS, e -> System.out.println(getFrameStats().summary())).start();
+        }
+        setupMetrics();
+        setupLevelOfDetail();
         setupGameLoop();
     }
 
     /**
-     * Sets up the game loop with a timer to regularly update the battlefield.
-     * The timer triggers an action event at regular intervals, which leads to
-     * the update of the battlefield including moving characters and checking for collisions.
+     * Hands the metrics to the engine and the render path, registers them with JMX, binds F3 to
+     * toggling them and starts a timer that repaints the overlay whenever new metrics may have been
+     * published. The timer does nothing while the overlay is hidden.
+     */
+    private void setupMetrics() {
+        engine.setMetrics(metrics);
+        metrics.registerMBean();
+        if (activeCanvas != null) {
+            activeCanvas.setMetrics(metrics);
+        }
+        getInputMap(WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke(KeyEvent.VK_F3, 0), "toggleMetrics");
+        getActionMap().put("toggleMetrics", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                metrics.setEnabled(!metrics.isEnabled());
+            }
+        });
+        new Timer(METRICS_REFRESH_MILLIS, e -> refreshOverlay()).start();
+    }
+
+    /**
+     * Hands the starting level of detail to the render path in use and binds F4 to switching it.
+     */
+    private void setupLevelOfDetail() {
+        if (activeCanvas != null) {
+            activeCanvas.setLevelOfDetail(renderer.getMode());
+        }
+        getInputMap(WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke(KeyEvent.VK_F4, 0), "nextLevelOfDetail");
+        getActionMap().put("nextLevelOfDetail", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                setLevelOfDetail(renderer.nextMode());
+            }
+        });
+    }
+
+    /**
+     * Sets how crowded parts of the battlefield are drawn and repaints it.
+     * Must be called on the event dispatch thread.
+     *
+     * @param mode LevelOfDetailRenderer.SPRITES, TILES or HEATMAP.
+     */
+    public void setLevelOfDetail(int mode) {
+        renderer.setMode(mode);
+        if (activeCanvas != null) {
+            activeCanvas.setLevelOfDetail(mode);
+        } else {
+            repaint();
+        }
+    }
+
+    /**
+     * Gets how crowded parts of the battlefield are drawn.
+     *
+     * @return LevelOfDetailRenderer.SPRITES, TILES or HEATMAP.
+     */
+    public int getLevelOfDetail() {
+        return renderer.getMode();
+    }
+
+    /**
+     * Repaints the metrics overlay while it is shown, and the whole battlefield once when it is
+     * switched on or off, whether by F3 or over JMX. Only needed for the passive render path;
+     * the active render thread draws the overlay with every frame.
+     * Runs on the event dispatch thread.
+     */
+    private void refreshOverlay() {
+        boolean enabled = metrics.isEnabled();
+        if (activeCanvas != null || (!enabled && !overlayShown)) {
+            return;
+        }
+        if (enabled != overlayShown) {
+            overlayShown = enabled;
+            repaint();
+        } else {
+            repaint(MetricsOverlay.getBounds(metrics));
+        }
+    }
+
+    /**
+     * Gets the bus the battlefield publishes its spawns, collisions, despawns and tick ends to.
+     * Subscribers run on their own threads and never hold up the simulation.
+     *
+     * @return The event bus.
+     */
+    public GameEventBus getEventBus() {
+        return events;
+    }
+
+    /**
+     * Gets the game loop metrics of the battlefield.
+     *
+     * @return The metrics, also registered with JMX.
+     */
+    public GameMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets up the game loop on a dedicated simulation thread with a fixed timestep.
+     * Every tick steps the engine and publishes the result for painting.
      */
     private void setupGameLoop() {
-        int delay = 50; // Milliseconds between timer ticks (update rate)
-        timer = new Timer(delay, e -> updateBattlefield());
-        timer.start();
+        simulation = new SimulationLoop("battlefield-simulation", TICK_MILLIS, this::updateBattlefield);
+        simulation.start();
+    }
+
+    /**
+     * Stops the simulation thread. The battlefield keeps showing the last published tick.
+     */
+    public void stopGameLoop() {
+        simulation.stop();
     }
 
     /**
-     * Updates the battlefield by moving characters, checking for collisions, and repainting.
-     * This method is called on each tick of the timer set up in setupGameLoop.
+     * Updates the battlefield by stepping the engine, publishing a snapshot and requesting a repaint
+     * of the areas that changed.
+     * This method is called on each tick of the simulation thread set up in setupGameLoop.
      */
     private void updateBattlefield() {
-        moveCharacters();
-        checkForCollisions();
-        repaint();
+        ReplayPlayer player = replay;
+        SpectatorServer spectators = spectatorServer;
+        if (player == null) {
+            tickDamage.setSize(engine.getFieldWidth(), engine.getFieldHeight());
+            engine.step();
+            if (spectators != null) {
+                spectators.publish(engine);
+            }
+        } else {
+            for (int t = 0; t < replayTicksPerFrame; t++) {
+                player.apply(engine);
+                tickDamage.setSize(engine.getFieldWidth(), engine.getFieldHeight());
+                engine.step();
+                if (spectators != null) {
+                    spectators.publish(engine);
+                }
+            }
+        }
+        publishSnapshot();
+        if (activeCanvas != null) {
+            return;
+        }
+        if (tickDamage.isEmpty()) {
+            // Nothing to paint this tick, so the gap before the next frame is not a drop
+            passiveStats.resetInterval();
+            return;
+        }
+        synchronized (pendingDamage) {
+            pendingDamage.addAll(tickDamage);
+        }
+        tickDamage.clear();
+        if (damageRepaintScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(repaintDamageTask);
+        }
     }
 
     /**
-     * Moves all characters on the battlefield.
-     * Each character's move method is called, which updates its position based on its specific movement strategy.
+     * Paints the damage collected since the last call, one merged region at a time.
+     * Damage from ticks that finish while the event dispatch thread is busy accumulates and is painted
+     * together, and painting always shows the latest snapshot. Every region is drawn from the same
+     * snapshot, indexed by grid cell once, so a region only visits the characters around it. Heavy
+     * damage falls back to a single repaint of the whole battlefield.
+     * Runs on the event dispatch thread.
      */
-    private void moveCharacters() {
-        for (CharacterShape character : characters) {
-            character.move();
+    private void repaintDamage() {
+        damageRepaintScheduled.set(false);
+        damagedRegions.clear();
+        boolean regional;
+        synchronized (pendingDamage) {
+            regional = pendingDamage.takeRegions(damagedRegions, MAX_DAMAGE_REGIONS);
         }
+        if (!regional) {
+            repaint();
+            return;
+        }
+        long start = System.nanoTime();
+        damageSnapshot = snapshots.acquire();
+        damageSnapshot.buildIndex(getWidth(), getHeight());
+        paintingDamage = true;
+        try {
+            boolean tiled = renderer.getMode() != LevelOfDetailRenderer.SPRITES;
+            for (Rectangle region : damagedRegions) {
+                paintImmediately(tiled ? renderer.alignToTiles(region) : region);
+            }
+        } finally {
+            paintingDamage = false;
+        }
+        passiveStats.record(start, System.nanoTime());
     }
 
     /**
-     * Adds a new character to the battlefield.
+     * Adds a mouse listener to the battlefield. In active rendering mode the listener is also added
+     * to the canvas, which covers the component and receives the mouse events in its place.
      *
-     * @param character The character to be added.
+     * @param listener The mouse listener.
      */
-    public void addCharacter(CharacterShape character) {
-        characters.add(character);
-        repaint();
+    @Override
+    public synchronized void addMouseListener(MouseListener listener) {
+        super.addMouseListener(listener);
+        if (activeCanvas != null) {
+            activeCanvas.addMouseListener(listener);
+        }
     }
 
     /**
-     * Paints the component by drawing all characters.
+     * Starts recording the battle to a replay log. Call before the first character is spawned, since
+     * the replay starts from an empty battlefield.
      *
-     * @param g The Graphics object used for drawing.
+     * @param file The file to write the log to.
+     * @param seed The session seed stored in the log.
+     * @throws IOException If the log file cannot be created.
      */
-    @Override
-    protected void paintComponent(Graphics g) {
-        super.paintComponent(g);
-        Graphics2D g2 = (Graphics2D) g;
-        for (CharacterShape character : characters) {
-            character.draw(g2);
+    public synchronized void startRecording(Path file, long seed) throws IOException {
+        stopRecording();
+        recorder = new ReplayRecorder(file, seed, engine);
+        engine.setRecorder(recorder);
+    }
+
+    /**
+     * Checks whether the battle is being recorded to a replay log.
+     *
+     * @return True while a recording is running.
+     */
+    public synchronized boolean isRecording() {
+        return recorder != null;
+    }
+
+    /**
+     * Stops recording and closes the replay log, if a recording is running.
+     */
+    public synchronized void stopRecording() {
+        if (recorder == null) {
+            return;
+        }
+        engine.setRecorder(null);
+        try {
+            recorder.close();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
+        recorder = null;
     }
 
     /**
-     * Checks for collisions between characters and resolves them.
-     * When a collision is detected, it determines the outcome based on RPSKL rules.
+     * Plays a replay log on the battlefield, starting with the next tick. The battlefield should be
+     * empty, and characters spawned by the player while the replay runs make the battle diverge
+     * from the recording. Once the log is exhausted, the battle simply carries on.
+     *
+     * @param player        The replay to play.
+     * @param ticksPerFrame The number of ticks run per frame; 1 replays in real time.
      */
-    public void checkForCollisions() {
-        for (int i = 0; i < characters.size(); i++) {
-            for (int j = i + 1; j < characters.size(); j++) {
-                CharacterShape char1 = characters.get(i);
-                CharacterShape char2 = characters.get(j);
-                if (char1.getBounds().intersects(char2.getBounds())) {
-                    resolveCollision(char1, char2);
-                }
-            }
+    public void playReplay(ReplayPlayer player, int ticksPerFrame) {
+        player.configure(engine);
+        replayTicksPerFrame = Math.max(1, ticksPerFrame);
+        replay = player;
+    }
+
+    /**
+     * Starts streaming the battle to remote spectators, replacing any server already running.
+     *
+     * @param port The port spectators connect to, or 0 for any free port.
+     * @return The server.
+     * @throws IOException If the port cannot be opened.
+     */
+    public synchronized SpectatorServer startSpectatorServer(int port) throws IOException {
+        stopSpectatorServer();
+        spectatorServer = new SpectatorServer(port, SpectatorServer.DEFAULT_MAX_BACKLOG_BYTES);
+        return spectatorServer;
+    }
+
+    /**
+     * Stops streaming the battle and disconnects every spectator, if a server is running.
+     */
+    public synchronized void stopSpectatorServer() {
+        SpectatorServer server = spectatorServer;
+        if (server == null) {
+            return;
+        }
+        spectatorServer = null;
+        try {
+            server.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Tells the spectators that a jump scare played, if the battle is being streamed.
+     */
+    public void recordJumpScare() {
+        SpectatorServer server = spectatorServer;
+        if (server != null) {
+            server.recordJumpScare();
+        }
+    }
+
+    /**
+     * Copies the state of the battlefield between two ticks, without stopping the simulation.
+     *
+     * @return A future that completes on the simulation thread with the save, before the next tick runs.
+     */
+    public CompletableFuture<BattlefieldSave> captureState() {
+        CompletableFuture<BattlefieldSave> save = new CompletableFuture<>();
+        engine.submit(() -> save.complete(engine.capture()));
+        return save;
+    }
+
+    /**
+     * Replaces the battlefield with a saved one. Safe to call from any thread; the save is restored
+     * between two ticks and shown by the next repaint. Not supported while recording, since the replay
+     * log cannot express the jump to the saved tick.
+     *
+     * @param save The save to restore.
+     * @throws IllegalStateException If the battle is being recorded.
+     */
+    public void restoreState(BattlefieldSave save) {
+        if (isRecording()) {
+            throw new IllegalStateException("Cannot load a battlefield while recording a replay");
         }
+        engine.submit(() -> engine.restore(save));
+    }
+
+    /**
+     * Gets the frame time statistics of the render path in use.
+     *
+     * @return The statistics of the active canvas, or of Swing painting in passive mode.
+     */
+    public FrameTimeStats getFrameStats() {
+        return activeCanvas != null ? activeCanvas.getFrameStats() : passiveStats;
+    }
+
+    /**
+     * Sets how far outside the battlefield a character may travel before it is despawned.
+     *
+     * @param despawnMargin The distance in pixels beyond each edge of the battlefield.
+     */
+    public void setDespawnMargin(int despawnMargin) {
+        engine.setDespawnMargin(despawnMargin);
+    }
+
+    /**
+     * Gets the total number of characters despawned for leaving the battlefield.
+     *
+     * @return The despawn count since the battlefield was created.
+     */
+    public long getDespawnedCount() {
+        return engine.getDespawnedCount();
+    }
+
+    /**
+     * Gets the number of characters skipped by the last paint because they were out of view.
+     *
+     * @return The culled count of the last painted frame.
+     */
+    public int getCulledCount() {
+        return culledCount;
+    }
+
+    /**
+     * Copies the entity store into the snapshot buffer so the next paint shows this tick.
+     */
+    private void publishSnapshot() {
+        EntityStore entities = engine.getEntities();
+        snapshots.getBackBuffer().copyFrom(entities, engine.getTickCount());
+        snapshots.publish();
+        characterCount = entities.size();
+    }
+
+    /**
+     * Spawns a new character on the battlefield.
+     * Safe to call from any thread; the character joins the battlefield at the start of the next tick.
+     *
+     * @param type     The type of the character.
+     * @param position The position of the top-left corner.
+     */
+    public void spawn(CharacterType type, Point position) {
+        engine.spawn(type, position.x, position.y);
+    }
+
+    /**
+     * Spawns a batch of characters on the battlefield.
+     * Safe to call from any thread; the whole batch joins the battlefield at the start of the next tick
+     * and is shown by that tick's single repaint.
+     *
+     * @param batch The characters to spawn.
+     */
+    public void spawnBatch(SpawnBatch batch) {
+        engine.spawnBatch(batch);
+    }
+
+    /**
+     * Adds a new character to the battlefield.
+     * Safe to call from any thread; the character joins the battlefield at the start of the next tick.
+     *
+     * @param character The character to be added.
+     */
+    public void addCharacter(CharacterShape character) {
+        engine.addCharacter(character);
+    }
+
+    /**
+     * Gets the number of characters on the battlefield as of the last completed tick.
+     *
+     * @return The character count.
+     */
+    public int getCharacterCount() {
+        return characterCount;
     }
 
     /**
-     * Resolves a collision between two characters based on the RPSKL rules.
+     * Paints the component by drawing the characters of the latest published snapshot, as sprites
+     * or density tiles depending on the level of detail.
+     * Characters that do not touch the area being painted, plus a small margin, are skipped, so
+     * painting a damaged region only draws the characters that overlap it.
      *
-     * @param char1 The first character involved in the collision.
-     * @param char2 The second character involved in the collision.
+     * @param g The Graphics object used for drawing.
      */
-    private void resolveCollision(CharacterShape char1, CharacterShape char2) {
-        int index1 = validMoves.indexOf(char1.getType());
-        int index2 = validMoves.indexOf(char2.getType());
-        int outcome = RPSKL_RULES[index1][index2];
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        if (activeCanvas != null) {
+            // The canvas draws the battlefield and is the only reader of the snapshots
+            return;
+        }
+        long start = System.nanoTime();
+        Graphics2D g2 = (Graphics2D) g;
+        paintClip.setBounds(0, 0, getWidth(), getHeight());
+        Rectangle clip = g2.getClipBounds(paintClip); // Left as the whole component if there is no clip
+        int left = clip.x - CULL_MARGIN;
+        int top = clip.y - CULL_MARGIN;
+        int right = clip.x + clip.width + CULL_MARGIN;
+        int bottom = clip.y + clip.height + CULL_MARGIN;
 
-        if (outcome == 1) {
-            characters.remove(char2);
-        } else if (outcome == -1) {
-            characters.remove(char1);
+        WorldSnapshot snapshot = paintingDamage ? damageSnapshot : snapshots.acquire();
+        culledCount = renderer.draw(g2, snapshot, left, top, right, bottom);
+        MetricsOverlay.draw(g2, metrics);
+        long end = System.nanoTime();
+        metrics.recordPaint(end - start);
+        if (!paintingDamage) {
+            passiveStats.record(start, end);
         }
     }
 }
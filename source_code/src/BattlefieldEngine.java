@@ -0,0 +1,561 @@
+import java.awt.Rectangle;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * BattlefieldEngine is the headless core of the RPSKL battle. It owns the entity store and runs the
+ * move, despawn and collide steps of a tick, without any Swing or display dependency, so the same
+ * battle logic drives the on-screen battlefield and command-line batch runs.
+ * The engine itself is not thread-safe: step and every query must be called from one thread,
+ * except spawn, spawnBatch, addCharacter and submit, which may be called from anywhere.
+ * Queued characters join the battlefield at the start of a tick, in the order they were queued, and
+ * an optional spawn rate limit spreads very large batches over several ticks.
+ * Work that needs the engine between two ticks, such as saving or loading the battlefield, is
+ * submitted as a command and runs on the simulation thread before the next tick.
+ */
+public class BattlefieldEngine {
+
+    private static final int DEFAULT_DESPAWN_MARGIN = 400;
+
+    private final EntityStore entities = new EntityStore();
+    private final CollisionDetector collisionDetector = new CollisionDetector();
+    private final Queue<SpawnBatch> pendingSpawns = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> commands = new ConcurrentLinkedQueue<>();
+    private SpawnBatch partialBatch; // Batch cut short by the spawn rate limit, finished first next tick
+    private int partialBatchOffset;
+    private long tickCount;
+    private volatile int fieldWidth;
+    private volatile int fieldHeight;
+    private volatile int despawnMargin = DEFAULT_DESPAWN_MARGIN;
+    private volatile long despawnedCount;
+    private volatile boolean sweptCollisions;
+    private volatile int speedScale = 1;
+    private volatile int maxSpawnsPerTick = Integer.MAX_VALUE;
+    private DirtyRegionTracker damage;
+    private volatile GameMetrics metrics;
+    private volatile ReplayRecorder recorder;
+    private volatile GameEventBus events;
+    private int collisionsResolved;
+
+    /**
+     * Runs a single tick: adds the characters queued since the previous tick, moves every character,
+     * despawns the ones that escaped the battlefield and resolves collisions.
+     */
+    public void step() {
+        runCommands();
+        GameMetrics metrics = this.metrics;
+        if (metrics != null && metrics.isCollecting()) {
+            stepMeasured(metrics);
+            return;
+        }
+        addPendingCharacters();
+        moveCharacters();
+        despawnEscapedCharacters();
+        checkForCollisions();
+        endTick();
+    }
+
+    /**
+     * Publishes the end of the tick to the event bus, if there is one, and counts the tick.
+     */
+    private void endTick() {
+        GameEventBus events = this.events;
+        if (events != null) {
+            events.publishTickEnd(tickCount);
+        }
+        tickCount++;
+    }
+
+    /**
+     * Runs a single tick like step, timing each phase and recording the tick in the metrics.
+     *
+     * @param metrics The metrics to record the tick in.
+     */
+    private void stepMeasured(GameMetrics metrics) {
+        long allocatedBefore = GameMetrics.threadAllocatedBytes();
+        long start = System.nanoTime();
+        addPendingCharacters();
+        long moveStart = System.nanoTime();
+        moveCharacters();
+        despawnEscapedCharacters();
+        long collisionStart = System.nanoTime();
+        checkForCollisions();
+        long end = System.nanoTime();
+        long tick = tickCount; // The number TICK_END and the replay log give this tick
+        endTick();
+        metrics.recordTick(tick, entities, moveStart - start, collisionStart - moveStart, end - collisionStart,
+                collisionDetector.getPairsTested(), collisionsResolved,
+                GameMetrics.threadAllocatedBytes() - allocatedBefore);
+    }
+
+    /**
+     * Queues a command to run on the simulation thread at the start of the next tick, before the
+     * queued characters join. Safe to call from any thread.
+     *
+     * @param command The command; it may use every method of the engine.
+     */
+    public void submit(Runnable command) {
+        commands.add(command);
+    }
+
+    /**
+     * Runs the commands submitted since the previous tick, in the order they were submitted.
+     * A failing command is reported and does not stop the others.
+     */
+    private void runCommands() {
+        Runnable command;
+        while ((command = commands.poll()) != null) {
+            try {
+                command.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Copies the state of the battlefield into a save. Must be called between ticks, for example
+     * from a submitted command; writing the save to disk can then happen on any thread.
+     *
+     * @return A save holding a copy of the characters and counters.
+     */
+    public BattlefieldSave capture() {
+        EntityStore copy = new EntityStore();
+        copy.copyFrom(entities);
+        return new BattlefieldSave(copy, tickCount, despawnedCount, fieldWidth, fieldHeight);
+    }
+
+    /**
+     * Replaces the state of the battlefield with a save. Must be called between ticks, for example
+     * from a submitted command. The battlefield size is not restored, since the save may come from a
+     * screen of a different size, and characters still queued for spawning join the restored battle.
+     *
+     * @param save The save to restore.
+     */
+    public void restore(BattlefieldSave save) {
+        entities.copyFrom(save.getEntities());
+        tickCount = save.getTick();
+        despawnedCount = save.getDespawnedCount();
+        if (damage != null) {
+            damage.markAll();
+        }
+    }
+
+    /**
+     * Queues a new character for the battlefield.
+     * Safe to call from any thread; the character joins the entity store at the start of the next tick.
+     *
+     * @param type The type of the character.
+     * @param x    The x coordinate of the top-left corner.
+     * @param y    The y coordinate of the top-left corner.
+     */
+    public void spawn(CharacterType type, int x, int y) {
+        SpawnBatch batch = new SpawnBatch();
+        batch.add(type, x, y);
+        pendingSpawns.add(batch);
+    }
+
+    /**
+     * Queues a batch of new characters for the battlefield.
+     * Safe to call from any thread; the characters join the entity store together at the start of the
+     * next tick, unless the spawn rate limit spreads them over several ticks. The batch must not be
+     * changed after it has been queued.
+     *
+     * @param batch The characters to add.
+     */
+    public void spawnBatch(SpawnBatch batch) {
+        if (batch.size() > 0) {
+            pendingSpawns.add(batch);
+        }
+    }
+
+    /**
+     * Queues a new character for the battlefield from a shape.
+     * Safe to call from any thread; the character joins the entity store at the start of the next tick.
+     * Only the shape's type and position are used and the shape object is not retained.
+     *
+     * @param character The character to be added.
+     */
+    public void addCharacter(CharacterShape character) {
+        CharacterType type = CharacterType.forName(character.getType());
+        if (type == null) {
+            throw new IllegalArgumentException("Unknown character type: " + character.getType());
+        }
+        Rectangle bounds = character.getBounds();
+        spawn(type, bounds.x, bounds.y);
+    }
+
+    /**
+     * Moves the characters queued by spawn, spawnBatch and addCharacter into the entity store,
+     * up to the spawn rate limit. A batch that does not fit is finished on the following ticks
+     * before any batch queued after it.
+     */
+    private void addPendingCharacters() {
+        ReplayRecorder recorder = this.recorder;
+        if (recorder != null) {
+            recorder.beginTick(tickCount, fieldWidth, fieldHeight);
+        }
+        int budget = maxSpawnsPerTick;
+        while (budget > 0) {
+            if (partialBatch == null) {
+                partialBatch = pendingSpawns.poll();
+                partialBatchOffset = 0;
+                if (partialBatch == null) {
+                    return;
+                }
+            }
+            int end = (int) Math.min(partialBatch.size(), (long) partialBatchOffset + budget);
+            addBatch(partialBatch, partialBatchOffset, end);
+            budget -= end - partialBatchOffset;
+            partialBatchOffset = end;
+            if (end == partialBatch.size()) {
+                partialBatch = null;
+            }
+        }
+    }
+
+    /**
+     * Adds part of a spawn batch to the entity store.
+     *
+     * @param batch The batch to add from.
+     * @param start The index of the first character to add.
+     * @param end   The index after the last character to add.
+     */
+    private void addBatch(SpawnBatch batch, int start, int end) {
+        ReplayRecorder recorder = this.recorder;
+        if (recorder != null) {
+            recorder.recordSpawns(tickCount, batch, start, end);
+        }
+        GameEventBus events = this.events;
+        entities.ensureCapacity(entities.size() + end - start);
+        for (int i = start; i < end; i++) {
+            CharacterType type = CharacterType.get(batch.getType(i));
+            int x = batch.getX(i);
+            int y = batch.getY(i);
+            int index = entities.add(x, y, type.getWidth(), type.getHeight(), type.getVelocityX(), type.getVelocityY(),
+                    type.getOrdinal());
+            if (events != null) {
+                events.publishSpawn(tickCount, entities.getId(index), type.getOrdinal(), x, y);
+            }
+            if (damage != null) {
+                damage.markDirty(x, y, type.getWidth(), type.getHeight());
+            }
+        }
+    }
+
+    /**
+     * Moves all characters on the battlefield by their velocity, multiplied by the speed scale.
+     * When damage is being tracked, the areas a moving character leaves and enters are marked dirty;
+     * characters that stand still, like Hello Kitty, cause no damage.
+     */
+    public void moveCharacters() {
+        if (damage != null) {
+            markMovingCharacters();
+            entities.moveAll(speedScale);
+            markMovingCharacters();
+        } else {
+            entities.moveAll(speedScale);
+        }
+    }
+
+    /**
+     * Marks the current bounds of every character that has a velocity dirty.
+     */
+    private void markMovingCharacters() {
+        for (int i = 0; i < entities.size(); i++) {
+            if (entities.getVelocityX(i) != 0 || entities.getVelocityY(i) != 0) {
+                damage.markDirty(entities.getX(i), entities.getY(i), entities.getWidth(i), entities.getHeight(i));
+            }
+        }
+    }
+
+    /**
+     * Retires characters that have moved entirely past the despawn boundary, which lies
+     * despawnMargin pixels outside the battlefield on every side. Despawned characters take
+     * no part in the collision check and are removed with the collision losers.
+     * Does nothing until the battlefield size is known.
+     */
+    private void despawnEscapedCharacters() {
+        int width = fieldWidth;
+        int height = fieldHeight;
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        int margin = despawnMargin;
+        int despawned = entities.markOutside(-margin, -margin, width + margin, height + margin);
+        if (despawned > 0) {
+            despawnedCount += despawned;
+            GameEventBus events = this.events;
+            if (events != null && events.hasSubscribers()) {
+                // Nothing else has been removed yet this tick, so every removed character escaped
+                for (int i = 0; i < entities.size(); i++) {
+                    if (entities.isRemoved(i)) {
+                        events.publishDespawn(tickCount, entities.getId(i), entities.getType(i), entities.getX(i),
+                                entities.getY(i));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks for collisions between characters and resolves them.
+     * The collision detector finds the overlapping pairs, in parallel for large populations, and
+     * reports them in the same order as a plain pairwise scan. The pairs are then resolved one by one
+     * with the RPSKL rules, skipping characters that already lost, so the outcome is the same on any
+     * number of cores. Losers are removed in a single pass once every pair has been resolved.
+     * With swept collisions the pairs cover the whole move of the tick and are resolved in the order
+     * the characters touched, so a character that lost earlier in the tick takes no part in later
+     * collisions, and fast characters cannot pass through each other unresolved.
+     */
+    public void checkForCollisions() {
+        int pairCount = sweptCollisions
+                ? collisionDetector.detectSwept(entities, speedScale)
+                : collisionDetector.detect(entities);
+        GameEventBus events = this.events;
+        int resolved = 0;
+        for (int p = 0; p < pairCount; p++) {
+            int i = collisionDetector.getFirst(p);
+            int j = collisionDetector.getSecond(p);
+            if (entities.isRemoved(i) || entities.isRemoved(j)) {
+                continue;
+            }
+            int outcome = resolveCollision(entities.getType(i), entities.getType(j));
+            if (outcome == 0) {
+                continue;
+            }
+            int winner = outcome == 1 ? i : j;
+            int loser = outcome == 1 ? j : i;
+            entities.markRemoved(loser);
+            resolved++;
+            if (events != null) {
+                events.publishCollision(tickCount, entities.getId(loser), entities.getType(loser), entities.getX(loser),
+                        entities.getY(loser), entities.getId(winner), entities.getType(winner));
+            }
+        }
+        collisionsResolved = resolved;
+        if (damage != null) {
+            for (int i = 0; i < entities.size(); i++) {
+                if (entities.isRemoved(i)) {
+                    damage.markDirty(entities.getX(i), entities.getY(i), entities.getWidth(i), entities.getHeight(i));
+                }
+            }
+        }
+        entities.compact();
+    }
+
+    /**
+     * Resolves a collision between two character types based on the RPSKL rules,
+     * which are a direct lookup by type ordinal in the CharacterType registry.
+     *
+     * @param type1 The type ordinal of the first character involved in the collision.
+     * @param type2 The type ordinal of the second character involved in the collision.
+     * @return 1 if the first character wins, -1 if the second character wins, or 0 for a tie.
+     */
+    public static int resolveCollision(int type1, int type2) {
+        return CharacterType.getOutcome(type1, type2);
+    }
+
+    /**
+     * Sets the size of the battlefield, which determines where the despawn boundary lies.
+     * May be called from any thread.
+     *
+     * @param width  The battlefield width in pixels.
+     * @param height The battlefield height in pixels.
+     */
+    public void setFieldSize(int width, int height) {
+        this.fieldWidth = width;
+        this.fieldHeight = height;
+    }
+
+    /**
+     * Gets the width of the battlefield.
+     * May be called from any thread.
+     *
+     * @return The battlefield width in pixels, or 0 if it is not known yet.
+     */
+    public int getFieldWidth() {
+        return fieldWidth;
+    }
+
+    /**
+     * Gets the height of the battlefield.
+     * May be called from any thread.
+     *
+     * @return The battlefield height in pixels, or 0 if it is not known yet.
+     */
+    public int getFieldHeight() {
+        return fieldHeight;
+    }
+
+    /**
+     * Sets the tracker that records which parts of the battlefield change during a tick:
+     * spawned characters, the old and new positions of moving characters, and removed characters.
+     * The tracker is only touched by step, on the thread that runs the engine, and is never cleared
+     * by the engine. Must be set before the first tick.
+     *
+     * @param damage The tracker to mark, or null to stop tracking.
+     */
+    public void setDamageTracker(DirtyRegionTracker damage) {
+        this.damage = damage;
+    }
+
+    /**
+     * Sets the metrics that measured ticks are recorded in. Ticks are only timed while the metrics
+     * are collecting, so the engine runs at full speed otherwise.
+     *
+     * @param metrics The metrics, or null to never measure ticks.
+     */
+    public void setMetrics(GameMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets the recorder that logs the characters joining the battlefield and the battlefield size
+     * of every tick, starting with the next tick.
+     *
+     * @param recorder The recorder, or null to stop recording. Closing it is up to the caller.
+     */
+    public void setRecorder(ReplayRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Sets the bus the engine publishes its spawns, collisions, despawns and tick ends to.
+     * Publishing never waits for the subscribers, so a slow subscriber cannot hold up a tick.
+     *
+     * @param events The event bus, or null to publish nothing.
+     */
+    public void setEventBus(GameEventBus events) {
+        this.events = events;
+    }
+
+    /**
+     * Gets how far outside the battlefield a character may travel before it is despawned.
+     *
+     * @return The distance in pixels beyond each edge of the battlefield.
+     */
+    public int getDespawnMargin() {
+        return despawnMargin;
+    }
+
+    /**
+     * Sets how far outside the battlefield a character may travel before it is despawned.
+     * May be called from any thread.
+     *
+     * @param despawnMargin The distance in pixels beyond each edge of the battlefield.
+     */
+    public void setDespawnMargin(int despawnMargin) {
+        this.despawnMargin = Math.max(0, despawnMargin);
+    }
+
+    /**
+     * Enables or disables parallel collision detection. Both modes produce identical results.
+     *
+     * @param parallel True to detect collisions on every core for large populations.
+     */
+    public void setParallelCollisions(boolean parallel) {
+        collisionDetector.setParallelEnabled(parallel);
+    }
+
+    /**
+     * Switches between discrete collisions, which only compare where characters are at the end of a
+     * tick, and swept collisions, which find every contact along the way. Swept collisions are needed
+     * once characters move further than their own size per tick.
+     * May be called from any thread; takes effect from the next tick.
+     *
+     * @param swept True to sweep the move of every tick.
+     */
+    public void setSweptCollisions(boolean swept) {
+        this.sweptCollisions = swept;
+    }
+
+    /**
+     * Checks whether collisions are detected over the whole move of a tick.
+     *
+     * @return True if swept collisions are enabled.
+     */
+    public boolean isSweptCollisions() {
+        return sweptCollisions;
+    }
+
+    /**
+     * Sets how many moves every tick covers. Running fewer ticks with a larger scale keeps the
+     * characters at the same on-screen speed for less CPU, and swept collisions keep the outcome correct.
+     * May be called from any thread; takes effect from the next tick.
+     *
+     * @param speedScale The number of moves per tick, at least 1.
+     */
+    public void setSpeedScale(int speedScale) {
+        this.speedScale = Math.max(1, speedScale);
+    }
+
+    /**
+     * Gets how many moves every tick covers.
+     *
+     * @return The speed scale, at least 1.
+     */
+    public int getSpeedScale() {
+        return speedScale;
+    }
+
+    /**
+     * Limits how many queued characters join the battlefield per tick, so a huge wave arrives over
+     * several ticks instead of stalling a single one.
+     *
+     * @param maxSpawnsPerTick The largest number of characters added per tick, or 0 for no limit.
+     */
+    public void setMaxSpawnsPerTick(int maxSpawnsPerTick) {
+        this.maxSpawnsPerTick = maxSpawnsPerTick > 0 ? maxSpawnsPerTick : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Gets the total number of characters despawned for leaving the battlefield.
+     * May be called from any thread.
+     *
+     * @return The despawn count since the engine was created.
+     */
+    public long getDespawnedCount() {
+        return despawnedCount;
+    }
+
+    /**
+     * Gets the number of collisions the last tick resolved, not counting ties.
+     *
+     * @return The number of characters that lost a collision in the last tick.
+     */
+    public int getCollisionsResolved() {
+        return collisionsResolved;
+    }
+
+    /**
+     * Gets the number of ticks run so far.
+     *
+     * @return The tick count.
+     */
+    public long getTickCount() {
+        return tickCount;
+    }
+
+    /**
+     * Gets the entity store holding the characters on the battlefield.
+     *
+     * @return The entity store.
+     */
+    public EntityStore getEntities() {
+        return entities;
+    }
+
+    /**
+     * Counts the characters of every type.
+     *
+     * @return The number of live characters, indexed by type ordinal.
+     */
+    public int[] countByType() {
+        int[] counts = new int[CharacterType.count()];
+        for (int i = 0; i < entities.size(); i++) {
+            counts[entities.getType(i)]++;
+        }
+        return counts;
+    }
+}
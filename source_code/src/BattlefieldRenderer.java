@@ -0,0 +1,68 @@
+import java.awt.Graphics2D;
+import java.awt.Image;
+
+/**
+ * BattlefieldRenderer draws a world snapshot with the shared character sprites.
+ * It holds no state of its own, so the same rendering code serves the on-screen battlefield
+ * and offscreen targets such as benchmarks.
+ */
+public final class BattlefieldRenderer {
+
+    private static volatile Image[] sprites = new Image[0];
+
+    /**
+     * BattlefieldRenderer only has static members and is never instantiated.
+     */
+    private BattlefieldRenderer() {
+    }
+
+    /**
+     * Gets the sprite drawn for a character type.
+     * Sprites are kept in an array indexed by type ordinal, which is refreshed when a new type appears.
+     *
+     * @param type The type ordinal.
+     * @return The shared, pre-scaled sprite.
+     */
+    public static Image getSprite(int type) {
+        Image[] current = sprites;
+        if (type >= current.length) {
+            current = new Image[CharacterType.count()];
+            for (int i = 0; i < current.length; i++) {
+                current[i] = CharacterType.get(i).getSprite();
+            }
+            sprites = current;
+        }
+        return current[type];
+    }
+
+    /**
+     * Draws every character of a snapshot that touches the given area. An indexed snapshot only has
+     * the characters around the area visited.
+     *
+     * @param g2       The Graphics2D object used for drawing.
+     * @param snapshot The snapshot to draw.
+     * @param left     The left edge of the area to draw.
+     * @param top      The top edge of the area to draw.
+     * @param right    The right edge of the area to draw.
+     * @param bottom   The bottom edge of the area to draw.
+     * @return The number of characters skipped because they lie outside the area.
+     */
+    public static int draw(Graphics2D g2, WorldSnapshot snapshot, int left, int top, int right, int bottom) {
+        boolean indexed = snapshot.isIndexed();
+        int count = indexed ? snapshot.select(left, top, right, bottom) : snapshot.getCount();
+        int culled = snapshot.getCount() - count;
+        Image[] current = sprites;
+        for (int k = 0; k < count; k++) {
+            int i = indexed ? snapshot.getSelected(k) : k;
+            int x = snapshot.getX(i);
+            int y = snapshot.getY(i);
+            if (x + snapshot.getWidth(i) <= left || x >= right || y + snapshot.getHeight(i) <= top || y >= bottom) {
+                culled++;
+                continue;
+            }
+            int type = snapshot.getType(i);
+            g2.drawImage(type < current.length ? current[type] : getSprite(type), x, y, null);
+        }
+        return culled;
+    }
+}
@@ -0,0 +1,492 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * BattlefieldShard runs one vertical strip of a sharded battle in its own JVM. The battlefield is cut
+ * into strips of equal width, the first and last stretching out to the despawn boundary, and every
+ * character belongs to the shard whose strip holds its left edge. A ShardCoordinator starts the
+ * ticks, hands out new characters and collects the survivors; neighbouring shards talk to each other
+ * directly over ShardLinks.
+ *
+ * <p>A tick runs in the same phases as BattlefieldEngine.step. New characters join, everything moves,
+ * and escaped characters despawn. Characters that crossed into a neighbouring strip are then handed
+ * off to its shard. Each shard sends its neighbours copies, called ghosts, of the characters close
+ * enough to the border to touch one of theirs, and finds the overlapping pairs among its own
+ * characters and the ghosts.
+ *
+ * <p>Resolving the pairs has to give exactly the result of the single engine, which resolves every pair
+ * of the battlefield in one sequence, ordered by the ids of the two characters, and skips characters
+ * that already lost earlier in the sequence. A pair that straddles a border is seen by both shards.
+ * Each shard applies the outcome only to its own character, so the collision is resolved once. Whether
+ * a ghost already lost depends on pairs only its own shard sees. Each shard therefore resolves its
+ * pairs with its best knowledge of when its ghosts lost, then swaps with its neighbours the point in
+ * the sequence at which each of their ghosts lost. It repeats this until no shard learns anything new.
+ * Every round settles at least the earliest pair that was still wrong. Most ticks need one or two
+ * rounds, and the result is exactly the single engine's.
+ *
+ * <p>Only discrete collisions are supported, and the battlefield size is fixed for the whole battle.
+ *
+ * <pre>
+ * java BattlefieldShard HOST:PORT
+ * </pre>
+ *
+ * Starts a shard that joins the coordinator listening on HOST:PORT, as BattleSimulator --shards does
+ * for every shard it launches.
+ */
+public class BattlefieldShard implements Closeable {
+
+    static final int TAG_END = 0;
+    static final int TAG_TICK = 1;
+
+    private static final long ALIVE = Long.MAX_VALUE;
+    private static final byte OWNED = 0;
+    private static final byte LEFT_GHOST = 1;
+    private static final byte RIGHT_GHOST = 2;
+
+    private final ShardLink coordinator;
+    private final ServerSocket server;
+    private ShardLink left;
+    private ShardLink right;
+    private int index;
+    private int fieldWidth;
+    private int fieldHeight;
+    private int despawnMargin;
+    private int speedScale;
+    private int stripLeft;
+    private int stripRight;
+    private int halo;
+
+    private EntityStore owned = new EntityStore();
+    private EntityStore spare = new EntityStore();
+    private final EntityStore fromLeft = new EntityStore(); // Migrants, then ghosts, from the left neighbour
+    private final EntityStore fromRight = new EntityStore();
+    private final EntityStore combined = new EntityStore();
+    private final CollisionDetector collisionDetector = new CollisionDetector();
+    private byte[] origin = new byte[0]; // Where each character of the last merge came from
+    private int[] source = new int[0]; // Its index in the store it came from
+    private int[] toLeft = new int[0];
+    private int[] toRight = new int[0];
+    private int toLeftCount;
+    private int toRightCount;
+    private long[] ownedRemoval = new long[0]; // Pair key at which each own character lost, or ALIVE
+    private long[] leftGhostRemoval = new long[0];
+    private long[] rightGhostRemoval = new long[0];
+
+    /**
+     * Constructor for BattlefieldShard. Joins the coordinator, receives the shard's strip and the
+     * battle settings, and connects to the neighbouring shards.
+     *
+     * @param coordinatorHost The host of the coordinator.
+     * @param coordinatorPort The port of the coordinator.
+     * @throws IOException If the coordinator or a neighbour cannot be reached.
+     */
+    public BattlefieldShard(String coordinatorHost, int coordinatorPort) throws IOException {
+        this.server = new ServerSocket(0);
+        this.coordinator = new ShardLink(new Socket(coordinatorHost, coordinatorPort));
+        try {
+            coordinator.writeVarint(server.getLocalPort());
+            coordinator.flush();
+            index = coordinator.readInt();
+            fieldWidth = coordinator.readInt();
+            fieldHeight = coordinator.readInt();
+            despawnMargin = coordinator.readInt();
+            speedScale = coordinator.readInt();
+            stripLeft = (int) coordinator.readSigned();
+            stripRight = (int) coordinator.readSigned();
+            String rightHost = coordinator.readString();
+            int rightPort = coordinator.readInt();
+            halo = maxWidth();
+
+            if (!rightHost.isEmpty()) {
+                Socket socket = new Socket();
+                socket.connect(new InetSocketAddress(rightHost, rightPort));
+                right = new ShardLink(socket);
+                right.writeVarint(index);
+                right.flush();
+            }
+            if (index > 0) {
+                left = new ShardLink(server.accept());
+                int leftIndex = left.readInt();
+                if (leftIndex != index - 1) {
+                    throw new IOException("Shard " + index + " was joined by shard " + leftIndex);
+                }
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * The main method that runs a shard until the coordinator ends the battle.
+     *
+     * @param args The address of the coordinator as HOST:PORT.
+     */
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        if (args.length != 1 || args[0].lastIndexOf(':') < 0) {
+            System.err.println("Usage: java BattlefieldShard HOST:PORT");
+            System.exit(2);
+        }
+        int colon = args[0].lastIndexOf(':');
+        try (BattlefieldShard shard = new BattlefieldShard(args[0].substring(0, colon),
+                Integer.parseInt(args[0].substring(colon + 1)))) {
+            shard.run();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs the ticks the coordinator starts, and sends it the surviving characters at the end.
+     *
+     * @throws IOException If a connection fails.
+     */
+    public void run() throws IOException {
+        while (coordinator.readInt() == TAG_TICK) {
+            step();
+        }
+        coordinator.writeEntities(owned);
+        coordinator.flush();
+    }
+
+    /**
+     * Runs a single tick. The characters that join in this tick are read from the coordinator first,
+     * and the number of collisions and despawns is reported to it at the end.
+     *
+     * @throws IOException If a connection fails.
+     */
+    private void step() throws IOException {
+        coordinator.readEntities(owned);
+        owned.moveAll(speedScale);
+        int despawned = owned.markOutside(-despawnMargin, -despawnMargin,
+                fieldWidth + despawnMargin, fieldHeight + despawnMargin);
+        owned.compact();
+        handOff();
+        exchangeGhosts();
+
+        int pairCount = collisionDetector.detect(combined);
+        boolean changed;
+        do {
+            resolve(pairCount);
+            changed = exchangeRemovals();
+            coordinator.writeVarint(changed ? 1 : 0);
+            coordinator.flush();
+        } while (coordinator.readInt() != 0);
+
+        int resolved = 0;
+        for (int i = 0; i < owned.size(); i++) {
+            if (ownedRemoval[i] != ALIVE) {
+                owned.markRemoved(i);
+                resolved++;
+            }
+        }
+        owned.compact();
+        coordinator.writeVarint(resolved);
+        coordinator.writeVarint(despawned);
+        coordinator.flush();
+    }
+
+    /**
+     * Hands the characters that moved out of the strip to the neighbouring shards, and takes in the
+     * ones that moved into it, keeping the shard's characters sorted by id.
+     *
+     * @throws IOException If a connection fails.
+     */
+    private void handOff() throws IOException {
+        toLeftCount = 0;
+        toRightCount = 0;
+        for (int i = 0; i < owned.size(); i++) {
+            int x = owned.getX(i);
+            if (x < stripLeft) {
+                toLeft = append(toLeft, toLeftCount++, i);
+            } else if (x >= stripRight) {
+                toRight = append(toRight, toRightCount++, i);
+            }
+        }
+        exchange(owned);
+        for (int k = 0; k < toLeftCount; k++) {
+            owned.markRemoved(toLeft[k]);
+        }
+        for (int k = 0; k < toRightCount; k++) {
+            owned.markRemoved(toRight[k]);
+        }
+        owned.compact();
+        if (fromLeft.size() > 0 || fromRight.size() > 0) {
+            mergeById(spare, owned, fromLeft, fromRight);
+            EntityStore merged = spare;
+            spare = owned;
+            owned = merged;
+        }
+    }
+
+    /**
+     * Sends the neighbours the characters close enough to the border to touch one of theirs, receives
+     * theirs as ghosts, and merges the shard's characters and the ghosts into the store the collision
+     * detector checks.
+     *
+     * @throws IOException If a connection fails.
+     */
+    private void exchangeGhosts() throws IOException {
+        toLeftCount = 0;
+        toRightCount = 0;
+        for (int i = 0; i < owned.size(); i++) {
+            if (left != null && owned.getX(i) < stripLeft + halo) {
+                toLeft = append(toLeft, toLeftCount++, i);
+            }
+            if (right != null && owned.getX(i) + owned.getWidth(i) > stripRight) {
+                toRight = append(toRight, toRightCount++, i);
+            }
+        }
+        exchange(owned);
+        mergeById(combined, owned, fromLeft, fromRight);
+
+        if (ownedRemoval.length < owned.size()) {
+            ownedRemoval = new long[Math.max(owned.size(), ownedRemoval.length * 2)];
+        }
+        if (leftGhostRemoval.length < fromLeft.size()) {
+            leftGhostRemoval = new long[Math.max(fromLeft.size(), leftGhostRemoval.length * 2)];
+        }
+        if (rightGhostRemoval.length < fromRight.size()) {
+            rightGhostRemoval = new long[Math.max(fromRight.size(), rightGhostRemoval.length * 2)];
+        }
+        Arrays.fill(leftGhostRemoval, 0, fromLeft.size(), ALIVE);
+        Arrays.fill(rightGhostRemoval, 0, fromRight.size(), ALIVE);
+    }
+
+    /**
+     * Sends the characters listed in toLeft and toRight to the neighbours and receives their lists into
+     * fromLeft and fromRight. The shard with the lower index always writes first, so two shards never
+     * wait on each other.
+     *
+     * @param entities The store the listed indices refer to.
+     * @throws IOException If a connection fails.
+     */
+    private void exchange(EntityStore entities) throws IOException {
+        fromLeft.clear();
+        fromRight.clear();
+        if (left != null) {
+            left.readEntities(fromLeft);
+            left.writeEntities(entities, toLeft, toLeftCount);
+            left.flush();
+        }
+        if (right != null) {
+            right.writeEntities(entities, toRight, toRightCount);
+            right.flush();
+            right.readEntities(fromRight);
+        }
+    }
+
+    /**
+     * Resolves the pairs found among the shard's characters and the ghosts in the order of the single
+     * engine, recording for each of the shard's characters the pair at which it lost.
+     * A ghost counts as lost before a pair if its shard last reported that it lost at an earlier pair.
+     * Pairs of two ghosts belong to other shards and are skipped.
+     *
+     * @param pairCount The number of pairs found.
+     */
+    private void resolve(int pairCount) {
+        Arrays.fill(ownedRemoval, 0, owned.size(), ALIVE);
+        for (int p = 0; p < pairCount; p++) {
+            int i = collisionDetector.getFirst(p);
+            int j = collisionDetector.getSecond(p);
+            if (origin[i] != OWNED && origin[j] != OWNED) {
+                continue;
+            }
+            long key = ((long) combined.getId(i) << 32) | combined.getId(j);
+            if (lostBefore(i, key) || lostBefore(j, key)) {
+                continue;
+            }
+            int outcome = BattlefieldEngine.resolveCollision(combined.getType(i), combined.getType(j));
+            if (outcome == 1 && origin[j] == OWNED) {
+                ownedRemoval[source[j]] = key;
+            } else if (outcome == -1 && origin[i] == OWNED) {
+                ownedRemoval[source[i]] = key;
+            }
+        }
+    }
+
+    /**
+     * Checks whether a character of the merged store lost a collision earlier in the sequence.
+     *
+     * @param c   The index of the character in the merged store.
+     * @param key The key of the pair being resolved.
+     * @return True if the character already lost.
+     */
+    private boolean lostBefore(int c, long key) {
+        switch (origin[c]) {
+            case OWNED:
+                // The shard's own characters can only have lost at an earlier pair of this pass
+                return ownedRemoval[source[c]] != ALIVE;
+            case LEFT_GHOST:
+                return leftGhostRemoval[source[c]] < key;
+            default:
+                return rightGhostRemoval[source[c]] < key;
+        }
+    }
+
+    /**
+     * Tells the neighbours at which pair each of their ghosts lost, and learns the same about the
+     * shard's ghosts. The ghosts are listed in the order they were sent.
+     *
+     * @return True if anything about the shard's ghosts changed.
+     * @throws IOException If a connection fails.
+     */
+    private boolean exchangeRemovals() throws IOException {
+        boolean changed = false;
+        if (left != null) {
+            changed |= readRemovals(left, leftGhostRemoval, fromLeft.size());
+            writeRemovals(left, toLeft, toLeftCount);
+            left.flush();
+        }
+        if (right != null) {
+            writeRemovals(right, toRight, toRightCount);
+            right.flush();
+            changed |= readRemovals(right, rightGhostRemoval, fromRight.size());
+        }
+        return changed;
+    }
+
+    /**
+     * Writes the pair at which each of a list of the shard's characters lost, as the pair key plus
+     * one, or zero for characters that are still alive.
+     *
+     * @param link    The link to write to.
+     * @param indices The indices of the characters.
+     * @param count   The number of characters.
+     * @throws IOException If the connection fails.
+     */
+    private void writeRemovals(ShardLink link, int[] indices, int count) throws IOException {
+        for (int k = 0; k < count; k++) {
+            long removal = ownedRemoval[indices[k]];
+            link.writeVarint(removal == ALIVE ? 0 : removal + 1);
+        }
+    }
+
+    /**
+     * Reads the pairs at which the ghosts from a neighbour lost.
+     *
+     * @param link     The link to read from.
+     * @param removals The removal keys of the ghosts, updated in place.
+     * @param count    The number of ghosts.
+     * @return True if any removal key changed.
+     * @throws IOException If the connection fails.
+     */
+    private static boolean readRemovals(ShardLink link, long[] removals, int count) throws IOException {
+        boolean changed = false;
+        for (int k = 0; k < count; k++) {
+            long value = link.readVarint();
+            long removal = value == 0 ? ALIVE : value - 1;
+            if (removals[k] != removal) {
+                removals[k] = removal;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Merges three stores that are each sorted by id into one, recording where every character came
+     * from in origin and source.
+     *
+     * @param target The store to fill; its previous contents are discarded.
+     * @param own    The shard's characters.
+     * @param first  The characters from the left neighbour.
+     * @param second The characters from the right neighbour.
+     */
+    private void mergeById(EntityStore target, EntityStore own, EntityStore first, EntityStore second) {
+        int total = own.size() + first.size() + second.size();
+        target.clear();
+        target.ensureCapacity(total);
+        if (origin.length < total) {
+            origin = new byte[Math.max(total, origin.length * 2)];
+            source = new int[origin.length];
+        }
+        int o = 0;
+        int l = 0;
+        int r = 0;
+        for (int c = 0; c < total; c++) {
+            int ownId = o < own.size() ? own.getId(o) : Integer.MAX_VALUE;
+            int leftId = l < first.size() ? first.getId(l) : Integer.MAX_VALUE;
+            int rightId = r < second.size() ? second.getId(r) : Integer.MAX_VALUE;
+            if (ownId <= leftId && ownId <= rightId) {
+                origin[c] = OWNED;
+                source[c] = o;
+                target.addFrom(own, o++);
+            } else if (leftId <= rightId) {
+                origin[c] = LEFT_GHOST;
+                source[c] = l;
+                target.addFrom(first, l++);
+            } else {
+                origin[c] = RIGHT_GHOST;
+                source[c] = r;
+                target.addFrom(second, r++);
+            }
+        }
+    }
+
+    /**
+     * Stores a value in a growable index list.
+     *
+     * @param list  The list.
+     * @param count The position to store the value at.
+     * @param value The value.
+     * @return The list, or a larger copy if it was full.
+     */
+    private static int[] append(int[] list, int count, int value) {
+        if (count == list.length) {
+            list = Arrays.copyOf(list, Math.max(16, count * 2));
+        }
+        list[count] = value;
+        return list;
+    }
+
+    /**
+     * Gets the largest width of any character type, which is how far past the border a character can
+     * reach into the neighbouring strip.
+     *
+     * @return The largest width in pixels.
+     */
+    static int maxWidth() {
+        int width = 0;
+        for (CharacterType type : CharacterType.values()) {
+            width = Math.max(width, type.getWidth());
+        }
+        return width;
+    }
+
+    /**
+     * Gets the largest distance any character type moves along the x axis in one move.
+     *
+     * @return The largest horizontal speed in pixels per move.
+     */
+    static int maxHorizontalSpeed() {
+        int speed = 0;
+        for (CharacterType type : CharacterType.values()) {
+            speed = Math.max(speed, Math.abs(type.getVelocityX()));
+        }
+        return speed;
+    }
+
+    /**
+     * Closes the connections to the coordinator and the neighbours.
+     *
+     * @throws IOException If a connection cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (left != null) {
+            left.close();
+        }
+        if (right != null) {
+            right.close();
+        }
+        coordinator.close();
+        server.close();
+    }
+}
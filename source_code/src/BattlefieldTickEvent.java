@@ -0,0 +1,51 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * BattlefieldTickEvent is the Java Flight Recorder event committed for every simulation tick while a
+ * recording has it enabled, for example with -XX:StartFlightRecording or from JDK Mission Control.
+ * It carries the phase timings and counters of the tick, so game loop stalls can be lined up with
+ * garbage collection, JIT and thread events in the same recording.
+ */
+@Name("rpskl.BattlefieldTick")
+@Label("Battlefield Tick")
+@Category({"RPSKL", "Game Loop"})
+@Description("Phase timings and counters of a single battlefield simulation tick")
+@StackTrace(false)
+public class BattlefieldTickEvent extends Event {
+
+    @Label("Tick")
+    long tick;
+
+    @Label("Spawn Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long spawnTime;
+
+    @Label("Move Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long moveTime;
+
+    @Label("Collision Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long collisionTime;
+
+    @Label("Entities")
+    int entities;
+
+    @Label("Pairs Tested")
+    long pairsTested;
+
+    @Label("Collisions Resolved")
+    int collisionsResolved;
+
+    @Label("Allocated")
+    @Description("Memory allocated by the simulation thread during the tick")
+    @DataAmount(DataAmount.BYTES)
+    long allocated;
+}
@@ -1,4 +1,5 @@
 import java.awt.Graphics2D;
+import java.awt.Point;
 import java.awt.Rectangle;
 
 /**
@@ -20,6 +21,13 @@ public interface CharacterShape {
      */
     void move();
 
+    /**
+     * Gets the velocity of the character shape.
+     *
+     * @return The distance moved along each axis by a single call to move.
+     */
+    Point getVelocity();
+
     /**
      * Gets the bounds of each shape to calculate collisions.
      *
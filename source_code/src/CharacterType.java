@@ -0,0 +1,256 @@
+import java.awt.Image;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * CharacterType is the registry of every kind of character in the RPSKL game.
+ * Each type carries a precomputed ordinal together with its sprite, dimensions and movement vector,
+ * and the outcome of a collision between two types is a direct lookup in a table indexed by ordinal.
+ * The five Sanrio characters are registered up front; further types can be added at startup with
+ * register and setOutcome, and the button panel, popup menu and battlefield pick them up automatically.
+ */
+public final class CharacterType {
+
+    private static final Object LOCK = new Object();
+    private static volatile CharacterType[] types = new CharacterType[0];
+    private static volatile int[][] outcomes = new int[0][0];
+    private static final Map<String, CharacterType> BY_NAME = new HashMap<>();
+
+    public static final CharacterType HELLO_KITTY = register("Hello Kitty", "hello_kitty.png", 75, 95, 0, 0);
+    public static final CharacterType MY_MELODY = register("My Melody", "my_melody.png", 80, 120, 0, 3);
+    public static final CharacterType BADTZ_MARU = register("Badtz Maru", "badtz.png", 75, 90, 3, 0);
+    public static final CharacterType CINNAMOROLL = register("Cinnamoroll", "cinnamoroll.png", 150, 120, 0, -3);
+    public static final CharacterType KUROMI = register("Kuromi", "kuromi.png", 80, 100, -3, 0);
+
+    static {
+        // Rock-paper-scissors-lizard-Spock: every type beats two others and loses to the remaining two
+        setOutcome(HELLO_KITTY, BADTZ_MARU);
+        setOutcome(HELLO_KITTY, KUROMI);
+        setOutcome(MY_MELODY, HELLO_KITTY);
+        setOutcome(MY_MELODY, CINNAMOROLL);
+        setOutcome(BADTZ_MARU, MY_MELODY);
+        setOutcome(BADTZ_MARU, KUROMI);
+        setOutcome(CINNAMOROLL, HELLO_KITTY);
+        setOutcome(CINNAMOROLL, BADTZ_MARU);
+        setOutcome(KUROMI, MY_MELODY);
+        setOutcome(KUROMI, CINNAMOROLL);
+    }
+
+    private final int ordinal;
+    private final String displayName;
+    private final String name;
+    private final String spriteFile;
+    private final int width;
+    private final int height;
+    private final int velocityX;
+    private final int velocityY;
+
+    /**
+     * Constructor for CharacterType. Types are only created through register.
+     *
+     * @param ordinal     The index of the type in the registry.
+     * @param displayName The name shown on buttons and menus.
+     * @param spriteFile  The image file of the sprite.
+     * @param width       The width the character is drawn and collides at.
+     * @param height      The height the character is drawn and collides at.
+     * @param velocityX   The horizontal distance travelled per tick.
+     * @param velocityY   The vertical distance travelled per tick.
+     */
+    private CharacterType(int ordinal, String displayName, String spriteFile, int width, int height,
+                          int velocityX, int velocityY) {
+        this.ordinal = ordinal;
+        this.displayName = displayName;
+        this.name = displayName.toLowerCase(Locale.ROOT);
+        this.spriteFile = spriteFile;
+        this.width = width;
+        this.height = height;
+        this.velocityX = velocityX;
+        this.velocityY = velocityY;
+    }
+
+    /**
+     * Registers a new character type. It ties with every existing type until setOutcome says otherwise.
+     *
+     * @param displayName The name shown on buttons and menus; must be unique ignoring case.
+     * @param spriteFile  The image file of the sprite.
+     * @param width       The width the character is drawn and collides at.
+     * @param height      The height the character is drawn and collides at.
+     * @param velocityX   The horizontal distance travelled per tick.
+     * @param velocityY   The vertical distance travelled per tick.
+     * @return The registered type.
+     */
+    public static CharacterType register(String displayName, String spriteFile, int width, int height,
+                                         int velocityX, int velocityY) {
+        synchronized (LOCK) {
+            if (BY_NAME.containsKey(displayName.toLowerCase(Locale.ROOT))) {
+                throw new IllegalArgumentException("Character type already registered: " + displayName);
+            }
+            int ordinal = types.length;
+            CharacterType type = new CharacterType(ordinal, displayName, spriteFile, width, height, velocityX, velocityY);
+
+            int[][] grown = new int[ordinal + 1][];
+            for (int i = 0; i < ordinal; i++) {
+                grown[i] = Arrays.copyOf(outcomes[i], ordinal + 1);
+            }
+            grown[ordinal] = new int[ordinal + 1];
+            outcomes = grown;
+
+            CharacterType[] registered = Arrays.copyOf(types, ordinal + 1);
+            registered[ordinal] = type;
+            types = registered;
+            BY_NAME.put(type.name, type);
+            BY_NAME.put(type.displayName, type);
+            return type;
+        }
+    }
+
+    /**
+     * Declares that one type beats another when they collide.
+     *
+     * @param winner The type that survives the collision.
+     * @param loser  The type that is removed.
+     */
+    public static void setOutcome(CharacterType winner, CharacterType loser) {
+        synchronized (LOCK) {
+            int[][] updated = outcomes.clone();
+            updated[winner.ordinal] = updated[winner.ordinal].clone();
+            updated[loser.ordinal] = updated[loser.ordinal].clone();
+            updated[winner.ordinal][loser.ordinal] = 1;
+            updated[loser.ordinal][winner.ordinal] = -1;
+            outcomes = updated;
+        }
+    }
+
+    /**
+     * Gets the outcome of a collision between two types.
+     *
+     * @param ordinal1 The ordinal of the first type.
+     * @param ordinal2 The ordinal of the second type.
+     * @return 1 if the first type wins, -1 if the second type wins, or 0 for a tie.
+     */
+    public static int getOutcome(int ordinal1, int ordinal2) {
+        return outcomes[ordinal1][ordinal2];
+    }
+
+    /**
+     * Gets the type with the given ordinal.
+     *
+     * @param ordinal The ordinal of the type.
+     * @return The registered type.
+     */
+    public static CharacterType get(int ordinal) {
+        return types[ordinal];
+    }
+
+    /**
+     * Looks a type up by name, ignoring case.
+     *
+     * @param name The display name or lower-case name of the type.
+     * @return The registered type, or null if there is none.
+     */
+    public static CharacterType forName(String name) {
+        synchronized (LOCK) {
+            CharacterType type = BY_NAME.get(name);
+            return type != null ? type : BY_NAME.get(name.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * Gets the number of registered types.
+     *
+     * @return The type count.
+     */
+    public static int count() {
+        return types.length;
+    }
+
+    /**
+     * Gets every registered type in ordinal order.
+     *
+     * @return An unmodifiable list of the types.
+     */
+    public static List<CharacterType> values() {
+        return Collections.unmodifiableList(Arrays.asList(types));
+    }
+
+    /**
+     * Gets the ordinal of this type, which indexes the outcome table and the entity store's type column.
+     *
+     * @return The ordinal.
+     */
+    public int getOrdinal() {
+        return ordinal;
+    }
+
+    /**
+     * Gets the name shown on buttons and menus, such as "Hello Kitty".
+     *
+     * @return The display name.
+     */
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    /**
+     * Gets the lower-case name returned by CharacterShape.getType, such as "hello kitty".
+     *
+     * @return The type name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the width the character is drawn and collides at.
+     *
+     * @return The width in pixels.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Gets the height the character is drawn and collides at.
+     *
+     * @return The height in pixels.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Gets the horizontal distance the character travels per tick.
+     *
+     * @return The horizontal velocity.
+     */
+    public int getVelocityX() {
+        return velocityX;
+    }
+
+    /**
+     * Gets the vertical distance the character travels per tick.
+     *
+     * @return The vertical velocity.
+     */
+    public int getVelocityY() {
+        return velocityY;
+    }
+
+    /**
+     * Gets the shared sprite of this type, scaled to its width and height.
+     *
+     * @return The cached sprite.
+     */
+    public Image getSprite() {
+        return SpriteCache.getSprite(spriteFile, width, height);
+    }
+
+    @Override
+    public String toString() {
+        return displayName;
+    }
+}
@@ -0,0 +1,460 @@
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * CollisionDetector finds every pair of overlapping entities in an EntityStore.
+ * Pairs are reported as (lower index, higher index) in ascending order, which is the order a plain
+ * pairwise scan would visit them in, so resolving them one after another gives the same result
+ * however they were found.
+ * Small populations are scanned on the calling thread. Large ones are split into vertical strips of
+ * grid cells that are scanned in parallel on the common fork/join pool, and the per-strip results are
+ * merged back into scan order afterwards, so the parallel path reports exactly the same pairs in
+ * exactly the same order as the sequential one. The strips, their buffers and the fork/join tasks
+ * that scan them are kept from one call to the next, so a steady population is scanned without
+ * allocating.
+ * Swept detection looks at the whole last step of every entity instead of only where it ended up,
+ * so fast entities cannot pass through each other between ticks. Its pairs are reported in order of
+ * time of impact, with pairs that touched at the same moment kept in scan order.
+ */
+public class CollisionDetector {
+
+    private static final int PARALLEL_THRESHOLD = 4096;
+    private static final int REGIONS_PER_CORE = 4;
+    private static final double TIME_RESOLUTION = 1 << 16;
+    private static final int SPINS_BEFORE_YIELD = 1000;
+
+    private final SpatialHashGrid grid = new SpatialHashGrid();
+    private final int parallelism;
+    private boolean parallelEnabled = true;
+    private int sweepScale;
+    private long[] impactOrder = new long[0];
+    private long[] sortedPairs = new long[0];
+
+    private final PairList result = new PairList();
+    private PairList[] regions = new PairList[0];
+    private final AtomicInteger pendingRegions = new AtomicInteger();
+    private EntityStore scanEntities; // The entities the strips of the current parallel scan check
+    private int[] regionOf = new int[0];
+
+    /**
+     * Constructor for CollisionDetector. Uses every available processor for large populations.
+     */
+    public CollisionDetector() {
+        this.parallelism = Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Enables or disables the parallel path. Both paths produce identical results.
+     *
+     * @param parallelEnabled True to scan large populations in parallel.
+     */
+    public void setParallelEnabled(boolean parallelEnabled) {
+        this.parallelEnabled = parallelEnabled;
+    }
+
+    /**
+     * Finds every overlapping pair of entities.
+     *
+     * @param entities The entities to check.
+     * @return The number of pairs found.
+     */
+    public int detect(EntityStore entities) {
+        sweepScale = 0;
+        int count = entities.size();
+        grid.clear(count, entities.getMaxDimension());
+        for (int i = 0; i < count; i++) {
+            grid.insert(i, entities.getX(i), entities.getY(i));
+        }
+        return collectPairs(entities, count);
+    }
+
+    /**
+     * Finds every pair of entities whose bounds overlapped at any point of their last step,
+     * ordered by the time they first touched.
+     * Each entity is placed in the grid by the box it swept during the step, and the cells are widened
+     * by the largest step so that the 3x3 block around a cell still covers every possible partner.
+     *
+     * @param entities The entities to check, already moved to the end of their step.
+     * @param scale    The number of moves the last step covered.
+     * @return The number of pairs found.
+     */
+    public int detectSwept(EntityStore entities, int scale) {
+        sweepScale = Math.max(1, scale);
+        int count = entities.size();
+        grid.clear(count, entities.getMaxDimension() + entities.getMaxSpeed() * sweepScale);
+        for (int i = 0; i < count; i++) {
+            int x = entities.getX(i);
+            int y = entities.getY(i);
+            grid.insert(i, Math.min(x, x - entities.getVelocityX(i) * sweepScale),
+                    Math.min(y, y - entities.getVelocityY(i) * sweepScale));
+        }
+        int pairCount = collectPairs(entities, count);
+        sortByTimeOfImpact(entities, pairCount);
+        return pairCount;
+    }
+
+    /**
+     * Collects the pairs of every entity once the grid has been filled.
+     *
+     * @param entities The entities to check.
+     * @param count    The number of entities.
+     * @return The number of pairs found.
+     */
+    private int collectPairs(EntityStore entities, int count) {
+        result.clear();
+        if (parallelEnabled && parallelism > 1 && count >= PARALLEL_THRESHOLD) {
+            detectParallel(entities, count);
+        } else {
+            for (int i = 0; i < count; i++) {
+                result.collect(entities, i);
+            }
+        }
+        return result.pairCount;
+    }
+
+    /**
+     * Reorders the pairs by time of impact.
+     * Times are quantized and packed above the scan position of each pair, so a single primitive sort
+     * orders the pairs by time and breaks ties by scan order, the same way on every run.
+     *
+     * @param entities  The entities that were checked.
+     * @param pairCount The number of pairs found.
+     */
+    private void sortByTimeOfImpact(EntityStore entities, int pairCount) {
+        if (impactOrder.length < pairCount) {
+            impactOrder = new long[Math.max(pairCount, impactOrder.length * 2)];
+        }
+        for (int p = 0; p < pairCount; p++) {
+            double time = entities.timeOfImpact(getFirst(p), getSecond(p), sweepScale);
+            impactOrder[p] = ((long) (time * TIME_RESOLUTION) << 32) | p;
+        }
+        heapSort(impactOrder, pairCount);
+
+        // Write into a spare buffer and swap it in, so no pair buffer is allocated per tick
+        long[] scanOrder = result.pairs;
+        if (sortedPairs.length < scanOrder.length) {
+            sortedPairs = new long[scanOrder.length];
+        }
+        for (int p = 0; p < pairCount; p++) {
+            sortedPairs[p] = scanOrder[(int) impactOrder[p]];
+        }
+        result.pairs = sortedPairs;
+        sortedPairs = scanOrder;
+    }
+
+    /**
+     * Sorts the start of an array into ascending order in place. Used instead of Arrays.sort, which
+     * allocates a merge buffer when the keys arrive in long ascending runs, as packed impact times
+     * often do.
+     *
+     * @param keys  The array to sort.
+     * @param count The number of keys at the start of the array to sort.
+     */
+    private static void heapSort(long[] keys, int count) {
+        for (int i = count / 2 - 1; i >= 0; i--) {
+            siftDown(keys, i, count);
+        }
+        for (int end = count - 1; end > 0; end--) {
+            long largest = keys[0];
+            keys[0] = keys[end];
+            keys[end] = largest;
+            siftDown(keys, 0, end);
+        }
+    }
+
+    /**
+     * Moves a key down a binary max-heap until neither child is larger.
+     *
+     * @param keys  The heap.
+     * @param index The index of the key to move.
+     * @param count The number of keys in the heap.
+     */
+    private static void siftDown(long[] keys, int index, int count) {
+        long key = keys[index];
+        int child;
+        while ((child = 2 * index + 1) < count) {
+            if (child + 1 < count && keys[child + 1] > keys[child]) {
+                child++;
+            }
+            if (keys[child] <= key) {
+                break;
+            }
+            keys[index] = keys[child];
+            index = child;
+        }
+        keys[index] = key;
+    }
+
+    /**
+     * Gets the number of pairs found by the last call to detect.
+     *
+     * @return The pair count.
+     */
+    public int getPairCount() {
+        return result.pairCount;
+    }
+
+    /**
+     * Gets the number of candidate pairs whose bounds were compared by the last call to detect.
+     * Compared with the pair count, this shows how well the spatial grid prunes the pairwise check.
+     *
+     * @return The number of pairs tested.
+     */
+    public long getPairsTested() {
+        return result.pairsTested;
+    }
+
+    /**
+     * Checks whether the last call was to detectSwept.
+     *
+     * @return True if the pairs are ordered by time of impact rather than scan order.
+     */
+    public boolean isSwept() {
+        return sweepScale > 0;
+    }
+
+    /**
+     * Gets the lower entity index of a pair.
+     *
+     * @param pair The index of the pair, between 0 and getPairCount() - 1.
+     * @return The index of the first entity.
+     */
+    public int getFirst(int pair) {
+        return (int) (result.pairs[pair] >>> 32);
+    }
+
+    /**
+     * Gets the higher entity index of a pair.
+     *
+     * @param pair The index of the pair, between 0 and getPairCount() - 1.
+     * @return The index of the second entity.
+     */
+    public int getSecond(int pair) {
+        return (int) result.pairs[pair];
+    }
+
+    /**
+     * Splits the battlefield into strips of cell columns, scans the strips in parallel and
+     * merges their pairs back into scan order.
+     *
+     * @param entities The entities to check.
+     * @param count    The number of entities.
+     */
+    private void detectParallel(EntityStore entities, int count) {
+        int minCell = Integer.MAX_VALUE;
+        int maxCell = Integer.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            minCell = Math.min(minCell, grid.getCellX(i));
+            maxCell = Math.max(maxCell, grid.getCellX(i));
+        }
+        long span = (long) maxCell - minCell + 1;
+        int regionCount = (int) Math.min(span, (long) parallelism * REGIONS_PER_CORE);
+        ensureRegions(regionCount, count);
+
+        // Distribute entities to strips in ascending index order
+        for (int r = 0; r < regionCount; r++) {
+            regions[r].clear();
+        }
+        for (int i = 0; i < count; i++) {
+            int region = (int) ((grid.getCellX(i) - (long) minCell) * regionCount / span);
+            regionOf[i] = region;
+            regions[region].addMember(i);
+        }
+
+        scanRegions(entities, regionCount);
+
+        // Each strip lists its pairs by ascending first index, so walking the entities in order
+        // and taking the next run from the owning strip restores the global scan order.
+        int total = 0;
+        for (int r = 0; r < regionCount; r++) {
+            total += regions[r].pairCount;
+            result.pairsTested += regions[r].pairsTested;
+        }
+        result.ensurePairCapacity(total);
+        for (int i = 0; i < count; i++) {
+            PairList region = regions[regionOf[i]];
+            while (region.cursor < region.pairCount && (int) (region.pairs[region.cursor] >>> 32) == i) {
+                result.pairs[result.pairCount++] = region.pairs[region.cursor++];
+            }
+        }
+    }
+
+    /**
+     * Scans every strip, forking all but the first to the common fork/join pool and scanning the
+     * first on the calling thread. Strips that no pool thread has picked up yet are taken back and
+     * scanned on the calling thread too. The calling thread then waits for the rest by spinning on a
+     * counter rather than joining, because a blocking join parks the thread with a freshly allocated
+     * wait node.
+     *
+     * @param entities    The entities to check.
+     * @param regionCount The number of strips.
+     */
+    private void scanRegions(EntityStore entities, int regionCount) {
+        scanEntities = entities;
+        pendingRegions.set(regionCount - 1);
+        for (int r = 1; r < regionCount; r++) {
+            regions[r].reinitialize();
+            regions[r].fork();
+        }
+        regions[0].scanMembers(entities);
+        for (int r = regionCount - 1; r >= 1; r--) {
+            if (regions[r].tryUnfork()) {
+                regions[r].invoke();
+            }
+        }
+        int spins = 0;
+        while (pendingRegions.get() > 0) {
+            if (++spins < SPINS_BEFORE_YIELD) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+        scanEntities = null;
+        for (int r = 1; r < regionCount; r++) {
+            if (regions[r].isCompletedAbnormally()) {
+                throw new IllegalStateException("Parallel collision scan failed", regions[r].getException());
+            }
+        }
+    }
+
+    /**
+     * Makes sure there are enough strips and a large enough strip lookup table.
+     *
+     * @param regionCount The number of strips needed.
+     * @param count       The number of entities.
+     */
+    private void ensureRegions(int regionCount, int count) {
+        if (regions.length < regionCount) {
+            PairList[] grown = Arrays.copyOf(regions, regionCount);
+            for (int r = regions.length; r < regionCount; r++) {
+                grown[r] = new PairList();
+            }
+            regions = grown;
+        }
+        if (regionOf.length < count) {
+            regionOf = new int[Math.max(count, regionOf.length * 2)];
+        }
+    }
+
+    /**
+     * PairList is a growable buffer of pairs packed as (first << 32 | second).
+     * Each parallel strip owns one, together with the entities it is responsible for,
+     * so strips never write to shared state. A strip is also the fork/join task that scans it.
+     */
+    private final class PairList extends RecursiveAction {
+
+        private long[] pairs = new long[64];
+        private int pairCount;
+        private long pairsTested;
+        private int[] members = new int[64];
+        private int memberCount;
+        private int cursor;
+
+        /**
+         * Empties the pair buffer and the member list.
+         */
+        void clear() {
+            pairCount = 0;
+            pairsTested = 0;
+            memberCount = 0;
+            cursor = 0;
+        }
+
+        /**
+         * Adds an entity to the strip.
+         *
+         * @param index The index of the entity.
+         */
+        void addMember(int index) {
+            if (memberCount == members.length) {
+                members = Arrays.copyOf(members, memberCount * 2);
+            }
+            members[memberCount++] = index;
+        }
+
+        /**
+         * Collects the pairs of every entity in the strip.
+         *
+         * @param entities The entities to check.
+         */
+        void scanMembers(EntityStore entities) {
+            for (int m = 0; m < memberCount; m++) {
+                collect(entities, members[m]);
+            }
+        }
+
+        /**
+         * Scans the strip as a fork/join task, checking the entities of the current parallel scan.
+         */
+        @Override
+        protected void compute() {
+            try {
+                scanMembers(scanEntities);
+            } finally {
+                pendingRegions.decrementAndGet();
+            }
+        }
+
+        /**
+         * Appends every pair (i, j) with j greater than i and overlapping bounds, sorted by j.
+         * Only the 3x3 block of cells around i has to be searched. In swept detection the bounds
+         * only need to have overlapped at some point of the last step.
+         *
+         * @param entities The entities to check.
+         * @param i        The index of the entity to find partners for.
+         */
+        void collect(EntityStore entities, int i) {
+            int firstPair = pairCount;
+            int cx = grid.getCellX(i);
+            int cy = grid.getCellY(i);
+            for (int ny = cy - 1; ny <= cy + 1; ny++) {
+                for (int nx = cx - 1; nx <= cx + 1; nx++) {
+                    for (int j = grid.firstInCell(nx, ny); j != -1; j = grid.nextInCell(j)) {
+                        if (j <= i) {
+                            continue;
+                        }
+                        pairsTested++;
+                        if (sweepScale == 0 ? entities.intersects(i, j) : entities.timeOfImpact(i, j, sweepScale) >= 0) {
+                            ensurePairCapacity(pairCount + 1);
+                            pairs[pairCount++] = ((long) i << 32) | j;
+                        }
+                    }
+                }
+            }
+            sortRun(firstPair, pairCount);
+        }
+
+        /**
+         * Sorts the pairs found for a single entity with an insertion sort.
+         * An entity only ever has a handful of overlaps, and sorting each run in place keeps the
+         * whole buffer in scan order without a global sort.
+         *
+         * @param from The index of the first pair in the run.
+         * @param to   The index one past the last pair in the run.
+         */
+        void sortRun(int from, int to) {
+            for (int p = from + 1; p < to; p++) {
+                long pair = pairs[p];
+                int q = p - 1;
+                while (q >= from && pairs[q] > pair) {
+                    pairs[q + 1] = pairs[q];
+                    q--;
+                }
+                pairs[q + 1] = pair;
+            }
+        }
+
+        /**
+         * Grows the pair buffer if it cannot hold the given number of pairs.
+         *
+         * @param capacity The number of pairs that must fit.
+         */
+        void ensurePairCapacity(int capacity) {
+            if (pairs.length < capacity) {
+                pairs = Arrays.copyOf(pairs, Math.max(capacity, pairs.length * 2));
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * DirtyRegionTracker records which parts of the battlefield changed since they were last painted.
+ * The battlefield is divided into square tiles, and every changed area marks the tiles it touches.
+ * When the damage is painted, neighbouring dirty tiles are merged into a few rectangles, so a
+ * battlefield where little moves only repaints the areas around the moving characters, and a
+ * battlefield where nothing moves does not repaint at all.
+ * A tracker is not thread-safe; to hand damage from one thread to another, collect it in a private
+ * tracker and merge it into a shared one with addAll while holding a lock on the shared tracker.
+ */
+public class DirtyRegionTracker {
+
+    private final int tileSize;
+    private int width;
+    private int height;
+    private int columns;
+    private int rows;
+    private boolean[] dirty = new boolean[0];
+    private int dirtyCount;
+
+    /**
+     * Constructor for DirtyRegionTracker.
+     *
+     * @param tileSize The side length of a tile in pixels.
+     */
+    public DirtyRegionTracker(int tileSize) {
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * Sets the size of the area being tracked. A change of size marks the whole area dirty.
+     *
+     * @param width  The width in pixels.
+     * @param height The height in pixels.
+     */
+    public void setSize(int width, int height) {
+        if (width == this.width && height == this.height) {
+            return;
+        }
+        this.width = width;
+        this.height = height;
+        columns = Math.max(0, (width + tileSize - 1) / tileSize);
+        rows = Math.max(0, (height + tileSize - 1) / tileSize);
+        dirty = new boolean[columns * rows];
+        markAll();
+    }
+
+    /**
+     * Marks every tile touched by a rectangle dirty. Parts of the rectangle outside the tracked area
+     * are ignored.
+     *
+     * @param x The x coordinate of the top-left corner.
+     * @param y The y coordinate of the top-left corner.
+     * @param w The width of the rectangle.
+     * @param h The height of the rectangle.
+     */
+    public void markDirty(int x, int y, int w, int h) {
+        if (dirtyCount == dirty.length || w <= 0 || h <= 0) {
+            return;
+        }
+        int firstColumn = Math.max(0, Math.floorDiv(x, tileSize));
+        int lastColumn = Math.min(columns - 1, Math.floorDiv(x + w - 1, tileSize));
+        int firstRow = Math.max(0, Math.floorDiv(y, tileSize));
+        int lastRow = Math.min(rows - 1, Math.floorDiv(y + h - 1, tileSize));
+        for (int row = firstRow; row <= lastRow; row++) {
+            int tile = row * columns + firstColumn;
+            for (int column = firstColumn; column <= lastColumn; column++, tile++) {
+                if (!dirty[tile]) {
+                    dirty[tile] = true;
+                    dirtyCount++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks the whole tracked area dirty.
+     */
+    public void markAll() {
+        Arrays.fill(dirty, true);
+        dirtyCount = dirty.length;
+    }
+
+    /**
+     * Adds the damage recorded by another tracker to this one.
+     * If the two trackers cover areas of different sizes, this tracker takes the other's size and
+     * is marked dirty entirely.
+     *
+     * @param other The tracker whose dirty tiles are added.
+     */
+    public void addAll(DirtyRegionTracker other) {
+        if (other.width != width || other.height != height || other.tileSize != tileSize) {
+            setSize(other.width, other.height);
+            markAll();
+            return;
+        }
+        if (other.dirtyCount == 0 || dirtyCount == dirty.length) {
+            return;
+        }
+        for (int tile = 0; tile < dirty.length; tile++) {
+            if (other.dirty[tile] && !dirty[tile]) {
+                dirty[tile] = true;
+                dirtyCount++;
+            }
+        }
+    }
+
+    /**
+     * Checks whether any tile is dirty.
+     *
+     * @return True if nothing needs to be painted.
+     */
+    public boolean isEmpty() {
+        return dirtyCount == 0;
+    }
+
+    /**
+     * Marks every tile clean.
+     */
+    public void clear() {
+        if (dirtyCount > 0) {
+            Arrays.fill(dirty, false);
+            dirtyCount = 0;
+        }
+    }
+
+    /**
+     * Merges the dirty tiles into rectangles and marks every tile clean.
+     * Each rectangle starts at the first dirty tile in reading order, grows right across the dirty
+     * tiles of its row and then down for as long as the whole span below is dirty.
+     * When the damage would need more than maxRegions rectangles, or covers more than half of the area,
+     * painting it piece by piece costs more than a single repaint, and no rectangles are produced.
+     *
+     * @param regions    The list the rectangles are added to.
+     * @param maxRegions The largest number of rectangles worth painting separately.
+     * @return True if the rectangles were produced, or false if the whole area should be repainted.
+     */
+    public boolean takeRegions(List<Rectangle> regions, int maxRegions) {
+        if (dirtyCount * 2 > dirty.length) {
+            clear();
+            return false;
+        }
+        int added = 0;
+        for (int tile = 0; tile < dirty.length && dirtyCount > 0; tile++) {
+            if (!dirty[tile]) {
+                continue;
+            }
+            if (added == maxRegions) {
+                clear();
+                return false;
+            }
+            int row = tile / columns;
+            int column = tile % columns;
+            int span = 1;
+            while (column + span < columns && dirty[tile + span]) {
+                span++;
+            }
+            int depth = 1;
+            while (row + depth < rows && isRunDirty((row + depth) * columns + column, span)) {
+                depth++;
+            }
+            for (int r = row; r < row + depth; r++) {
+                Arrays.fill(dirty, r * columns + column, r * columns + column + span, false);
+            }
+            dirtyCount -= span * depth;
+
+            int x = column * tileSize;
+            int y = row * tileSize;
+            regions.add(new Rectangle(x, y, Math.min(span * tileSize, width - x), Math.min(depth * tileSize, height - y)));
+            added++;
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether a run of tiles within one row is entirely dirty.
+     *
+     * @param from   The index of the first tile.
+     * @param length The number of tiles in the run.
+     * @return True if every tile of the run is dirty.
+     */
+    private boolean isRunDirty(int from, int length) {
+        for (int tile = from; tile < from + length; tile++) {
+            if (!dirty[tile]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,449 @@
+import java.util.Arrays;
+
+/**
+ * EntityStore keeps every character on the battlefield in a structure-of-arrays layout.
+ * Each property lives in its own primitive column indexed by entity, so moving, colliding and
+ * drawing the battlefield are tight loops over arrays instead of walks over heap objects.
+ * Removal is deferred: entities are flagged during a tick and squeezed out by compact(),
+ * which keeps the surviving entities in insertion order.
+ * Every entity also carries a stable id that survives compaction. Ids are handed out in insertion
+ * order, so a store that only ever appends is sorted by id, and entities can be matched up across
+ * stores, such as the shards of a sharded battle, and ordered the same way in each of them.
+ */
+public class EntityStore {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int size;
+    private int nextId;
+    private int maxDimension;
+    private int maxSpeed;
+    private int[] x = new int[INITIAL_CAPACITY];
+    private int[] y = new int[INITIAL_CAPACITY];
+    private int[] width = new int[INITIAL_CAPACITY];
+    private int[] height = new int[INITIAL_CAPACITY];
+    private int[] velocityX = new int[INITIAL_CAPACITY];
+    private int[] velocityY = new int[INITIAL_CAPACITY];
+    private int[] type = new int[INITIAL_CAPACITY];
+    private int[] id = new int[INITIAL_CAPACITY];
+    private boolean[] removed = new boolean[INITIAL_CAPACITY];
+
+    /**
+     * Adds a new entity to the end of the store, with the next unused id.
+     *
+     * @param x         The x coordinate of the top-left corner.
+     * @param y         The y coordinate of the top-left corner.
+     * @param width     The width of the entity.
+     * @param height    The height of the entity.
+     * @param velocityX The horizontal distance travelled per move.
+     * @param velocityY The vertical distance travelled per move.
+     * @param type      The type ordinal of the entity.
+     * @return The index of the new entity.
+     */
+    public int add(int x, int y, int width, int height, int velocityX, int velocityY, int type) {
+        return addWithId(nextId, x, y, width, height, velocityX, velocityY, type);
+    }
+
+    /**
+     * Adds an entity with a given id to the end of the store. Ids handed out by later calls to add
+     * are larger than this one.
+     *
+     * @param id        The stable id of the entity.
+     * @param x         The x coordinate of the top-left corner.
+     * @param y         The y coordinate of the top-left corner.
+     * @param width     The width of the entity.
+     * @param height    The height of the entity.
+     * @param velocityX The horizontal distance travelled per move.
+     * @param velocityY The vertical distance travelled per move.
+     * @param type      The type ordinal of the entity.
+     * @return The index of the new entity.
+     */
+    public int addWithId(int id, int x, int y, int width, int height, int velocityX, int velocityY, int type) {
+        if (size == this.x.length) {
+            grow();
+        }
+        int index = size++;
+        this.x[index] = x;
+        this.y[index] = y;
+        this.width[index] = width;
+        this.height[index] = height;
+        this.velocityX[index] = velocityX;
+        this.velocityY[index] = velocityY;
+        this.type[index] = type;
+        this.id[index] = id;
+        this.removed[index] = false;
+        nextId = Math.max(nextId, id + 1);
+        maxDimension = Math.max(maxDimension, Math.max(width, height));
+        maxSpeed = Math.max(maxSpeed, Math.max(Math.abs(velocityX), Math.abs(velocityY)));
+        return index;
+    }
+
+    /**
+     * Adds a copy of an entity of another store, with its id, to the end of this store.
+     *
+     * @param other The store holding the entity.
+     * @param index The index of the entity in the other store.
+     * @return The index of the copy in this store.
+     */
+    public int addFrom(EntityStore other, int index) {
+        return addWithId(other.id[index], other.x[index], other.y[index], other.width[index], other.height[index],
+                other.velocityX[index], other.velocityY[index], other.type[index]);
+    }
+
+    /**
+     * Removes every entity. Ids keep counting up from where they were.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Replaces the contents of this store with a copy of another store.
+     *
+     * @param other The store to copy.
+     */
+    public void copyFrom(EntityStore other) {
+        while (x.length < other.size) {
+            grow();
+        }
+        System.arraycopy(other.x, 0, x, 0, other.size);
+        System.arraycopy(other.y, 0, y, 0, other.size);
+        System.arraycopy(other.width, 0, width, 0, other.size);
+        System.arraycopy(other.height, 0, height, 0, other.size);
+        System.arraycopy(other.velocityX, 0, velocityX, 0, other.size);
+        System.arraycopy(other.velocityY, 0, velocityY, 0, other.size);
+        System.arraycopy(other.type, 0, type, 0, other.size);
+        System.arraycopy(other.id, 0, id, 0, other.size);
+        System.arraycopy(other.removed, 0, removed, 0, other.size);
+        size = other.size;
+        nextId = other.nextId;
+        maxDimension = other.maxDimension;
+        maxSpeed = other.maxSpeed;
+    }
+
+    /**
+     * Moves every entity by its velocity.
+     */
+    public void moveAll() {
+        moveAll(1);
+    }
+
+    /**
+     * Moves every entity by a multiple of its velocity, as if several moves happened at once.
+     *
+     * @param scale The number of moves to make in one step.
+     */
+    public void moveAll(int scale) {
+        for (int i = 0; i < size; i++) {
+            x[i] += velocityX[i] * scale;
+            y[i] += velocityY[i] * scale;
+        }
+    }
+
+    /**
+     * Moves a single entity by its velocity.
+     *
+     * @param index The index of the entity.
+     */
+    public void move(int index) {
+        x[index] += velocityX[index];
+        y[index] += velocityY[index];
+    }
+
+    /**
+     * Moves a single entity to a new position.
+     *
+     * @param index The index of the entity.
+     * @param x     The new x coordinate of the top-left corner.
+     * @param y     The new y coordinate of the top-left corner.
+     */
+    public void setPosition(int index, int x, int y) {
+        this.x[index] = x;
+        this.y[index] = y;
+    }
+
+    /**
+     * Flags every entity that lies entirely outside a rectangle for removal.
+     *
+     * @param left   The left edge of the rectangle.
+     * @param top    The top edge of the rectangle.
+     * @param right  The right edge of the rectangle.
+     * @param bottom The bottom edge of the rectangle.
+     * @return The number of entities newly flagged.
+     */
+    public int markOutside(int left, int top, int right, int bottom) {
+        int marked = 0;
+        for (int i = 0; i < size; i++) {
+            if (!removed[i] && (x[i] + width[i] <= left || x[i] >= right
+                    || y[i] + height[i] <= top || y[i] >= bottom)) {
+                removed[i] = true;
+                marked++;
+            }
+        }
+        return marked;
+    }
+
+    /**
+     * Tests whether the bounds of two entities overlap.
+     *
+     * @param i The index of the first entity.
+     * @param j The index of the second entity.
+     * @return True if the bounds intersect.
+     */
+    public boolean intersects(int i, int j) {
+        return x[i] < x[j] + width[j] && x[j] < x[i] + width[i]
+                && y[i] < y[j] + height[j] && y[j] < y[i] + height[i];
+    }
+
+    /**
+     * Finds when the bounds of two entities first touched during their last step.
+     * The step is taken to be a straight move of velocity * scale that ended at the current positions,
+     * so two fast entities that passed through each other between the start and the end of the step
+     * are still found, even though their bounds overlap at neither end.
+     * Bounds that merely touch edges do not overlap, as in intersects.
+     *
+     * @param i     The index of the first entity.
+     * @param j     The index of the second entity.
+     * @param scale The number of moves the last step covered.
+     * @return The fraction of the step, between 0 and 1, at which the bounds started to overlap,
+     *         or -1 if they did not overlap at any point of the step.
+     */
+    public double timeOfImpact(int i, int j, int scale) {
+        // Work in the frame of entity j, where only entity i moves
+        int dx = (velocityX[i] - velocityX[j]) * scale;
+        int dy = (velocityY[i] - velocityY[j]) * scale;
+        int startX = x[i] - velocityX[i] * scale - (x[j] - velocityX[j] * scale);
+        int startY = y[i] - velocityY[i] * scale - (y[j] - velocityY[j] * scale);
+
+        double enterX;
+        double exitX;
+        if (dx == 0) {
+            if (startX >= width[j] || -startX >= width[i]) {
+                return -1;
+            }
+            enterX = Double.NEGATIVE_INFINITY;
+            exitX = Double.POSITIVE_INFINITY;
+        } else {
+            double a = (double) (-width[i] - startX) / dx;
+            double b = (double) (width[j] - startX) / dx;
+            enterX = Math.min(a, b);
+            exitX = Math.max(a, b);
+        }
+
+        double enterY;
+        double exitY;
+        if (dy == 0) {
+            if (startY >= height[j] || -startY >= height[i]) {
+                return -1;
+            }
+            enterY = Double.NEGATIVE_INFINITY;
+            exitY = Double.POSITIVE_INFINITY;
+        } else {
+            double a = (double) (-height[i] - startY) / dy;
+            double b = (double) (height[j] - startY) / dy;
+            enterY = Math.min(a, b);
+            exitY = Math.max(a, b);
+        }
+
+        double enter = Math.max(enterX, enterY);
+        double exit = Math.min(exitX, exitY);
+        if (enter >= exit || enter >= 1 || exit <= 0) {
+            return -1;
+        }
+        return Math.max(enter, 0);
+    }
+
+    /**
+     * Flags an entity for removal by the next call to compact.
+     *
+     * @param index The index of the entity.
+     */
+    public void markRemoved(int index) {
+        removed[index] = true;
+    }
+
+    /**
+     * Checks whether an entity has been flagged for removal.
+     *
+     * @param index The index of the entity.
+     * @return True if the entity will be removed by the next compact.
+     */
+    public boolean isRemoved(int index) {
+        return removed[index];
+    }
+
+    /**
+     * Removes every flagged entity, keeping the survivors in their original order.
+     * Indices handed out before the call are no longer valid afterwards.
+     *
+     * @return The number of entities removed.
+     */
+    public int compact() {
+        int survivors = 0;
+        for (int i = 0; i < size; i++) {
+            if (removed[i]) {
+                continue;
+            }
+            if (survivors != i) {
+                x[survivors] = x[i];
+                y[survivors] = y[i];
+                width[survivors] = width[i];
+                height[survivors] = height[i];
+                velocityX[survivors] = velocityX[i];
+                velocityY[survivors] = velocityY[i];
+                type[survivors] = type[i];
+                id[survivors] = id[i];
+                removed[survivors] = false;
+            }
+            survivors++;
+        }
+        int removedCount = size - survivors;
+        size = survivors;
+        return removedCount;
+    }
+
+    /**
+     * Gets the number of entities in the store.
+     *
+     * @return The entity count.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the largest width or height of any entity added so far.
+     * Used as the cell size of the collision grid.
+     *
+     * @return The largest entity dimension.
+     */
+    public int getMaxDimension() {
+        return maxDimension;
+    }
+
+    /**
+     * Gets the largest horizontal or vertical speed of any entity added so far.
+     * Used to widen the collision grid cells when whole steps are swept.
+     *
+     * @return The largest distance travelled along either axis per move.
+     */
+    public int getMaxSpeed() {
+        return maxSpeed;
+    }
+
+    /**
+     * Gets the x coordinate of the top-left corner of an entity.
+     *
+     * @param index The index of the entity.
+     * @return The x coordinate.
+     */
+    public int getX(int index) {
+        return x[index];
+    }
+
+    /**
+     * Gets the y coordinate of the top-left corner of an entity.
+     *
+     * @param index The index of the entity.
+     * @return The y coordinate.
+     */
+    public int getY(int index) {
+        return y[index];
+    }
+
+    /**
+     * Gets the width of an entity.
+     *
+     * @param index The index of the entity.
+     * @return The width in pixels.
+     */
+    public int getWidth(int index) {
+        return width[index];
+    }
+
+    /**
+     * Gets the height of an entity.
+     *
+     * @param index The index of the entity.
+     * @return The height in pixels.
+     */
+    public int getHeight(int index) {
+        return height[index];
+    }
+
+    /**
+     * Gets the horizontal distance travelled per move by an entity.
+     *
+     * @param index The index of the entity.
+     * @return The horizontal velocity.
+     */
+    public int getVelocityX(int index) {
+        return velocityX[index];
+    }
+
+    /**
+     * Gets the vertical distance travelled per move by an entity.
+     *
+     * @param index The index of the entity.
+     * @return The vertical velocity.
+     */
+    public int getVelocityY(int index) {
+        return velocityY[index];
+    }
+
+    /**
+     * Gets the type ordinal of an entity.
+     *
+     * @param index The index of the entity.
+     * @return The type ordinal.
+     */
+    public int getType(int index) {
+        return type[index];
+    }
+
+    /**
+     * Gets the stable id of an entity.
+     *
+     * @param index The index of the entity.
+     * @return The id.
+     */
+    public int getId(int index) {
+        return id[index];
+    }
+
+    /**
+     * Makes sure the store can hold a number of entities without growing, so a large batch of
+     * additions copies every column at most once.
+     *
+     * @param capacity The number of entities.
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity > x.length) {
+            resize(Math.max(capacity, x.length * 2));
+        }
+    }
+
+    /**
+     * Doubles the capacity of every column.
+     */
+    private void grow() {
+        resize(x.length * 2);
+    }
+
+    /**
+     * Copies every column into an array of a new length.
+     *
+     * @param capacity The new capacity of the columns.
+     */
+    private void resize(int capacity) {
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        width = Arrays.copyOf(width, capacity);
+        height = Arrays.copyOf(height, capacity);
+        velocityX = Arrays.copyOf(velocityX, capacity);
+        velocityY = Arrays.copyOf(velocityY, capacity);
+        type = Arrays.copyOf(type, capacity);
+        id = Arrays.copyOf(id, capacity);
+        removed = Arrays.copyOf(removed, capacity);
+    }
+}
@@ -0,0 +1,125 @@
+import java.util.Arrays;
+
+/**
+ * FrameTimeStats keeps the timing of the most recent frames drawn by a render path, so the passive
+ * Swing path and the active BufferStrategy path can be compared on the same battlefield.
+ * For every frame it records how long the frame took to draw and how long it came after the
+ * previous one; a frame that comes more than one and a half target periods after its predecessor
+ * counts as dropped. Statistics are thread-safe, and recording is cheap enough to do every frame.
+ */
+public class FrameTimeStats {
+
+    private static final int HISTORY = 1024;
+
+    private final String name;
+    private final long targetPeriodNanos;
+    private final long[] drawTimes = new long[HISTORY];
+    private final long[] intervals = new long[HISTORY];
+    private long frameCount;
+    private long droppedFrames;
+    private long lastFrameStart;
+
+    /**
+     * Constructor for FrameTimeStats.
+     *
+     * @param name              The name of the render path, used in the summary.
+     * @param targetPeriodNanos The time between frames the render path aims for, in nanoseconds.
+     */
+    public FrameTimeStats(String name, long targetPeriodNanos) {
+        this.name = name;
+        this.targetPeriodNanos = targetPeriodNanos;
+    }
+
+    /**
+     * Records a finished frame.
+     *
+     * @param startNanos The System.nanoTime at which drawing of the frame started.
+     * @param endNanos   The System.nanoTime at which the frame was finished and shown.
+     */
+    public synchronized void record(long startNanos, long endNanos) {
+        int slot = (int) (frameCount % HISTORY);
+        drawTimes[slot] = endNanos - startNanos;
+        intervals[slot] = lastFrameStart == 0 ? targetPeriodNanos : startNanos - lastFrameStart;
+        if (intervals[slot] > targetPeriodNanos * 3 / 2) {
+            droppedFrames += Math.max(1, intervals[slot] / targetPeriodNanos - 1);
+        }
+        lastFrameStart = startNanos;
+        frameCount++;
+    }
+
+    /**
+     * Forgets the gap before the next frame, for example after the render path was idle on purpose.
+     * The next frame is then not counted as late.
+     */
+    public synchronized void resetInterval() {
+        lastFrameStart = 0;
+    }
+
+    /**
+     * Gets the number of frames recorded.
+     *
+     * @return The frame count.
+     */
+    public synchronized long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Gets the number of frames missed because a frame came late.
+     *
+     * @return The dropped frame count.
+     */
+    public synchronized long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Gets a percentile of the draw time of the recent frames.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     * @return The draw time in nanoseconds, or 0 if no frame has been recorded.
+     */
+    public synchronized long getDrawTimePercentile(double percentile) {
+        return percentile(drawTimes, percentile);
+    }
+
+    /**
+     * Gets a percentile of the time between the recent frames.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     * @return The frame interval in nanoseconds, or 0 if no frame has been recorded.
+     */
+    public synchronized long getIntervalPercentile(double percentile) {
+        return percentile(intervals, percentile);
+    }
+
+    /**
+     * Formats the statistics as a single line.
+     *
+     * @return A summary of the frame times in milliseconds.
+     */
+    public synchronized String summary() {
+        return String.format("%s: frames=%d dropped=%d draw p50=%.2fms p99=%.2fms interval p50=%.2fms p99=%.2fms",
+                name, frameCount, droppedFrames,
+                getDrawTimePercentile(50) / 1e6, getDrawTimePercentile(99) / 1e6,
+                getIntervalPercentile(50) / 1e6, getIntervalPercentile(99) / 1e6);
+    }
+
+    /**
+     * Computes a percentile over the recorded part of a history array.
+     *
+     * @param history    The history to read.
+     * @param percentile The percentile, between 0 and 100.
+     * @return The value at the percentile, or 0 if no frame has been recorded.
+     */
+    private long percentile(long[] history, double percentile) {
+        int recorded = (int) Math.min(frameCount, HISTORY);
+        if (recorded == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(history, recorded);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(recorded * percentile / 100.0) - 1;
+        return sorted[Math.max(0, Math.min(recorded - 1, index))];
+    }
+}
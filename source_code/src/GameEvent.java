@@ -0,0 +1,108 @@
+/**
+ * GameEvent is a view of one event read from a GameEventBus. Every subscription owns a single event
+ * object and fills it in before each call to its listener, so reading events allocates nothing.
+ * <p>
+ * SPAWN: a character joined the battlefield; the character fields describe it.
+ * COLLISION: a character lost a fight and was removed; the character fields describe the loser, at
+ * the position it lost at, and the other fields describe the winner.
+ * DESPAWN: a character left the battlefield and was removed; the character fields describe it.
+ * TICK_END: a tick finished; only the tick is set. Every event of a tick comes before its TICK_END.
+ */
+public final class GameEvent {
+
+    public static final int SPAWN = 1;
+    public static final int COLLISION = 2;
+    public static final int DESPAWN = 3;
+    public static final int TICK_END = 4;
+
+    long sequence;
+    int kind;
+    long tick;
+    int id;
+    int type;
+    int x;
+    int y;
+    int otherId;
+    int otherType;
+
+    /**
+     * Gets the position of the event in the stream of the bus, counting from 0.
+     *
+     * @return The sequence number.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Gets what happened.
+     *
+     * @return SPAWN, COLLISION, DESPAWN or TICK_END.
+     */
+    public int getKind() {
+        return kind;
+    }
+
+    /**
+     * Gets the tick the event happened in.
+     *
+     * @return The tick count before the tick finished.
+     */
+    public long getTick() {
+        return tick;
+    }
+
+    /**
+     * Gets the id of the character the event is about.
+     *
+     * @return The entity id.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Gets the type of the character the event is about.
+     *
+     * @return The type ordinal.
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * Gets the x coordinate of the character the event is about.
+     *
+     * @return The x coordinate of the top-left corner.
+     */
+    public int getX() {
+        return x;
+    }
+
+    /**
+     * Gets the y coordinate of the character the event is about.
+     *
+     * @return The y coordinate of the top-left corner.
+     */
+    public int getY() {
+        return y;
+    }
+
+    /**
+     * Gets the id of the winner of a collision.
+     *
+     * @return The entity id, or -1 for other kinds of event.
+     */
+    public int getOtherId() {
+        return otherId;
+    }
+
+    /**
+     * Gets the type of the winner of a collision.
+     *
+     * @return The type ordinal, or -1 for other kinds of event.
+     */
+    public int getOtherType() {
+        return otherType;
+    }
+}
@@ -0,0 +1,352 @@
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * GameEventBus carries the events of the battle from the simulation thread to any number of
+ * subscribers, each running on its own thread. Events are written into a ring of preallocated columns,
+ * one per field, and numbered in order; publishing one is a handful of array stores and an ordered
+ * write of the sequence number, so it allocates nothing and never waits for a subscriber.
+ * <p>
+ * Every subscriber reads the ring at its own pace. One that falls more than the capacity of the ring
+ * behind has the events it missed overwritten: it skips ahead to the oldest event still in the ring
+ * and is told how many it lost. A subscriber checks after reading each event that the event was not
+ * overwritten while it was being read, the same way StampedLock validates an optimistic read, so it
+ * never sees half of one event and half of another.
+ * <p>
+ * Only one thread may publish; see GameEvent for the kinds of event.
+ */
+public class GameEventBus {
+
+    static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private final int capacity;
+    private final int mask;
+    private final long[] ticks;
+    private final int[] kinds;
+    private final int[] ids;
+    private final int[] types;
+    private final int[] xs;
+    private final int[] ys;
+    private final int[] otherIds;
+    private final int[] otherTypes;
+    private final AtomicLong claimed = new AtomicLong(-1); // The last event the publisher started writing
+    private final AtomicLong published = new AtomicLong(-1); // The last event the publisher finished writing
+    private long next; // Only used by the publishing thread
+    private volatile Subscription[] subscriptions = new Subscription[0];
+
+    /**
+     * Constructor for GameEventBus with room for DEFAULT_CAPACITY events.
+     */
+    public GameEventBus() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor for GameEventBus.
+     *
+     * @param capacity The number of events the ring holds, rounded up to a power of two. A subscriber
+     *                 may fall this many events behind before it loses any.
+     */
+    public GameEventBus(int capacity) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Event bus capacity out of range: " + capacity);
+        }
+        this.capacity = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.ticks = new long[this.capacity];
+        this.kinds = new int[this.capacity];
+        this.ids = new int[this.capacity];
+        this.types = new int[this.capacity];
+        this.xs = new int[this.capacity];
+        this.ys = new int[this.capacity];
+        this.otherIds = new int[this.capacity];
+        this.otherTypes = new int[this.capacity];
+    }
+
+    /**
+     * Checks whether anyone is listening, so the publisher can skip work that only feeds events.
+     *
+     * @return True if there is at least one subscription.
+     */
+    public boolean hasSubscribers() {
+        return subscriptions.length > 0;
+    }
+
+    /**
+     * Publishes that a character joined the battlefield.
+     *
+     * @param tick The current tick.
+     * @param id   The id of the character.
+     * @param type The type ordinal of the character.
+     * @param x    The x coordinate of the character.
+     * @param y    The y coordinate of the character.
+     */
+    public void publishSpawn(long tick, int id, int type, int x, int y) {
+        publish(GameEvent.SPAWN, tick, id, type, x, y, -1, -1);
+    }
+
+    /**
+     * Publishes that a character lost a fight and was removed.
+     *
+     * @param tick       The current tick.
+     * @param id         The id of the loser.
+     * @param type       The type ordinal of the loser.
+     * @param x          The x coordinate of the loser.
+     * @param y          The y coordinate of the loser.
+     * @param winnerId   The id of the winner.
+     * @param winnerType The type ordinal of the winner.
+     */
+    public void publishCollision(long tick, int id, int type, int x, int y, int winnerId, int winnerType) {
+        publish(GameEvent.COLLISION, tick, id, type, x, y, winnerId, winnerType);
+    }
+
+    /**
+     * Publishes that a character left the battlefield and was removed.
+     *
+     * @param tick The current tick.
+     * @param id   The id of the character.
+     * @param type The type ordinal of the character.
+     * @param x    The x coordinate of the character.
+     * @param y    The y coordinate of the character.
+     */
+    public void publishDespawn(long tick, int id, int type, int x, int y) {
+        publish(GameEvent.DESPAWN, tick, id, type, x, y, -1, -1);
+    }
+
+    /**
+     * Publishes that a tick finished, and wakes the subscribers that are waiting for events. Idle
+     * subscribers sleep until then, so every tick must end with this call.
+     *
+     * @param tick The tick that finished.
+     */
+    public void publishTickEnd(long tick) {
+        publish(GameEvent.TICK_END, tick, -1, -1, 0, 0, -1, -1);
+        // Orders the sequence number before reading waiting; a subscriber writes waiting before reading it
+        VarHandle.fullFence();
+        for (Subscription subscription : subscriptions) {
+            if (subscription.waiting) {
+                LockSupport.unpark(subscription.thread);
+            }
+        }
+    }
+
+    /**
+     * Writes an event into the ring and makes it visible to the subscribers.
+     *
+     * @param kind      The kind of event.
+     * @param tick      The current tick.
+     * @param id        The id of the character.
+     * @param type      The type ordinal of the character.
+     * @param x         The x coordinate of the character.
+     * @param y         The y coordinate of the character.
+     * @param otherId   The id of the other character, or -1.
+     * @param otherType The type ordinal of the other character, or -1.
+     */
+    private void publish(int kind, long tick, int id, int type, int x, int y, int otherId, int otherType) {
+        long sequence = next++;
+        int slot = (int) sequence & mask;
+        // Announce the overwrite before touching the slot, so a subscriber still reading it can tell
+        claimed.lazySet(sequence);
+        VarHandle.storeStoreFence();
+        ticks[slot] = tick;
+        kinds[slot] = kind;
+        ids[slot] = id;
+        types[slot] = type;
+        xs[slot] = x;
+        ys[slot] = y;
+        otherIds[slot] = otherId;
+        otherTypes[slot] = otherType;
+        published.lazySet(sequence);
+    }
+
+    /**
+     * Gets the number of events published so far.
+     *
+     * @return The event count.
+     */
+    public long getPublishedCount() {
+        return published.get() + 1;
+    }
+
+    /**
+     * Gets the number of events the ring holds.
+     *
+     * @return The capacity, a power of two.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Starts a subscriber on a new daemon thread. It receives every event published from now on,
+     * until its subscription is closed.
+     *
+     * @param name     The name of the subscriber's thread.
+     * @param listener The listener called for every event.
+     * @return The subscription.
+     */
+    public Subscription subscribe(String name, GameEventListener listener) {
+        Subscription subscription = new Subscription(listener, published.get() + 1);
+        synchronized (this) {
+            Subscription[] grown = Arrays.copyOf(subscriptions, subscriptions.length + 1);
+            grown[grown.length - 1] = subscription;
+            subscriptions = grown;
+        }
+        subscription.thread = new Thread(subscription, name);
+        subscription.thread.setDaemon(true);
+        subscription.thread.start();
+        return subscription;
+    }
+
+    /**
+     * Removes a subscription from the list of subscribers that are woken at the end of every tick.
+     *
+     * @param subscription The subscription.
+     */
+    private synchronized void remove(Subscription subscription) {
+        Subscription[] current = subscriptions;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == subscription) {
+                Subscription[] shrunk = new Subscription[current.length - 1];
+                System.arraycopy(current, 0, shrunk, 0, i);
+                System.arraycopy(current, i + 1, shrunk, i, current.length - i - 1);
+                subscriptions = shrunk;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Subscription is one subscriber's position in the ring and the thread that reads from it.
+     */
+    public final class Subscription implements Runnable, AutoCloseable {
+
+        private final GameEventListener listener;
+        private final GameEvent event = new GameEvent();
+        private Thread thread;
+        private long cursor; // The next event to read
+        private volatile boolean running = true;
+        private volatile boolean waiting;
+        private volatile long lost;
+        private volatile long received;
+
+        /**
+         * Constructor for Subscription.
+         *
+         * @param listener The listener called for every event.
+         * @param cursor   The first event to read.
+         */
+        private Subscription(GameEventListener listener, long cursor) {
+            this.listener = listener;
+            this.cursor = cursor;
+        }
+
+        /**
+         * Reads events and hands them to the listener until the subscription is closed, sleeping while
+         * there is nothing to read until publishTickEnd or close wakes it.
+         */
+        @Override
+        public void run() {
+            while (running) {
+                long available = published.get();
+                if (cursor > available) {
+                    waiting = true;
+                    if (published.get() < cursor && running) {
+                        LockSupport.park(this);
+                    }
+                    waiting = false;
+                    continue;
+                }
+                long oldest = claimed.get() - capacity + 1;
+                if (cursor < oldest) {
+                    skip(oldest - cursor);
+                    cursor = oldest;
+                }
+                while (cursor <= available && running) {
+                    if (!read(cursor)) {
+                        break; // Overwritten while it was being read; skip ahead from the top
+                    }
+                    cursor++;
+                    received++;
+                    try {
+                        listener.onEvent(event);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Copies an event out of the ring and checks that it was not overwritten in the meantime.
+         *
+         * @param sequence The sequence number of the event.
+         * @return True if the copy is intact.
+         */
+        private boolean read(long sequence) {
+            int slot = (int) sequence & mask;
+            event.sequence = sequence;
+            event.tick = ticks[slot];
+            event.kind = kinds[slot];
+            event.id = ids[slot];
+            event.type = types[slot];
+            event.x = xs[slot];
+            event.y = ys[slot];
+            event.otherId = otherIds[slot];
+            event.otherType = otherTypes[slot];
+            VarHandle.loadLoadFence();
+            return claimed.get() - sequence < capacity;
+        }
+
+        /**
+         * Records and reports events that were overwritten before they could be read.
+         *
+         * @param count The number of events skipped.
+         */
+        private void skip(long count) {
+            lost += count;
+            try {
+                listener.onEventsLost(count);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Gets the number of events handed to the listener.
+         *
+         * @return The received count.
+         */
+        public long getReceived() {
+            return received;
+        }
+
+        /**
+         * Gets the number of events this subscriber fell too far behind to read.
+         *
+         * @return The lost count.
+         */
+        public long getLost() {
+            return lost;
+        }
+
+        /**
+         * Stops the subscriber and waits for its thread to finish the event it is handling.
+         */
+        @Override
+        public void close() {
+            running = false;
+            remove(this);
+            LockSupport.unpark(thread);
+            if (Thread.currentThread() != thread) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
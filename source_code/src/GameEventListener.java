@@ -0,0 +1,23 @@
+/**
+ * Interface for subscribers of a GameEventBus. A listener is called on the thread of its subscription,
+ * never on the simulation thread, so it may take as long as it needs; if it falls behind by more than
+ * the capacity of the bus, the events it missed are skipped and reported to onEventsLost.
+ */
+public interface GameEventListener {
+
+    /**
+     * Handles one event. The event object is reused for the next event, so it must not be kept.
+     *
+     * @param event The event.
+     */
+    void onEvent(GameEvent event);
+
+    /**
+     * Handles events that were overwritten before the listener got to them.
+     * Does nothing by default.
+     *
+     * @param count The number of events skipped.
+     */
+    default void onEventsLost(long count) {
+    }
+}
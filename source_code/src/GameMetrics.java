@@ -0,0 +1,357 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import jdk.jfr.EventType;
+
+/**
+ * GameMetrics collects timings and counters from the game loop: the spawn, move and collision phases
+ * of every tick, painting, the number of characters of each type, the candidate pairs the collision
+ * check compared, the collisions it resolved and the memory the simulation thread allocated.
+ * Samples are summed over one-second windows; at the end of each window the per-tick averages are
+ * published as an immutable summary, which the on-screen overlay and the JMX interface read.
+ * Every tick is also committed as a BattlefieldTickEvent while a flight recording enables it.
+ * Collection is off by default, and the engine then only checks isCollecting once per tick, so
+ * the instrumentation can stay in production builds. -Dbattlefield.metrics=true switches it on at startup.
+ */
+public class GameMetrics implements GameMetricsMXBean {
+
+    private static final String OBJECT_NAME = "rpskl:type=GameMetrics";
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final EventType TICK_EVENT = EventType.getEventType(BattlefieldTickEvent.class);
+    private static final com.sun.management.ThreadMXBean ALLOCATION = allocationBean();
+
+    private volatile boolean enabled = Boolean.getBoolean("battlefield.metrics");
+    private volatile Summary summary = new Summary();
+
+    // Window accumulators, guarded by this
+    private long windowStart;
+    private int ticks;
+    private long spawnNanos;
+    private long moveNanos;
+    private long collisionNanos;
+    private long pairsTested;
+    private long collisionsResolved;
+    private long allocatedBytes;
+    private int paints;
+    private long paintNanos;
+    private int[] typeCounts = new int[0];
+
+    /**
+     * Gets the thread bean if it can measure the memory allocated by a thread.
+     *
+     * @return The HotSpot thread bean, or null if allocation cannot be measured.
+     */
+    private static com.sun.management.ThreadMXBean allocationBean() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+            if (hotspot.isThreadAllocatedMemorySupported() && hotspot.isThreadAllocatedMemoryEnabled()) {
+                return hotspot;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the total memory the calling thread has allocated so far.
+     *
+     * @return The allocated bytes, or 0 if the JVM cannot measure it.
+     */
+    public static long threadAllocatedBytes() {
+        return ALLOCATION != null ? ALLOCATION.getCurrentThreadAllocatedBytes() : 0;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, so JMX clients can find them
+     * under rpskl:type=GameMetrics. Registering a second instance fails and is reported.
+     */
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Checks whether the current tick has to be measured, either for the overlay and JMX or
+     * because a flight recording has the tick event enabled.
+     *
+     * @return True if the tick should be measured and recorded.
+     */
+    public boolean isCollecting() {
+        return enabled || TICK_EVENT.isEnabled();
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public synchronized void setEnabled(boolean enabled) {
+        if (enabled && !this.enabled) {
+            resetWindow(0); // The first window starts with the next measured tick
+        }
+        this.enabled = enabled;
+    }
+
+    /**
+     * Records a measured tick. Called on the simulation thread.
+     *
+     * @param tick               The number of the tick.
+     * @param entities           The entity store after the tick.
+     * @param spawnNanos         The time spent adding queued characters.
+     * @param moveNanos          The time spent moving and despawning characters.
+     * @param collisionNanos     The time spent detecting and resolving collisions.
+     * @param pairsTested        The number of candidate pairs the collision check compared.
+     * @param collisionsResolved The number of collisions that removed a character.
+     * @param allocated          The memory allocated by the simulation thread during the tick, in bytes.
+     */
+    public void recordTick(long tick, EntityStore entities, long spawnNanos, long moveNanos, long collisionNanos,
+                           long pairsTested, int collisionsResolved, long allocated) {
+        if (TICK_EVENT.isEnabled()) {
+            BattlefieldTickEvent event = new BattlefieldTickEvent();
+            event.tick = tick;
+            event.spawnTime = spawnNanos;
+            event.moveTime = moveNanos;
+            event.collisionTime = collisionNanos;
+            event.entities = entities.size();
+            event.pairsTested = pairsTested;
+            event.collisionsResolved = collisionsResolved;
+            event.allocated = allocated;
+            event.commit();
+        }
+        if (!enabled) {
+            return;
+        }
+        long now = System.nanoTime();
+        synchronized (this) {
+            if (typeCounts.length != CharacterType.count()) {
+                typeCounts = new int[CharacterType.count()];
+            }
+            ticks++;
+            this.spawnNanos += spawnNanos;
+            this.moveNanos += moveNanos;
+            this.collisionNanos += collisionNanos;
+            this.pairsTested += pairsTested;
+            this.collisionsResolved += collisionsResolved;
+            this.allocatedBytes += allocated;
+            if (windowStart == 0) {
+                windowStart = now;
+            } else if (now - windowStart >= WINDOW_NANOS) {
+                countTypes(entities);
+                summary = new Summary(this, tick, entities.size(), now - windowStart);
+                resetWindow(now);
+            }
+        }
+    }
+
+    /**
+     * Records the time spent painting a frame. Called on the thread that paints.
+     *
+     * @param nanos The paint time in nanoseconds.
+     */
+    public void recordPaint(long nanos) {
+        if (!enabled) {
+            return;
+        }
+        synchronized (this) {
+            paints++;
+            paintNanos += nanos;
+        }
+    }
+
+    /**
+     * Counts the characters of every type into the type count array.
+     *
+     * @param entities The entity store to count.
+     */
+    private void countTypes(EntityStore entities) {
+        int[] counts = typeCounts;
+        Arrays.fill(counts, 0);
+        for (int i = 0; i < entities.size(); i++) {
+            counts[entities.getType(i)]++;
+        }
+    }
+
+    /**
+     * Starts a new window.
+     *
+     * @param now The System.nanoTime at which the window starts.
+     */
+    private void resetWindow(long now) {
+        windowStart = now;
+        ticks = 0;
+        spawnNanos = 0;
+        moveNanos = 0;
+        collisionNanos = 0;
+        pairsTested = 0;
+        collisionsResolved = 0;
+        allocatedBytes = 0;
+        paints = 0;
+        paintNanos = 0;
+    }
+
+    /**
+     * Gets the summary of the last completed window.
+     *
+     * @return The summary, empty until the first window has completed.
+     */
+    public Summary getSummary() {
+        return summary;
+    }
+
+    @Override
+    public long getTickCount() {
+        return summary.tick;
+    }
+
+    @Override
+    public double getTicksPerSecond() {
+        return summary.ticksPerSecond;
+    }
+
+    @Override
+    public double getSpawnMillis() {
+        return summary.spawnMillis;
+    }
+
+    @Override
+    public double getMoveMillis() {
+        return summary.moveMillis;
+    }
+
+    @Override
+    public double getCollisionMillis() {
+        return summary.collisionMillis;
+    }
+
+    @Override
+    public double getPaintMillis() {
+        return summary.paintMillis;
+    }
+
+    @Override
+    public double getPaintsPerSecond() {
+        return summary.paintsPerSecond;
+    }
+
+    @Override
+    public int getEntityCount() {
+        return summary.entityCount;
+    }
+
+    @Override
+    public Map<String, Integer> getEntityCountsByType() {
+        return summary.countsByType;
+    }
+
+    @Override
+    public long getPairsTestedPerTick() {
+        return summary.pairsTestedPerTick;
+    }
+
+    @Override
+    public double getCollisionsResolvedPerTick() {
+        return summary.collisionsResolvedPerTick;
+    }
+
+    @Override
+    public long getAllocationRate() {
+        return summary.allocationRate;
+    }
+
+    /**
+     * Summary holds the per-tick averages of one completed window.
+     */
+    public static final class Summary {
+
+        private final long tick;
+        private final double ticksPerSecond;
+        private final double spawnMillis;
+        private final double moveMillis;
+        private final double collisionMillis;
+        private final double paintMillis;
+        private final double paintsPerSecond;
+        private final int entityCount;
+        private final Map<String, Integer> countsByType;
+        private final long pairsTestedPerTick;
+        private final double collisionsResolvedPerTick;
+        private final long allocationRate;
+
+        /**
+         * Constructor for an empty Summary, used before the first window has completed.
+         */
+        Summary() {
+            this.tick = 0;
+            this.ticksPerSecond = 0;
+            this.spawnMillis = 0;
+            this.moveMillis = 0;
+            this.collisionMillis = 0;
+            this.paintMillis = 0;
+            this.paintsPerSecond = 0;
+            this.entityCount = 0;
+            this.countsByType = Collections.emptyMap();
+            this.pairsTestedPerTick = 0;
+            this.collisionsResolvedPerTick = 0;
+            this.allocationRate = ALLOCATION != null ? 0 : -1;
+        }
+
+        /**
+         * Constructor for Summary. Averages the accumulators of a window.
+         *
+         * @param window      The metrics holding the accumulators; its lock must be held.
+         * @param tick        The number of the last tick of the window.
+         * @param entityCount The number of characters after the last tick.
+         * @param windowNanos The length of the window in nanoseconds.
+         */
+        Summary(GameMetrics window, long tick, int entityCount, long windowNanos) {
+            int ticks = Math.max(1, window.ticks);
+            double seconds = windowNanos / 1e9;
+            this.tick = tick;
+            this.ticksPerSecond = window.ticks / seconds;
+            this.spawnMillis = window.spawnNanos / 1e6 / ticks;
+            this.moveMillis = window.moveNanos / 1e6 / ticks;
+            this.collisionMillis = window.collisionNanos / 1e6 / ticks;
+            this.paintMillis = window.paints > 0 ? window.paintNanos / 1e6 / window.paints : 0;
+            this.paintsPerSecond = window.paints / seconds;
+            this.entityCount = entityCount;
+            Map<String, Integer> counts = new LinkedHashMap<>();
+            for (int type = 0; type < window.typeCounts.length; type++) {
+                counts.put(CharacterType.get(type).getName(), window.typeCounts[type]);
+            }
+            this.countsByType = Collections.unmodifiableMap(counts);
+            this.pairsTestedPerTick = window.pairsTested / ticks;
+            this.collisionsResolvedPerTick = (double) window.collisionsResolved / ticks;
+            this.allocationRate = ALLOCATION != null ? (long) (window.allocatedBytes / seconds) : -1;
+        }
+
+        /**
+         * Formats the summary as the lines of the on-screen overlay.
+         *
+         * @return The overlay lines, one per type count after the headline figures.
+         */
+        public String[] toLines() {
+            String[] lines = new String[5 + countsByType.size()];
+            lines[0] = String.format("tick %d  %.1f ticks/s", tick, ticksPerSecond);
+            lines[1] = String.format("spawn %.2f ms  move %.2f ms  collide %.2f ms", spawnMillis, moveMillis, collisionMillis);
+            lines[2] = String.format("paint %.2f ms  %.1f paints/s", paintMillis, paintsPerSecond);
+            lines[3] = String.format("pairs tested %d/tick  resolved %.1f/tick", pairsTestedPerTick, collisionsResolvedPerTick);
+            lines[4] = allocationRate >= 0
+                    ? String.format("allocation %.2f MB/s  entities %d", allocationRate / 1e6, entityCount)
+                    : String.format("allocation n/a  entities %d", entityCount);
+            int line = 5;
+            for (Map.Entry<String, Integer> count : countsByType.entrySet()) {
+                lines[line++] = String.format("  %-12s %d", count.getKey(), count.getValue());
+            }
+            return lines;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+import java.util.Map;
+
+/**
+ * GameMetricsMXBean is the management interface through which JMX clients such as JConsole or
+ * VisualVM read the game loop metrics and switch their collection on and off.
+ * Timings and counters are averages per tick over the last completed one-second window.
+ */
+public interface GameMetricsMXBean {
+
+    /**
+     * Checks whether metrics are being collected.
+     *
+     * @return True if collection is switched on.
+     */
+    boolean isEnabled();
+
+    /**
+     * Switches metrics collection on or off. The on-screen overlay is shown while collection is on.
+     *
+     * @param enabled True to collect metrics.
+     */
+    void setEnabled(boolean enabled);
+
+    /**
+     * Gets the number of the last measured tick.
+     *
+     * @return The tick count.
+     */
+    long getTickCount();
+
+    /**
+     * Gets the rate at which ticks ran.
+     *
+     * @return The ticks per second.
+     */
+    double getTicksPerSecond();
+
+    /**
+     * Gets the time spent adding queued characters.
+     *
+     * @return The average spawn time per tick in milliseconds.
+     */
+    double getSpawnMillis();
+
+    /**
+     * Gets the time spent moving and despawning characters.
+     *
+     * @return The average move time per tick in milliseconds.
+     */
+    double getMoveMillis();
+
+    /**
+     * Gets the time spent detecting and resolving collisions.
+     *
+     * @return The average collision time per tick in milliseconds.
+     */
+    double getCollisionMillis();
+
+    /**
+     * Gets the time spent painting the battlefield.
+     *
+     * @return The average paint time per frame in milliseconds.
+     */
+    double getPaintMillis();
+
+    /**
+     * Gets the rate at which the battlefield was painted.
+     *
+     * @return The paints per second.
+     */
+    double getPaintsPerSecond();
+
+    /**
+     * Gets the number of characters on the battlefield.
+     *
+     * @return The character count after the last measured tick.
+     */
+    int getEntityCount();
+
+    /**
+     * Gets the number of characters of every type.
+     *
+     * @return The character count after the last measured tick, keyed by type name.
+     */
+    Map<String, Integer> getEntityCountsByType();
+
+    /**
+     * Gets the number of candidate pairs the collision check compared.
+     *
+     * @return The average pairs tested per tick.
+     */
+    long getPairsTestedPerTick();
+
+    /**
+     * Gets the number of collisions that removed a character.
+     *
+     * @return The average collisions resolved per tick.
+     */
+    double getCollisionsResolvedPerTick();
+
+    /**
+     * Gets the rate at which the simulation thread allocated memory.
+     *
+     * @return The allocation rate in bytes per second, or -1 if the JVM cannot measure it.
+     */
+    long getAllocationRate();
+}
@@ -0,0 +1,73 @@
+import java.util.Random;
+
+/**
+ * GameRandom hands out the random number generators of the game from a single session seed.
+ * Every subsystem, such as spawn positions, jump scare thresholds or video choice, gets its own
+ * generator derived from the seed and the subsystem name, so the numbers one subsystem draws do not
+ * depend on how many numbers another subsystem drew before it. Running with the same seed therefore
+ * repeats each subsystem's choices for the same sequence of player actions.
+ * The seed is taken from -Dbattlefield.seed when set, and chosen at random otherwise.
+ */
+public class GameRandom {
+
+    public static final String SPAWNS = "spawns";
+    public static final String WAVES = "waves";
+    public static final String JUMP_SCARES = "jump scares";
+    public static final String VIDEOS = "videos";
+
+    private final long seed;
+
+    /**
+     * Constructor for GameRandom.
+     *
+     * @param seed The session seed.
+     */
+    public GameRandom(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Creates the generators of a session seeded from -Dbattlefield.seed, or from a fresh random seed
+     * if the property is not set.
+     *
+     * @return The session generators.
+     */
+    public static GameRandom fromSystemProperty() {
+        Long seed = Long.getLong("battlefield.seed");
+        return new GameRandom(seed != null ? seed : new Random().nextLong());
+    }
+
+    /**
+     * Gets the session seed, which reproduces the session when passed as -Dbattlefield.seed.
+     *
+     * @return The seed.
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Creates the generator of a subsystem. Every call returns a new generator that starts at the
+     * beginning of the subsystem's sequence.
+     *
+     * @param subsystem The name of the subsystem, such as GameRandom.SPAWNS.
+     * @return A generator seeded from the session seed and the subsystem name.
+     */
+    public Random forSubsystem(String subsystem) {
+        return new Random(mix(seed + mix(subsystem.hashCode())));
+    }
+
+    /**
+     * Scrambles a value with the SplitMix64 finalizer, so seeds that differ in a single bit give
+     * unrelated generators.
+     *
+     * @param value The value to scramble.
+     * @return The scrambled value.
+     */
+    private static long mix(long value) {
+        long z = value + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
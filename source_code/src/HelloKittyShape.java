@@ -1,7 +1,6 @@
 import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.Point;
-import javax.swing.ImageIcon;
 import java.awt.Rectangle;
 
 /**
@@ -18,12 +17,14 @@ public class HelloKittyShape implements CharacterShape {
      */
     public HelloKittyShape(Point position) {
         this.position = position;
-        this.image = new ImageIcon("hello_kitty.png").getImage();
     }
 
     @Override
     public void draw(Graphics2D g2) {
-        g2.drawImage(image, position.x, position.y, STANDARD_WIDTH, STANDARD_HEIGHT, null);
+        if (image == null) {
+            image = TYPE.getSprite(); // Fetched on first draw so headless shapes never touch image files
+        }
+        g2.drawImage(image, position.x, position.y, null);
     }
 
     @Override
@@ -31,6 +32,11 @@ public class HelloKittyShape implements CharacterShape {
         // Hello Kitty does not move because she is sitting down
     }
 
+    @Override
+    public Point getVelocity() {
+        return new Point(TYPE.getVelocityX(), TYPE.getVelocityY());
+    }
+
     @Override
     public Rectangle getBounds() {
         return new Rectangle(position.x, position.y, STANDARD_WIDTH, STANDARD_HEIGHT);
@@ -38,11 +44,12 @@ public class HelloKittyShape implements CharacterShape {
 
     @Override
     public String getType() {
-        return "hello kitty";
+        return TYPE.getName();
     }
 
     private Point position;
     private Image image;
-    private static final int STANDARD_WIDTH = 75;
-    private static final int STANDARD_HEIGHT = 95;
+    private static final CharacterType TYPE = CharacterType.HELLO_KITTY;
+    private static final int STANDARD_WIDTH = TYPE.getWidth();
+    private static final int STANDARD_HEIGHT = TYPE.getHeight();
 }
\ No newline at end of file
@@ -1,7 +1,6 @@
 import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.Point;
-import javax.swing.ImageIcon;
 import java.awt.Rectangle;
 
 /**
@@ -18,18 +17,25 @@ public class KuromiShape implements CharacterShape {
      */
     public KuromiShape(Point position) {
         this.position = position;
-        this.image = new ImageIcon("kuromi.png").getImage();
     }
 
     @Override
     public void draw(Graphics2D g2) {
-        g2.drawImage(image, position.x, position.y, STANDARD_WIDTH, STANDARD_HEIGHT, null);
+        if (image == null) {
+            image = TYPE.getSprite(); // Fetched on first draw so headless shapes never touch image files
+        }
+        g2.drawImage(image, position.x, position.y, null);
     }
 
     @Override
     public void move() {
         // Kuromi moves from right to left
-        position.x -= MOVEMENT_SPEED;
+        position.translate(TYPE.getVelocityX(), TYPE.getVelocityY());
+    }
+
+    @Override
+    public Point getVelocity() {
+        return new Point(TYPE.getVelocityX(), TYPE.getVelocityY());
     }
 
     @Override
@@ -39,12 +45,12 @@ public class KuromiShape implements CharacterShape {
 
     @Override
     public String getType() {
-        return "kuromi";
+        return TYPE.getName();
     }
 
     private Point position;
     private Image image;
-    private static final int STANDARD_WIDTH = 80;
-    private static final int STANDARD_HEIGHT = 100;
-    private static final int MOVEMENT_SPEED = 3;
+    private static final CharacterType TYPE = CharacterType.KUROMI;
+    private static final int STANDARD_WIDTH = TYPE.getWidth();
+    private static final int STANDARD_HEIGHT = TYPE.getHeight();
 }
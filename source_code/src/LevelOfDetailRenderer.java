@@ -0,0 +1,420 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * LevelOfDetailRenderer draws a world snapshot with sprites where the battlefield is sparse and as
+ * density tiles where it is crowded. The area being drawn is split into square tiles on a fixed grid
+ * and every character is counted in the tile that holds its center, all in one pass over the snapshot.
+ * A tile with at least DENSE_COUNT characters is drawn as a single colored pixel of a small
+ * int[]-backed image, which is then scaled up onto the frame in one blit; only the characters in the
+ * remaining tiles are drawn as sprites. Past a few thousand characters almost every tile is dense,
+ * so the cost of a frame is the counting pass plus a fixed number of pixels, however many characters
+ * there are.
+ * <p>
+ * In TILES mode a dense tile takes the colors of the types in it, mixed by their counts, and grows more
+ * opaque as it gets more crowded. In HEATMAP mode the types are ignored and the color shows how crowded
+ * the tile is, in steps that double the count each. SPRITES mode draws every character as a sprite,
+ * exactly like BattlefieldRenderer.
+ * <p>
+ * The tile grid starts at 0,0 and a tile always counts every character centered in it, whatever area is
+ * being drawn, so repainting part of the battlefield gives a tile the same color as repainting all of
+ * it. Damaged regions should be widened with alignToTiles, since a character moving into a tile can
+ * change the color of all of it, and the sprites of the characters centered in a tile that turns dense
+ * or sparse reach past its edges. A renderer keeps its tile counts and image between frames
+ * and is not thread-safe; each drawing thread needs its own.
+ */
+public final class LevelOfDetailRenderer {
+
+    public static final int SPRITES = 0;
+    public static final int TILES = 1;
+    public static final int HEATMAP = 2;
+    private static final int MODE_COUNT = 3;
+
+    static final int TILE_SIZE = 64; // Side length of the tiles characters are counted in
+    static final int DENSE_COUNT = 4; // Characters in a tile from which it is drawn as a density tile
+    private static final int OPAQUE_COUNT = DENSE_COUNT * 16; // Count from which a TILES tile is opaque
+    private static final int MIN_ALPHA = 128;
+    private static final int[] HEAT = createHeatPalette(12);
+
+    private int mode;
+    private int[] counts = new int[0];
+    private int[] typeCounts = new int[0];
+    private int[] typeColors = new int[0];
+    private BufferedImage tiles;
+    private int[] pixels;
+    private int denseTiles;
+    private int reach; // Half the size of the largest character type
+
+    /**
+     * Constructor for LevelOfDetailRenderer.
+     *
+     * @param mode The initial mode: SPRITES, TILES or HEATMAP.
+     */
+    public LevelOfDetailRenderer(int mode) {
+        setMode(mode);
+    }
+
+    /**
+     * Parses a mode name as given on the command line.
+     *
+     * @param name        The name: sprites, tiles or heatmap, in any case; null for the default.
+     * @param defaultMode The mode returned when the name is null.
+     * @return The mode.
+     */
+    public static int parseMode(String name, int defaultMode) {
+        if (name == null) {
+            return defaultMode;
+        }
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "sprites":
+            case "off":
+                return SPRITES;
+            case "tiles":
+                return TILES;
+            case "heatmap":
+                return HEATMAP;
+            default:
+                throw new IllegalArgumentException("Unknown level of detail mode: " + name);
+        }
+    }
+
+    /**
+     * Gets the name of a mode.
+     *
+     * @param mode The mode.
+     * @return The name, as accepted by parseMode.
+     */
+    public static String getModeName(int mode) {
+        return mode == TILES ? "tiles" : mode == HEATMAP ? "heatmap" : "sprites";
+    }
+
+    /**
+     * Sets how crowded parts of the battlefield are drawn.
+     *
+     * @param mode SPRITES, TILES or HEATMAP.
+     */
+    public void setMode(int mode) {
+        if (mode < 0 || mode >= MODE_COUNT) {
+            throw new IllegalArgumentException("Unknown level of detail mode: " + mode);
+        }
+        this.mode = mode;
+    }
+
+    /**
+     * Gets how crowded parts of the battlefield are drawn.
+     *
+     * @return SPRITES, TILES or HEATMAP.
+     */
+    public int getMode() {
+        return mode;
+    }
+
+    /**
+     * Switches to the next mode, wrapping around after the last.
+     *
+     * @return The new mode.
+     */
+    public int nextMode() {
+        mode = (mode + 1) % MODE_COUNT;
+        return mode;
+    }
+
+    /**
+     * Gets the number of tiles the last frame drew as density tiles.
+     *
+     * @return The dense tile count.
+     */
+    public int getDenseTiles() {
+        return denseTiles;
+    }
+
+    /**
+     * Draws every character of a snapshot that touches the given area, as sprites in sparse tiles and
+     * as density tiles elsewhere. An indexed snapshot only has the characters around the area visited.
+     *
+     * @param g2       The Graphics2D object used for drawing.
+     * @param snapshot The snapshot to draw.
+     * @param left     The left edge of the area to draw.
+     * @param top      The top edge of the area to draw.
+     * @param right    The right edge of the area to draw.
+     * @param bottom   The bottom edge of the area to draw.
+     * @return The number of characters skipped because they lie outside the area.
+     */
+    public int draw(Graphics2D g2, WorldSnapshot snapshot, int left, int top, int right, int bottom) {
+        denseTiles = 0;
+        if (mode == SPRITES || right <= left || bottom <= top) {
+            return BattlefieldRenderer.draw(g2, snapshot, left, top, right, bottom);
+        }
+        int types = CharacterType.count();
+        updateTypes(types);
+        // The tiles reach far enough past the area to hold the center of every character that touches it
+        int firstColumn = Math.floorDiv(left - reach, TILE_SIZE);
+        int firstRow = Math.floorDiv(top - reach, TILE_SIZE);
+        int columns = Math.floorDiv(right + reach - 1, TILE_SIZE) - firstColumn + 1;
+        int rows = Math.floorDiv(bottom + reach - 1, TILE_SIZE) - firstRow + 1;
+        ensureCapacity(columns, rows, types);
+
+        // Count the characters of each tile, and of each type in it, in one pass
+        int tileCount = columns * rows;
+        Arrays.fill(counts, 0, tileCount, 0);
+        if (mode == TILES) {
+            Arrays.fill(typeCounts, 0, tileCount * types, 0);
+        }
+        boolean indexed = snapshot.isIndexed();
+        int count = indexed
+                ? snapshot.select(firstColumn * TILE_SIZE, firstRow * TILE_SIZE,
+                        (firstColumn + columns) * TILE_SIZE, (firstRow + rows) * TILE_SIZE)
+                : snapshot.getCount();
+        int culled = snapshot.getCount() - count;
+        for (int k = 0; k < count; k++) {
+            int i = indexed ? snapshot.getSelected(k) : k;
+            int x = snapshot.getX(i);
+            int y = snapshot.getY(i);
+            int width = snapshot.getWidth(i);
+            int height = snapshot.getHeight(i);
+            if (x + width <= left || x >= right || y + height <= top || y >= bottom) {
+                culled++;
+            }
+            int tile = tileOf(x + width / 2, y + height / 2, firstColumn, firstRow, columns, rows);
+            if (tile >= 0) {
+                counts[tile]++;
+                if (mode == TILES) {
+                    typeCounts[tile * types + snapshot.getType(i)]++;
+                }
+            }
+        }
+
+        int sparse = composeTiles(columns, rows, types);
+        if (denseTiles > 0) {
+            // Nearest neighbour scaling keeps the tiles sharp and is the cheapest way to blow them up
+            Object interpolation = g2.getRenderingHint(RenderingHints.KEY_INTERPOLATION);
+            g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+            int x = firstColumn * TILE_SIZE;
+            int y = firstRow * TILE_SIZE;
+            g2.drawImage(tiles, x, y, x + columns * TILE_SIZE, y + rows * TILE_SIZE, 0, 0, columns, rows, null);
+            if (interpolation != null) {
+                g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+            }
+        }
+        if (sparse > 0) {
+            drawSparse(g2, snapshot, count, left, top, right, bottom, firstColumn, firstRow, columns, rows);
+        }
+        return culled;
+    }
+
+    /**
+     * Finds the tile a point falls in.
+     *
+     * @param x           The x coordinate.
+     * @param y           The y coordinate.
+     * @param firstColumn The grid column of the first tile of the area.
+     * @param firstRow    The grid row of the first tile of the area.
+     * @param columns     The number of tile columns in the area.
+     * @param rows        The number of tile rows in the area.
+     * @return The tile index, row by row, or -1 if the point lies outside the tiles.
+     */
+    private static int tileOf(int x, int y, int firstColumn, int firstRow, int columns, int rows) {
+        int column = Math.floorDiv(x, TILE_SIZE) - firstColumn;
+        int row = Math.floorDiv(y, TILE_SIZE) - firstRow;
+        if (column < 0 || column >= columns || row < 0 || row >= rows) {
+            return -1;
+        }
+        return row * columns + column;
+    }
+
+    /**
+     * Widens a region to whole tiles of the grid, plus half the size of the largest character type, so
+     * the sprites that appear or vanish when a tile in it turns sparse or dense are repainted whole.
+     *
+     * @param region The region, widened in place.
+     * @return The same region.
+     */
+    public Rectangle alignToTiles(Rectangle region) {
+        updateTypes(CharacterType.count());
+        int left = Math.floorDiv(region.x, TILE_SIZE) * TILE_SIZE;
+        int top = Math.floorDiv(region.y, TILE_SIZE) * TILE_SIZE;
+        int right = Math.floorDiv(region.x + region.width + TILE_SIZE - 1, TILE_SIZE) * TILE_SIZE;
+        int bottom = Math.floorDiv(region.y + region.height + TILE_SIZE - 1, TILE_SIZE) * TILE_SIZE;
+        region.setBounds(left - reach, top - reach, right - left + 2 * reach, bottom - top + 2 * reach);
+        return region;
+    }
+
+    /**
+     * Writes the color of every tile into the tile image, leaving sparse tiles transparent.
+     *
+     * @param columns The number of tile columns.
+     * @param rows    The number of tile rows.
+     * @param types   The number of character types.
+     * @return The number of characters in sparse tiles.
+     */
+    private int composeTiles(int columns, int rows, int types) {
+        int sparse = 0;
+        for (int row = 0; row < rows; row++) {
+            int line = row * tiles.getWidth();
+            for (int column = 0; column < columns; column++) {
+                int tile = row * columns + column;
+                int count = counts[tile];
+                int color = 0;
+                if (count < DENSE_COUNT) {
+                    sparse += count;
+                } else {
+                    denseTiles++;
+                    color = mode == HEATMAP ? heatColor(count) : mixedColor(tile, count, types);
+                }
+                pixels[line + column] = color;
+            }
+        }
+        return sparse;
+    }
+
+    /**
+     * Mixes the colors of the types in a tile by their counts, more opaque the more crowded it is.
+     *
+     * @param tile  The tile index.
+     * @param count The number of characters in the tile.
+     * @param types The number of character types.
+     * @return The ARGB color.
+     */
+    private int mixedColor(int tile, int count, int types) {
+        int red = 0;
+        int green = 0;
+        int blue = 0;
+        int base = tile * types;
+        for (int type = 0; type < types; type++) {
+            int n = typeCounts[base + type];
+            if (n > 0) {
+                int rgb = typeColors[type];
+                red += n * ((rgb >> 16) & 0xFF);
+                green += n * ((rgb >> 8) & 0xFF);
+                blue += n * (rgb & 0xFF);
+            }
+        }
+        int crowding = Math.min(count, OPAQUE_COUNT) - DENSE_COUNT;
+        int alpha = MIN_ALPHA + (255 - MIN_ALPHA) * crowding / (OPAQUE_COUNT - DENSE_COUNT);
+        return alpha << 24 | (red / count) << 16 | (green / count) << 8 | blue / count;
+    }
+
+    /**
+     * Picks the heatmap color of a tile: one step for every doubling of the count past DENSE_COUNT.
+     *
+     * @param count The number of characters in the tile.
+     * @return The ARGB color.
+     */
+    private static int heatColor(int count) {
+        int step = 31 - Integer.numberOfLeadingZeros(count / DENSE_COUNT);
+        return HEAT[Math.min(step, HEAT.length - 1)];
+    }
+
+    /**
+     * Draws the characters that touch the area and are centered in a sparse tile as sprites.
+     *
+     * @param g2          The Graphics2D object used for drawing.
+     * @param snapshot    The snapshot to draw.
+     * @param count       The number of characters to visit: all of them, or the selection of an indexed
+     *                    snapshot made by draw.
+     * @param left        The left edge of the area to draw.
+     * @param top         The top edge of the area to draw.
+     * @param right       The right edge of the area to draw.
+     * @param bottom      The bottom edge of the area to draw.
+     * @param firstColumn The grid column of the first tile of the area.
+     * @param firstRow    The grid row of the first tile of the area.
+     * @param columns     The number of tile columns in the area.
+     * @param rows        The number of tile rows in the area.
+     */
+    private void drawSparse(Graphics2D g2, WorldSnapshot snapshot, int count, int left, int top, int right, int bottom,
+                            int firstColumn, int firstRow, int columns, int rows) {
+        boolean indexed = snapshot.isIndexed();
+        for (int k = 0; k < count; k++) {
+            int i = indexed ? snapshot.getSelected(k) : k;
+            int x = snapshot.getX(i);
+            int y = snapshot.getY(i);
+            int width = snapshot.getWidth(i);
+            int height = snapshot.getHeight(i);
+            if (x + width <= left || x >= right || y + height <= top || y >= bottom) {
+                continue;
+            }
+            int tile = tileOf(x + width / 2, y + height / 2, firstColumn, firstRow, columns, rows);
+            if (tile >= 0 && counts[tile] < DENSE_COUNT) {
+                Image sprite = BattlefieldRenderer.getSprite(snapshot.getType(i));
+                g2.drawImage(sprite, x, y, null);
+            }
+        }
+    }
+
+    /**
+     * Grows the tile counts and the tile image to fit an area.
+     *
+     * @param columns The number of tile columns.
+     * @param rows    The number of tile rows.
+     * @param types   The number of character types.
+     */
+    private void ensureCapacity(int columns, int rows, int types) {
+        int tileCount = columns * rows;
+        if (counts.length < tileCount) {
+            counts = new int[tileCount];
+        }
+        if (mode == TILES && typeCounts.length < tileCount * types) {
+            typeCounts = new int[tileCount * types];
+        }
+        if (tiles == null || tiles.getWidth() < columns || tiles.getHeight() < rows) {
+            int width = tiles == null ? columns : Math.max(columns, tiles.getWidth());
+            int height = tiles == null ? rows : Math.max(rows, tiles.getHeight());
+            tiles = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            pixels = ((DataBufferInt) tiles.getRaster().getDataBuffer()).getData();
+        }
+    }
+
+    /**
+     * Picks up the colors and sizes of character types registered since the last frame.
+     *
+     * @param types The number of character types.
+     */
+    private void updateTypes(int types) {
+        if (typeColors.length == types) {
+            return;
+        }
+        typeColors = new int[types];
+        reach = 0;
+        for (int type = 0; type < types; type++) {
+            typeColors[type] = typeColor(type);
+            CharacterType characterType = CharacterType.get(type);
+            reach = Math.max(reach, (Math.max(characterType.getWidth(), characterType.getHeight()) + 1) / 2);
+        }
+    }
+
+    /**
+     * Picks the color a type is shown in inside density tiles. Hues are spread by the golden ratio, so
+     * every new type gets a color well apart from the ones before it.
+     *
+     * @param type The type ordinal.
+     * @return The RGB color.
+     */
+    static int typeColor(int type) {
+        float hue = (type * 0.618034f) % 1f;
+        return Color.HSBtoRGB(hue, 0.65f, 0.95f) & 0xFFFFFF;
+    }
+
+    /**
+     * Creates the heatmap palette, running from a translucent blue for tiles just past DENSE_COUNT
+     * through green and yellow to an opaque red.
+     *
+     * @param steps The number of colors.
+     * @return The ARGB colors.
+     */
+    private static int[] createHeatPalette(int steps) {
+        int[] palette = new int[steps];
+        for (int step = 0; step < steps; step++) {
+            float heat = step / (float) (steps - 1);
+            int alpha = MIN_ALPHA + Math.round((255 - MIN_ALPHA) * heat);
+            palette[step] = alpha << 24 | (Color.HSBtoRGB(0.66f * (1f - heat), 0.9f, 1f) & 0xFFFFFF);
+        }
+        return palette;
+    }
+}
@@ -1,9 +1,17 @@
 import javax.swing.*;
 import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.File;
-import uk.co.caprica.vlcj.player.base.MediaPlayerEventAdapter;
-import uk.co.caprica.vlcj.player.component.EmbeddedMediaPlayerComponent;
-import uk.co.caprica.vlcj.player.base.MediaPlayer;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.UnsupportedAudioFileException;
 import kuusisto.tinysound.Music;
 import kuusisto.tinysound.TinySound;
 /**
@@ -16,97 +24,225 @@ import kuusisto.tinysound.TinySound;
 public class MainApplication extends JFrame {
     private static final int FRAME_WIDTH = 800;
     private static final int FRAME_HEIGHT = 600;
+    private static final String[] JUMP_SCARE_VIDEOS = {
+        "scary_video.mp4", "pikachu_cat_video.mp4", "jake_laugh_video.mp4", "minions_video.mp4",
+        "peter_griffin_video.mp4", "power_puff_video.mp4", "rick_video.mp4", "marko_video.mp4"
+    };
     private BattlefieldComponent battlefieldComponent;
     private MouseController mouseController;
+    private final GameRandom random = GameRandom.fromSystemProperty();
+    private final Random spawnRandom = random.forSubsystem(GameRandom.SPAWNS);
+    private final Random waveRandom = random.forSubsystem(GameRandom.WAVES);
+    private final Random jumpScareRandom = random.forSubsystem(GameRandom.JUMP_SCARES);
+    private final Random videoRandom = random.forSubsystem(GameRandom.VIDEOS);
     private int characterSpawnCount = 0;
-    private int jumpScareThreshold = (int) (Math.random() * 50);
-    private EmbeddedMediaPlayerComponent mediaPlayerComponent;
-    private Music backgroundMusic;
+    private int jumpScareThreshold = jumpScareRandom.nextInt(50);
+    private ReplayPlayer replay;
+    private GameEventBus.Subscription jumpScares;
+    private VideoPlayerPool videoPlayer;
+    private volatile Music backgroundMusic;
+    private final StartupPipeline startup;
+    private CompletableFuture<Void> musicLoaded;
+    private final SoundEffects soundEffects = new SoundEffects();
+    private CompletableFuture<Void> soundEffectsLoaded;
+    private CompletableFuture<Void> gameplayReady;
+    private final AtomicBoolean disposed = new AtomicBoolean();
+    private JPanel buttonPanel;
+    private JButton loadButton;
     public int firstJumpScare = 3;
 
     /**
      * The main method that launches the application.
+     * With -Dbattlefield.render=active the OpenGL pipeline is requested as well, unless the command line
+     * chooses a pipeline itself; the property has to be set before AWT starts, and Java2D falls back
+     * to its default pipeline if OpenGL is not available.
+     * Startup is timed from here; the breakdown is printed once the game is interactive.
+     * Every random choice of the session comes from one seed, which is printed at startup and can be
+     * passed back with -Dbattlefield.seed. -Dbattlefield.record=FILE records the battle to a replay log,
+     * and -Dbattlefield.replay=FILE plays one back, -Dbattlefield.replaySpeed times faster than real time.
      * @param args Command line arguments (not used).
      */
     public static void main(String[] args) {
+        if ("active".equals(System.getProperty("battlefield.render")) && System.getProperty("sun.java2d.opengl") == null) {
+            System.setProperty("sun.java2d.opengl", "true");
+        }
+        StartupPipeline startup = new StartupPipeline();
         SwingUtilities.invokeLater(() -> {
-            MainApplication app = new MainApplication();
+            MainApplication app = new MainApplication(startup);
             app.playIntroVideo("intro_video.mp4");
+            app.preloadVideos();
+            startup.finish("interactive");
         });
     }
 
     /**
-     * Constructor for MainApplication. Initializes the TinySound library, loads background music,
-     * sets up the frame size and default close operation, and initializes game components.
+     * Constructor for MainApplication. Starts loading the character sprites, the background music and
+     * the sound effects on background threads, sets up the video player, the frame size and default
+     * close operation, and initializes game components. The frame is shown straight away, but gameplay stays disabled
+     * until the sprites and the music have been loaded.
+     * @param startup The startup pipeline that loads the assets.
      */
-    public MainApplication() {
-        // Initialize components
-        TinySound.init();
-        try {
-            this.backgroundMusic = TinySound.loadMusic(new File("background_music.wav"));
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+    public MainApplication(StartupPipeline startup) {
+        this.startup = startup;
+        CompletableFuture<Void> spritesLoaded = startup.inBackground("sprites", SpriteCache::warmUp);
+        musicLoaded = startup.inBackground("music", this::loadBackgroundMusic);
+        soundEffectsLoaded = startup.inBackground("sound effects", () -> {
+            musicLoaded.handle((result, failure) -> null).join(); // Loading sounds needs TinySound
+            soundEffects.load();
+        });
+
+        long frameStart = System.nanoTime();
+        videoPlayer = new VideoPlayerPool(this);
         this.setSize(FRAME_WIDTH, FRAME_HEIGHT);
         this.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        this.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                dispose(); // Release native resources before EXIT_ON_CLOSE ends the JVM
+            }
+        });
         initializeComponents();
+        setupJumpScares();
+        soundEffects.subscribe(battlefieldComponent.getEventBus());
+        setupReplay();
+        setupSpectators();
         this.setVisible(true);
+        startup.record("frame", frameStart, System.nanoTime());
+
+        gameplayReady = startup.onEventThreadAfter("enable gameplay", this::enableGameplay, spritesLoaded, musicLoaded);
     }
 
     /**
-     * Plays the introductory video at the start of the game.
-     * @param videoPath The file path to the intro video.
+     * Initializes the TinySound library and opens the background music. Runs on a loader thread.
+     * The music is streamed from disk so it never sits fully decoded in memory; if no audio line can
+     * be opened for the stream, TinySound's own streaming mode is used instead.
      */
-    private void playIntroVideo(String videoPath) {
-        JDialog videoDialog = createVideoDialog();
-        mediaPlayerComponent = new EmbeddedMediaPlayerComponent();
-        videoDialog.add(mediaPlayerComponent);
-        videoDialog.setVisible(true);
+    private void loadBackgroundMusic() {
+        TinySound.init();
+        try {
+            this.backgroundMusic = new StreamingMusic(Paths.get("background_music.wav"));
+            return;
+        } catch (IOException | UnsupportedAudioFileException | LineUnavailableException | IllegalArgumentException e) {
+            e.printStackTrace();
+        }
+        try {
+            this.backgroundMusic = TinySound.loadMusic(new File("background_music.wav"), true);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
 
-        MediaPlayer mediaPlayer = mediaPlayerComponent.mediaPlayer();
-        mediaPlayer.media().start(videoPath);
+    /**
+     * Subscribes the jump scare check to the battlefield's events. The subscriber counts the characters
+     * that joined the battlefield in each tick on its own thread and hands the count of a tick to
+     * checkForJumpScare on the event dispatch thread, so spawning never waits for the check or a video.
+     */
+    private void setupJumpScares() {
+        jumpScares = battlefieldComponent.getEventBus().subscribe("jump-scares", new GameEventListener() {
+            private int spawned;
 
-        mediaPlayer.events().addMediaPlayerEventListener(new MediaPlayerEventAdapter() {
             @Override
-            public void finished(MediaPlayer mediaPlayer) {
-                SwingUtilities.invokeLater(() -> {
-                    mediaPlayer.controls().stop();
-                    videoDialog.dispose();
-                    startBackgroundMusic();
-                });
+            public void onEvent(GameEvent event) {
+                if (event.getKind() == GameEvent.SPAWN) {
+                    spawned++;
+                } else if (event.getKind() == GameEvent.TICK_END && spawned > 0) {
+                    int count = spawned;
+                    spawned = 0;
+                    SwingUtilities.invokeLater(() -> checkForJumpScare(count));
+                }
             }
         });
     }
 
     /**
-     * Creates a JDialog configured for video playback. This dialog is used for playing videos in full screen.
-     * @return The configured JDialog for video playback.
+     * Prints the session seed and starts recording or playing back a replay log if one was requested
+     * on the command line. A replay keeps the character buttons disabled, so player input cannot make
+     * the battle diverge from the recording.
      */
-    private JDialog createVideoDialog() {
-        JDialog dialog = new JDialog(this, "Video Playback", Dialog.ModalityType.MODELESS);
-        dialog.setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
+    private void setupReplay() {
+        System.out.println("Session seed: " + random.getSeed());
+        String replayFile = System.getProperty("battlefield.replay");
+        String recordFile = System.getProperty("battlefield.record");
+        try {
+            if (replayFile != null) {
+                replay = new ReplayPlayer(Paths.get(replayFile));
+                battlefieldComponent.playReplay(replay, Integer.getInteger("battlefield.replaySpeed", 1));
+            } else if (recordFile != null) {
+                battlefieldComponent.startRecording(Paths.get(recordFile), random.getSeed());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Starts streaming the battle to remote spectators if -Dbattlefield.spectatorPort is set.
+     */
+    private void setupSpectators() {
+        Integer port = Integer.getInteger("battlefield.spectatorPort");
+        if (port == null) {
+            return;
+        }
+        try {
+            SpectatorServer server = battlefieldComponent.startSpectatorServer(port);
+            System.out.println("Spectators can connect on port " + server.getPort());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-        GraphicsEnvironment ge = GraphicsEnvironment.getLocalGraphicsEnvironment();
-        GraphicsDevice gd = ge.getDefaultScreenDevice();
-        if (gd.isFullScreenSupported()) {
-            dialog.setUndecorated(true);
-            gd.setFullScreenWindow(dialog);
-        } else {
-            System.err.println("Full screen not supported");
-            dialog.setSize(FRAME_WIDTH, FRAME_HEIGHT); // Fallback to windowed mode
+    /**
+     * Opens and parses the jump scare videos. Queued behind the intro video on the event dispatch thread,
+     * so the intro starts first.
+     */
+    private void preloadVideos() {
+        startup.onEventThread("video metadata", () -> {
+            for (String video : JUMP_SCARE_VIDEOS) {
+                videoPlayer.preload(video);
+            }
+        });
+    }
+
+    /**
+     * Enables the character buttons and the battlefield menu once the assets are loaded.
+     * Load stays disabled while the battle is recorded, since a replay log cannot jump to a saved battle.
+     */
+    private void enableGameplay() {
+        if (replay != null) {
+            return;
+        }
+        for (Component button : buttonPanel.getComponents()) {
+            button.setEnabled(true);
         }
+        loadButton.setEnabled(!battlefieldComponent.isRecording());
+    }
 
-        dialog.setLocationRelativeTo(this);
-        return dialog;
+    /**
+     * Checks whether the assets needed for gameplay have been loaded and no replay is playing.
+     * @return True once characters may be spawned.
+     */
+    public boolean isGameplayReady() {
+        return replay == null && gameplayReady != null && gameplayReady.isDone();
+    }
+
+    /**
+     * Plays the introductory video at the start of the game.
+     * @param videoPath The file path to the intro video.
+     */
+    private void playIntroVideo(String videoPath) {
+        videoPlayer.play(videoPath, this::startBackgroundMusic);
     }
 
     /**
      * Starts playing the background music in a loop.
      */
     private void startBackgroundMusic() {
-        if (backgroundMusic != null) {
-            backgroundMusic.play(true); // Play in loop
-        }
+        // The intro can finish before the music has loaded; start it as soon as it has
+        musicLoaded.thenRunAsync(() -> {
+            if (backgroundMusic != null) {
+                backgroundMusic.play(true); // Play in loop
+            }
+        }, SwingUtilities::invokeLater);
     }
 
     /**
@@ -119,10 +255,34 @@ public class MainApplication extends JFrame {
     }
 
     /**
-     * Performs necessary cleanup operations. Shuts down the TinySound library and disposes the JFrame.
+     * Performs necessary cleanup operations. Stops the jump scare subscriber, finishes the replay log,
+     * disconnects the spectators, stops the sound effects,
+     * releases the video player, unloads the background music, shuts down the TinySound library and
+     * disposes the JFrame.
+     * Only the first call cleans up, since both closing the window and shutting down lead here.
      */
     @Override
     public void dispose() {
+        if (!disposed.compareAndSet(false, true)) {
+            return;
+        }
+        jumpScares.close();
+        battlefieldComponent.stopRecording();
+        battlefieldComponent.stopSpectatorServer();
+        if (replay != null) {
+            try {
+                replay.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        videoPlayer.release();
+        musicLoaded.handle((result, failure) -> null).join(); // TinySound must not shut down mid-init
+        soundEffectsLoaded.handle((result, failure) -> null).join();
+        soundEffects.close();
+        if (backgroundMusic != null) {
+            backgroundMusic.unload();
+        }
         TinySound.shutdown();
         super.dispose();
     }
@@ -145,7 +305,7 @@ public class MainApplication extends JFrame {
         battlefieldComponent = new BattlefieldComponent();
         this.add(battlefieldComponent);
 
-        JPanel buttonPanel = createButtonPanel();
+        buttonPanel = createButtonPanel();
         this.add(buttonPanel, BorderLayout.NORTH);
 
         mouseController = new MouseController(battlefieldComponent, this);
@@ -155,25 +315,107 @@ public class MainApplication extends JFrame {
     }
 
     /**
-     * Creates and configures a panel with buttons for character selection.
+     * Creates and configures a panel with a button for each registered character type, followed by
+     * buttons that save and load the battlefield.
+     * The buttons start disabled and are enabled once gameplay is ready.
      * @return A JPanel containing character selection buttons.
      */
     private JPanel createButtonPanel() {
         JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
-        String[] types = {"Hello Kitty", "My Melody", "Badtz Maru", "Cinnamoroll", "Kuromi"};
-        for (String type : types) {
-            JButton button = new JButton(type);
+        for (CharacterType type : CharacterType.values()) {
+            JButton button = new JButton(type.getDisplayName());
             button.addActionListener(e -> createAndAddRandomCharacter(type));
+            button.setEnabled(false);
             buttonPanel.add(button);
         }
+        JButton saveButton = new JButton("Save");
+        saveButton.addActionListener(e -> saveBattlefield());
+        saveButton.setEnabled(false);
+        buttonPanel.add(saveButton);
+        loadButton = new JButton("Load");
+        loadButton.addActionListener(e -> loadBattlefield());
+        loadButton.setEnabled(false);
+        buttonPanel.add(loadButton);
         return buttonPanel;
     }
 
+    /**
+     * Asks for a file and saves the battlefield and the jump scare counters to it.
+     * The battlefield is copied between two ticks and written on a background thread, so neither
+     * the simulation nor the user interface waits for the disk.
+     */
+    private void saveBattlefield() {
+        Path file = chooseSaveFile(true);
+        if (file == null) {
+            return;
+        }
+        int count = characterSpawnCount;
+        int threshold = jumpScareThreshold;
+        battlefieldComponent.captureState().thenAcceptAsync(save -> {
+            save.setJumpScareCounters(count, threshold);
+            long start = System.nanoTime();
+            try {
+                save.write(file);
+                System.out.printf("Saved %d characters to %s in %d ms%n", save.getEntities().size(), file,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Asks for a file and replaces the battlefield and the jump scare counters with the save in it.
+     * The file is read on a background thread, through a memory mapping unless
+     * -Dbattlefield.mappedLoad=false, and restored between two ticks.
+     * Does nothing while the battle is recorded.
+     */
+    private void loadBattlefield() {
+        if (battlefieldComponent.isRecording()) {
+            return;
+        }
+        Path file = chooseSaveFile(false);
+        if (file == null) {
+            return;
+        }
+        boolean mapped = !"false".equals(System.getProperty("battlefield.mappedLoad"));
+        CompletableFuture.supplyAsync(() -> {
+            long start = System.nanoTime();
+            try {
+                BattlefieldSave save = BattlefieldSave.read(file, mapped);
+                System.out.printf("Loaded %d characters from %s in %d ms%n", save.getEntities().size(), file,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                return save;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }).thenAcceptAsync(save -> {
+            if (save != null) {
+                battlefieldComponent.restoreState(save);
+                characterSpawnCount = save.getJumpScareCount();
+                jumpScareThreshold = save.getJumpScareThreshold();
+            }
+        }, SwingUtilities::invokeLater);
+    }
+
+    /**
+     * Shows a file chooser for battlefield saves.
+     * @param forSaving True to show a save dialog, false to show an open dialog.
+     * @return The chosen file, or null if the dialog was cancelled.
+     */
+    private Path chooseSaveFile(boolean forSaving) {
+        JFileChooser chooser = new JFileChooser(new File("."));
+        chooser.setSelectedFile(new File("battlefield.sav"));
+        int result = forSaving ? chooser.showSaveDialog(this) : chooser.showOpenDialog(this);
+        return result == JFileChooser.APPROVE_OPTION ? chooser.getSelectedFile().toPath() : null;
+    }
+
     /**
      * Creates and adds a random character to the game based on the selected type.
      * @param type The type of character to create.
      */
-    private void createAndAddRandomCharacter(String type) {
+    private void createAndAddRandomCharacter(CharacterType type) {
         Point randomPoint = getRandomPointInBattlefield();
         mouseController.createAndAddCharacter(randomPoint, type);
     }
@@ -183,48 +425,61 @@ public class MainApplication extends JFrame {
      * @return A randomly generated Point within the battlefield.
      */
     private Point getRandomPointInBattlefield() {
-        int x = (int) (Math.random() * battlefieldComponent.getWidth());
-        int y = (int) (Math.random() * battlefieldComponent.getHeight());
+        int x = spawnRandom.nextInt(Math.max(1, battlefieldComponent.getWidth()));
+        int y = spawnRandom.nextInt(Math.max(1, battlefieldComponent.getHeight()));
         return new Point(x, y);
     }
 
 
     /**
-     * Checks the game state for a jump scare condition. If the condition is met,
-     * it stops the background music and plays one of three random videos, resetting the count.
+     * Spawns a wave of characters spread evenly over the battlefield in a single batch.
+     * @param type  The type of the characters.
+     * @param count The number of characters to spawn.
+     */
+    public void spawnUniformWave(CharacterType type, int count) {
+        spawnWave(SpawnBatch.uniform(type, count, battlefieldComponent.getWidth(), battlefieldComponent.getHeight(),
+                waveRandom));
+    }
+
+    /**
+     * Spawns a wave of characters clustered around a point in a single batch.
+     * @param type   The type of the characters.
+     * @param count  The number of characters to spawn.
+     * @param center The point the wave is centered on.
+     * @param spread The standard deviation of the distance from the center, in pixels.
+     */
+    public void spawnGaussianWave(CharacterType type, int count, Point center, double spread) {
+        spawnWave(SpawnBatch.gaussian(type, count, center.x, center.y, spread, waveRandom));
+    }
+
+    /**
+     * Hands a batch of characters to the battlefield. The characters count towards the next jump scare
+     * once they have joined the battlefield.
+     * @param batch The characters to spawn.
+     */
+    public void spawnWave(SpawnBatch batch) {
+        battlefieldComponent.spawnBatch(batch);
+    }
+
+    /**
+     * Counts a number of spawned characters towards the jump scare condition. If the condition is met,
+     * it stops the background music and plays one of the random videos, resetting the count.
+     * The characters that join in one tick count at once, so a wave that carries the count past the
+     * threshold plays a single jump scare, and the count starts over from zero after it.
      * This functionality is continuous (random indefinitely until program is closed).
+     * Runs on the event dispatch thread, called by the jump scare subscriber.
+     * @param count The number of characters spawned.
      */
-    public void checkForJumpScare() {
-        characterSpawnCount++;
-        if (characterSpawnCount == jumpScareThreshold) {
+    public void checkForJumpScare(int count) {
+        int previousCount = characterSpawnCount;
+        characterSpawnCount += count;
+        if (previousCount < jumpScareThreshold && characterSpawnCount >= jumpScareThreshold) {
             stopBackgroundMusic();
-            int videoChoice = (int) (Math.random() * 8);
-            switch (videoChoice) {
-                case 0:
-                    playJumpScareVideo("scary_video.mp4");
-                    break;
-                case 1: playJumpScareVideo("pikachu_cat_video.mp4");
-                    break;
-                case 2:
-                    playJumpScareVideo("jake_laugh_video.mp4");
-                    break;
-                case 3:
-                    playJumpScareVideo("minions_video.mp4");
-                    break;
-                case 4:
-                    playJumpScareVideo("peter_griffin_video.mp4");
-                    break;
-                case 5:
-                    playJumpScareVideo("power_puff_video.mp4");
-                    break;
-                case 6:
-                    playJumpScareVideo("rick_video.mp4");
-                    break;
-                case 7:
-                    playJumpScareVideo("marko_video.mp4");
-            }
+            int videoChoice = videoRandom.nextInt(JUMP_SCARE_VIDEOS.length);
+            playJumpScareVideo(JUMP_SCARE_VIDEOS[videoChoice]);
+            battlefieldComponent.recordJumpScare();
             characterSpawnCount = 0;
-            jumpScareThreshold = (int) (Math.random() * 50);
+            jumpScareThreshold = jumpScareRandom.nextInt(50);
         }
     }
 
@@ -233,23 +488,6 @@ public class MainApplication extends JFrame {
      * @param videoPath The file path to the jump scare video.
      */
     private void playJumpScareVideo(String videoPath) {
-        JDialog videoDialog = createVideoDialog();
-        mediaPlayerComponent = new EmbeddedMediaPlayerComponent();
-        videoDialog.add(mediaPlayerComponent);
-        videoDialog.setVisible(true);
-
-        MediaPlayer mediaPlayer = mediaPlayerComponent.mediaPlayer();
-        mediaPlayer.media().play(new File(videoPath).getAbsolutePath());
-
-        mediaPlayer.events().addMediaPlayerEventListener(new MediaPlayerEventAdapter() {
-            @Override
-            public void finished(MediaPlayer mediaPlayer) {
-                SwingUtilities.invokeLater(() -> {
-                    mediaPlayer.controls().stop();
-                    videoDialog.dispose();
-                    startBackgroundMusic();
-                });
-            }
-        });
+        videoPlayer.play(videoPath, this::startBackgroundMusic);
     }
-}
+}
\ No newline at end of file
@@ -0,0 +1,61 @@
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+
+/**
+ * MetricsOverlay draws the latest game loop metrics as a small translucent panel in the top-left
+ * corner of the battlefield. Like BattlefieldRenderer it holds no state of its own, so the passive
+ * Swing path and the active render thread draw the same overlay.
+ */
+public final class MetricsOverlay {
+
+    private static final Font FONT = new Font(Font.MONOSPACED, Font.PLAIN, 12);
+    private static final Color BACKGROUND = new Color(0, 0, 0, 170);
+    private static final int MARGIN = 8;
+    private static final int PADDING = 6;
+    private static final int WIDTH = 380;
+    private static final int LINE_HEIGHT = 15;
+
+    /**
+     * MetricsOverlay only has static members and is never instantiated.
+     */
+    private MetricsOverlay() {
+    }
+
+    /**
+     * Gets the area the overlay covers, so it can be repainted when new metrics are published.
+     *
+     * @param metrics The metrics the overlay shows.
+     * @return The bounds of the overlay in battlefield coordinates.
+     */
+    public static Rectangle getBounds(GameMetrics metrics) {
+        int lines = metrics.getSummary().toLines().length;
+        return new Rectangle(MARGIN, MARGIN, WIDTH, lines * LINE_HEIGHT + 2 * PADDING);
+    }
+
+    /**
+     * Draws the overlay if metrics collection is switched on.
+     *
+     * @param g2      The Graphics2D object used for drawing.
+     * @param metrics The metrics to show.
+     */
+    public static void draw(Graphics2D g2, GameMetrics metrics) {
+        if (!metrics.isEnabled()) {
+            return;
+        }
+        String[] lines = metrics.getSummary().toLines();
+        Rectangle bounds = new Rectangle(MARGIN, MARGIN, WIDTH, lines.length * LINE_HEIGHT + 2 * PADDING);
+        g2.setColor(BACKGROUND);
+        g2.fillRect(bounds.x, bounds.y, bounds.width, bounds.height);
+        g2.setColor(Color.WHITE);
+        g2.setFont(FONT);
+        FontMetrics fontMetrics = g2.getFontMetrics();
+        int baseline = bounds.y + PADDING + fontMetrics.getAscent();
+        for (String line : lines) {
+            g2.drawString(line, bounds.x + PADDING, baseline);
+            baseline += LINE_HEIGHT;
+        }
+    }
+}
@@ -3,6 +3,7 @@ import java.awt.event.MouseEvent;
 import java.awt.Point;
 import javax.swing.SwingUtilities;
 import javax.swing.JPopupMenu;
+import javax.swing.JMenu;
 import javax.swing.JMenuItem;
 
 /**
@@ -12,6 +13,8 @@ import javax.swing.JMenuItem;
  */
 public class MouseController extends MouseAdapter {
     private final BattlefieldComponent battlefieldComponent;
+    private static final int WAVE_SIZE = Integer.getInteger("battlefield.waveSize", 1000); // Characters per wave
+    private static final double WAVE_SPREAD = 120; // Standard deviation of a wave around the click point
     private final MainApplication mainApp; // Reference to MainApplication
     private JPopupMenu popupMenu;
     private Point lastClickPoint; // Store the last click point for character creation
@@ -31,70 +34,55 @@ public class MouseController extends MouseAdapter {
     }
 
     /**
-     * Creates a popup menu with options to create each type of character shape.
+     * Creates a popup menu with an option for each registered character type, followed by submenus
+     * that spawn a whole wave of a type around the click point or across the battlefield.
+     * The wave size can be set with -Dbattlefield.waveSize.
      */
     private void createPopupMenu() {
         popupMenu = new JPopupMenu();
-        String[] types = {"Hello Kitty", "My Melody", "Badtz Maru", "Cinnamoroll", "Kuromi"};
-        for (String type : types) {
-            JMenuItem item = new JMenuItem(type);
+        JMenu waveHere = new JMenu("Wave of " + WAVE_SIZE + " here");
+        JMenu waveEverywhere = new JMenu("Wave of " + WAVE_SIZE + " everywhere");
+        for (CharacterType type : CharacterType.values()) {
+            JMenuItem item = new JMenuItem(type.getDisplayName());
             item.addActionListener(e -> createAndAddCharacter(lastClickPoint, type));
             popupMenu.add(item);
+
+            JMenuItem here = new JMenuItem(type.getDisplayName());
+            here.addActionListener(e -> mainApp.spawnGaussianWave(type, WAVE_SIZE, lastClickPoint, WAVE_SPREAD));
+            waveHere.add(here);
+            JMenuItem everywhere = new JMenuItem(type.getDisplayName());
+            everywhere.addActionListener(e -> mainApp.spawnUniformWave(type, WAVE_SIZE));
+            waveEverywhere.add(everywhere);
         }
+        popupMenu.addSeparator();
+        popupMenu.add(waveHere);
+        popupMenu.add(waveEverywhere);
     }
 
     /**
      * Overrides the mouseClicked method to display a popup menu on right-click.
      * This menu allows for the creation of character shapes at the click location.
+     * Clicks are ignored until the game has finished loading.
      *
      * @param e The MouseEvent to process.
      */
     @Override
     public void mouseClicked(MouseEvent e) {
-        if (SwingUtilities.isRightMouseButton(e)) {
+        if (SwingUtilities.isRightMouseButton(e) && mainApp.isGameplayReady()) {
             lastClickPoint = e.getPoint();
             popupMenu.show(e.getComponent(), e.getX(), e.getY());
         }
     }
 
     /**
-     * Creates and adds a character shape to the battlefield at the specified point.
+     * Creates and adds a character to the battlefield at the specified point.
      * The type of the character is determined based on the selection from the popup menu.
-     * Notifies the MainApplication to check for the jump scare condition.
+     * The character counts towards the jump scare condition once it has joined the battlefield.
      *
      * @param point The point on the screen where the character should be created.
      * @param type  The type of the character to create.
      */
-    protected void createAndAddCharacter(Point point, String type) {
-        CharacterShape character = getCharacterShapeByType(type, point);
-        if (character != null) {
-            battlefieldComponent.addCharacter(character);
-            // Notify MainApplication to check for jump scare
-            mainApp.checkForJumpScare();
-        }
-    }
-
-    /**
-     * Returns a new instance of a CharacterShape based on the specified type.
-     *
-     * @param type  The type of character to create.
-     * @param point The location for the character.
-     * @return A new CharacterShape instance or null if the type is invalid.
-     */
-    private CharacterShape getCharacterShapeByType(String type, Point point) {
-        switch (type.toLowerCase()) {
-            case "hello kitty":
-                return new HelloKittyShape(point);
-            case "my melody":
-                return new MyMelodyShape(point);
-            case "badtz maru":
-                return new BadtzShape(point);
-            case "cinnamoroll":
-                return new CinnamorollShape(point);
-            case "kuromi":
-                return new KuromiShape(point);
-            default:
-                return null; // Invalid type
-        }
+    protected void createAndAddCharacter(Point point, CharacterType type) {
+        battlefieldComponent.spawn(type, point);
     }
 }
\ No newline at end of file
@@ -0,0 +1,221 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * ReplayPlayer drives a BattlefieldEngine through a battle recorded by a ReplayRecorder.
+ * Before every tick the player hands the engine the characters and battlefield size changes that
+ * were recorded for that tick, so the engine repeats the recorded battle exactly, whether it runs
+ * headless as fast as the CPU allows or on screen at any speed.
+ * The recording knows how many ticks it covers, so a headless run can replay exactly as many ticks as
+ * were recorded, battle after the last spawn included.
+ * The log is read as the replay progresses, so even a very long session never has to fit in memory.
+ * All methods except the constructor and close must be called on the engine's simulation thread.
+ */
+public class ReplayPlayer implements Closeable {
+
+    private final DataInputStream in;
+    private final long seed;
+    private final long tickCount;
+    private final int despawnMargin;
+    private final int speedScale;
+    private final boolean swept;
+    private long startTick = -1;
+    private long nextTick; // Replay tick of the next record, relative to the first tick
+    private int nextTag;
+    private long spawnCount;
+    private boolean finished;
+
+    /**
+     * Constructor for ReplayPlayer. Opens the log and reads its header.
+     *
+     * @param file The replay log to play.
+     * @throws IOException If the file cannot be read or is not a replay log.
+     */
+    public ReplayPlayer(Path file) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+        try {
+            if (in.readInt() != ReplayRecorder.MAGIC) {
+                throw new IOException(file + " is not a replay log");
+            }
+            int version = in.readUnsignedByte();
+            if (version < 1 || version > ReplayRecorder.VERSION) {
+                throw new IOException("Unsupported replay log version " + version + " in " + file);
+            }
+            this.seed = in.readLong();
+            // Logs from before version 2 did not record their length
+            this.tickCount = version >= 2 ? in.readLong() : ReplayRecorder.UNKNOWN_TICKS;
+            this.despawnMargin = (int) readVarint();
+            this.speedScale = (int) readVarint();
+            this.swept = in.readUnsignedByte() != 0;
+            readRecordHeader();
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the seed of the recorded session.
+     *
+     * @return The session seed.
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Gets the number of ticks the recorded session ran for.
+     *
+     * @return The tick count, or ReplayRecorder.UNKNOWN_TICKS if the session ended without closing
+     *         its recorder or the log predates the tick count.
+     */
+    public long getTickCount() {
+        return tickCount;
+    }
+
+    /**
+     * Applies the recorded engine settings to an engine, and lifts its spawn rate limit, since the
+     * log already holds the ticks on which characters actually joined.
+     *
+     * @param engine The engine the replay will drive.
+     */
+    public void configure(BattlefieldEngine engine) {
+        engine.setDespawnMargin(despawnMargin);
+        engine.setSpeedScale(speedScale);
+        engine.setSweptCollisions(swept);
+        engine.setMaxSpawnsPerTick(0);
+    }
+
+    /**
+     * Queues everything recorded for the engine's next tick. The first call marks the start of the replay.
+     * Call once before every step of the engine.
+     *
+     * @param engine The engine the replay drives.
+     */
+    public void apply(BattlefieldEngine engine) {
+        if (startTick < 0) {
+            startTick = engine.getTickCount();
+        }
+        long tick = engine.getTickCount() - startTick;
+        try {
+            while (!finished && nextTick <= tick) {
+                if (nextTag == ReplayRecorder.TAG_SPAWN) {
+                    SpawnBatch batch = readSpawns();
+                    spawnCount += batch.size();
+                    engine.spawnBatch(batch);
+                } else if (nextTag == ReplayRecorder.TAG_FIELD_SIZE) {
+                    int width = (int) readVarint();
+                    int height = (int) readVarint();
+                    engine.setFieldSize(width, height);
+                } else {
+                    throw new IOException("Unknown replay record " + nextTag);
+                }
+                readRecordHeader();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            finished = true;
+        }
+    }
+
+    /**
+     * Checks whether every record of the log has been played.
+     *
+     * @return True once the end of the log has been reached.
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Gets the number of characters spawned by the replay so far.
+     *
+     * @return The spawn count.
+     */
+    public long getSpawnCount() {
+        return spawnCount;
+    }
+
+    /**
+     * Closes the log.
+     *
+     * @throws IOException If the log cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Reads the tag and tick of the next record. A missing end marker, as left by a session that
+     * was killed, ends the replay like a proper one.
+     *
+     * @throws IOException If the log cannot be read.
+     */
+    private void readRecordHeader() throws IOException {
+        try {
+            nextTag = (int) readVarint();
+            if (nextTag == ReplayRecorder.TAG_END) {
+                finished = true;
+                return;
+            }
+            nextTick += readVarint();
+        } catch (EOFException e) {
+            finished = true;
+        }
+    }
+
+    /**
+     * Reads the characters of a spawn record.
+     *
+     * @return The characters as a spawn batch.
+     * @throws IOException If the log cannot be read.
+     */
+    private SpawnBatch readSpawns() throws IOException {
+        int count = (int) readVarint();
+        SpawnBatch batch = new SpawnBatch();
+        batch.ensureCapacity(count);
+        int x = 0;
+        int y = 0;
+        for (int i = 0; i < count; i++) {
+            CharacterType type = CharacterType.get((int) readVarint());
+            x += (int) unzigzag(readVarint());
+            y += (int) unzigzag(readVarint());
+            batch.add(type, x, y);
+        }
+        return batch;
+    }
+
+    /**
+     * Reverses the zigzag encoding of ReplayRecorder.
+     *
+     * @param value The zigzag-encoded value.
+     * @return The signed value.
+     */
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Reads an unsigned value written in seven-bit groups, least significant first.
+     *
+     * @return The value.
+     * @throws IOException If the log cannot be read or the value is malformed.
+     */
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in replay log");
+    }
+}
@@ -0,0 +1,262 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * ReplayRecorder writes a replay log of a battle: every character that joins the battlefield, keyed
+ * by the tick it joined on, and every change of the battlefield size, which moves the despawn boundary.
+ * Everything else about a battle follows from these inputs, so a ReplayPlayer can drive an engine
+ * through exactly the same battle again.
+ *
+ * <p>The log is compact: a header with the session seed, the number of ticks recorded and the engine
+ * settings, followed by records
+ * that start with a tag and the number of ticks since the previous record as a varint. A spawn record
+ * lists the type of each character as a varint and its position as the zigzag-encoded difference to the
+ * previous character of the record, so a wave costs a few bytes per character. Records are collected
+ * in a buffer and written in large blocks, so recording costs the simulation thread next to nothing.
+ * The number of ticks is only known once the recording is closed, so close writes it into the header;
+ * a log whose session was killed keeps UNKNOWN_TICKS there.
+ *
+ * <p>Recording starts with the next tick of the engine and assumes an empty battlefield. All methods
+ * except close are called by the engine on its simulation thread.
+ */
+public class ReplayRecorder implements Closeable {
+
+    static final int MAGIC = 0x52505352; // "RPSR"
+    static final int VERSION = 2;
+    static final int TICK_COUNT_OFFSET = 13; // After the magic, the version and the seed
+    static final long UNKNOWN_TICKS = -1;
+    static final int TAG_END = 0;
+    static final int TAG_SPAWN = 1;
+    static final int TAG_FIELD_SIZE = 2;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final OutputStream out;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private boolean started;
+    private long firstTick; // The first recorded tick becomes tick 0 of the replay
+    private long lastTick;
+    private long currentTick;
+    private int fieldWidth;
+    private int fieldHeight;
+    private boolean failed;
+    private boolean closed;
+
+    /**
+     * Constructor for ReplayRecorder. Creates the log file and writes its header.
+     *
+     * @param file   The file to write the log to, replaced if it exists.
+     * @param seed   The session seed, stored so the rest of the session can be reproduced as well.
+     * @param engine The engine that will be recorded, whose settings are stored in the header.
+     * @throws IOException If the file cannot be created.
+     */
+    public ReplayRecorder(Path file, long seed, BattlefieldEngine engine) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        this.out = Channels.newOutputStream(channel);
+        writeInt(MAGIC);
+        writeByte(VERSION);
+        writeLong(seed);
+        writeLong(UNKNOWN_TICKS);
+        writeVarint(engine.getDespawnMargin());
+        writeVarint(engine.getSpeedScale());
+        writeByte(engine.isSweptCollisions() ? 1 : 0);
+    }
+
+    /**
+     * Notes the start of a tick, recording the battlefield size if it changed since the last tick.
+     *
+     * @param tick   The number of the tick about to run.
+     * @param width  The battlefield width for the tick.
+     * @param height The battlefield height for the tick.
+     */
+    public synchronized void beginTick(long tick, int width, int height) {
+        if (closed) {
+            return;
+        }
+        start(tick);
+        currentTick = tick;
+        if (width != fieldWidth || height != fieldHeight) {
+            fieldWidth = width;
+            fieldHeight = height;
+            beginRecord(TAG_FIELD_SIZE, tick);
+            writeVarint(width);
+            writeVarint(height);
+            flushIfFull();
+        }
+    }
+
+    /**
+     * Records characters of a spawn batch that joined the battlefield.
+     *
+     * @param tick  The number of the tick they joined on.
+     * @param batch The batch the characters came from.
+     * @param start The index of the first character that joined.
+     * @param end   The index after the last character that joined.
+     */
+    public synchronized void recordSpawns(long tick, SpawnBatch batch, int start, int end) {
+        if (closed) {
+            return;
+        }
+        start(tick);
+        beginRecord(TAG_SPAWN, tick);
+        writeVarint(end - start);
+        int previousX = 0;
+        int previousY = 0;
+        for (int i = start; i < end; i++) {
+            writeVarint(batch.getType(i));
+            writeVarint(zigzag(batch.getX(i) - previousX));
+            writeVarint(zigzag(batch.getY(i) - previousY));
+            previousX = batch.getX(i);
+            previousY = batch.getY(i);
+            flushIfFull();
+        }
+    }
+
+    /**
+     * Marks the first tick the recorder sees as the start of the replay.
+     *
+     * @param tick The number of the tick being recorded.
+     */
+    private void start(long tick) {
+        if (!started) {
+            started = true;
+            firstTick = tick;
+            lastTick = tick;
+            currentTick = tick;
+        }
+    }
+
+    /**
+     * Writes the end marker and the number of ticks recorded, and closes the log. Further records
+     * are ignored.
+     *
+     * @throws IOException If the log cannot be written.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (!failed) {
+                writeVarint(TAG_END);
+                flush();
+            }
+            if (!failed) {
+                long ticks = started ? currentTick - firstTick + 1 : 0;
+                ByteBuffer header = ByteBuffer.allocate(Long.BYTES).putLong(0, ticks);
+                while (header.hasRemaining()) {
+                    channel.write(header, TICK_COUNT_OFFSET + header.position());
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Starts a record with its tag and tick delta.
+     *
+     * @param tag  The record tag.
+     * @param tick The tick of the record.
+     */
+    private void beginRecord(int tag, long tick) {
+        writeVarint(tag);
+        writeVarint(tick - lastTick);
+        lastTick = tick;
+    }
+
+    /**
+     * Maps a signed value to an unsigned one so that small negative values stay small as varints.
+     *
+     * @param value The signed value.
+     * @return The zigzag-encoded value.
+     */
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * Appends an unsigned value in seven-bit groups, least significant first.
+     *
+     * @param value The value, treated as unsigned.
+     */
+    private void writeVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        writeByte((int) value);
+    }
+
+    /**
+     * Appends a big-endian int.
+     *
+     * @param value The value.
+     */
+    private void writeInt(int value) {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            writeByte(value >>> shift);
+        }
+    }
+
+    /**
+     * Appends a big-endian long.
+     *
+     * @param value The value.
+     */
+    private void writeLong(long value) {
+        writeInt((int) (value >>> 32));
+        writeInt((int) value);
+    }
+
+    /**
+     * Appends a single byte, writing the buffer out first if it is full.
+     *
+     * @param value The byte in the low eight bits.
+     */
+    private void writeByte(int value) {
+        if (position == buffer.length) {
+            flush();
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    /**
+     * Writes the buffer out once it is nearly full, so a record never has to wait for the disk in
+     * the middle of a character.
+     */
+    private void flushIfFull() {
+        if (position > buffer.length - 32) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the buffered bytes to the file. After a write error the recording stops and the error
+     * is reported once; the battle itself carries on.
+     */
+    private void flush() {
+        if (failed) {
+            position = 0;
+            return;
+        }
+        try {
+            out.write(buffer, 0, position);
+        } catch (IOException e) {
+            failed = true;
+            e.printStackTrace();
+        }
+        position = 0;
+    }
+}
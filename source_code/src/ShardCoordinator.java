@@ -0,0 +1,220 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.List;
+
+/**
+ * ShardCoordinator drives a battle that is split over several BattlefieldShard processes. It waits for
+ * the shards to join, gives each its strip of the battlefield and the address of its right neighbour,
+ * and then runs the ticks: it hands every new character a stable id and sends it to the shard whose
+ * strip it spawned in, decides together with the shards when the collisions of a tick are settled, and
+ * adds up what the shards report. At the end it collects the survivors of every shard.
+ * Ids are handed out in spawn order, exactly as a single BattlefieldEngine numbers its characters,
+ * so the result can be compared with a single engine character by character.
+ */
+public class ShardCoordinator implements Closeable {
+
+    private final ShardLink[] shards;
+    private final int[] stripEdges;
+    private final EntityStore[] spawns;
+    private int nextId;
+    private long tickCount;
+    private long despawnedCount;
+    private long collisionsResolved;
+    private long rounds;
+
+    /**
+     * Constructor for ShardCoordinator. Waits for every shard to join and sends out the strips.
+     *
+     * @param server        The socket the shards join through.
+     * @param shardCount    The number of shards to wait for.
+     * @param width         The battlefield width in pixels.
+     * @param height        The battlefield height in pixels.
+     * @param despawnMargin The distance outside the battlefield at which characters despawn.
+     * @param speedScale    The number of moves per tick.
+     * @throws IOException If a shard cannot be reached.
+     */
+    public ShardCoordinator(ServerSocket server, int shardCount, int width, int height, int despawnMargin,
+            int speedScale) throws IOException {
+        int stripWidth = width / shardCount;
+        if (stripWidth < BattlefieldShard.maxWidth() + BattlefieldShard.maxHorizontalSpeed() * speedScale) {
+            throw new IllegalArgumentException("The battlefield is too narrow for " + shardCount + " shards");
+        }
+        this.shards = new ShardLink[shardCount];
+        this.spawns = new EntityStore[shardCount];
+        this.stripEdges = new int[shardCount + 1];
+        stripEdges[0] = Integer.MIN_VALUE;
+        for (int k = 1; k < shardCount; k++) {
+            stripEdges[k] = (int) ((long) width * k / shardCount);
+        }
+        stripEdges[shardCount] = Integer.MAX_VALUE;
+
+        int[] ports = new int[shardCount];
+        try {
+            for (int k = 0; k < shardCount; k++) {
+                shards[k] = new ShardLink(server.accept());
+                ports[k] = shards[k].readInt();
+                spawns[k] = new EntityStore();
+            }
+            for (int k = 0; k < shardCount; k++) {
+                ShardLink shard = shards[k];
+                shard.writeVarint(k);
+                shard.writeVarint(width);
+                shard.writeVarint(height);
+                shard.writeVarint(despawnMargin);
+                shard.writeVarint(speedScale);
+                shard.writeSigned(stripEdges[k]);
+                shard.writeSigned(stripEdges[k + 1]);
+                shard.writeString(k + 1 < shardCount ? shards[k + 1].getPeerAddress() : "");
+                shard.writeVarint(k + 1 < shardCount ? ports[k + 1] : 0);
+                shard.flush();
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Runs a single tick on every shard.
+     *
+     * @param batches The characters that join the battlefield in this tick, in spawn order.
+     * @throws IOException If a shard cannot be reached.
+     */
+    public void step(List<SpawnBatch> batches) throws IOException {
+        for (EntityStore store : spawns) {
+            store.clear();
+        }
+        for (SpawnBatch batch : batches) {
+            for (int i = 0; i < batch.size(); i++) {
+                CharacterType type = CharacterType.get(batch.getType(i));
+                int x = batch.getX(i);
+                spawns[shardFor(x)].addWithId(nextId++, x, batch.getY(i), type.getWidth(), type.getHeight(),
+                        type.getVelocityX(), type.getVelocityY(), type.getOrdinal());
+            }
+        }
+        for (int k = 0; k < shards.length; k++) {
+            shards[k].writeVarint(BattlefieldShard.TAG_TICK);
+            shards[k].writeEntities(spawns[k]);
+            shards[k].flush();
+        }
+
+        boolean changed;
+        do {
+            changed = false;
+            for (ShardLink shard : shards) {
+                changed |= shard.readInt() != 0;
+            }
+            for (ShardLink shard : shards) {
+                shard.writeVarint(changed ? 1 : 0);
+                shard.flush();
+            }
+            rounds++;
+        } while (changed);
+
+        for (ShardLink shard : shards) {
+            collisionsResolved += shard.readVarint();
+            despawnedCount += shard.readVarint();
+        }
+        tickCount++;
+    }
+
+    /**
+     * Ends the battle and collects the surviving characters of every shard.
+     *
+     * @return The survivors, sorted by id.
+     * @throws IOException If a shard cannot be reached.
+     */
+    public EntityStore finish() throws IOException {
+        EntityStore[] survivors = new EntityStore[shards.length];
+        for (int k = 0; k < shards.length; k++) {
+            shards[k].writeVarint(BattlefieldShard.TAG_END);
+            shards[k].flush();
+        }
+        int total = 0;
+        for (int k = 0; k < shards.length; k++) {
+            survivors[k] = new EntityStore();
+            total += shards[k].readEntities(survivors[k]);
+        }
+
+        EntityStore merged = new EntityStore();
+        merged.ensureCapacity(total);
+        int[] next = new int[shards.length];
+        for (int n = 0; n < total; n++) {
+            int best = -1;
+            for (int k = 0; k < shards.length; k++) {
+                if (next[k] < survivors[k].size()
+                        && (best < 0 || survivors[k].getId(next[k]) < survivors[best].getId(next[best]))) {
+                    best = k;
+                }
+            }
+            merged.addFrom(survivors[best], next[best]++);
+        }
+        return merged;
+    }
+
+    /**
+     * Finds the shard whose strip holds an x coordinate.
+     *
+     * @param x The x coordinate.
+     * @return The index of the shard.
+     */
+    private int shardFor(int x) {
+        int k = 0;
+        while (x >= stripEdges[k + 1]) {
+            k++;
+        }
+        return k;
+    }
+
+    /**
+     * Gets the number of ticks run so far.
+     *
+     * @return The tick count.
+     */
+    public long getTickCount() {
+        return tickCount;
+    }
+
+    /**
+     * Gets the number of characters despawned on every shard so far.
+     *
+     * @return The despawn count.
+     */
+    public long getDespawnedCount() {
+        return despawnedCount;
+    }
+
+    /**
+     * Gets the number of collisions resolved on every shard so far, not counting ties.
+     * A collision across a border is counted by the shard of its loser only.
+     *
+     * @return The collision count.
+     */
+    public long getCollisionsResolved() {
+        return collisionsResolved;
+    }
+
+    /**
+     * Gets the number of rounds of removal exchange run so far; every tick takes at least one.
+     *
+     * @return The round count.
+     */
+    public long getRounds() {
+        return rounds;
+    }
+
+    /**
+     * Closes the connections to the shards.
+     *
+     * @throws IOException If a connection cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        for (ShardLink shard : shards) {
+            if (shard != null) {
+                shard.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,227 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * ShardLink is one TCP connection of a sharded battle, between two neighbouring shards or between a
+ * shard and the coordinator, with the compact binary encoding both ends speak.
+ * Numbers are sent as varints in seven-bit groups, least significant first, and signed numbers are
+ * zigzag-encoded first, as in replay logs. A list of characters is sent sorted by id, each as the
+ * difference to the previous id, its type and its position, so a character usually takes five to
+ * eight bytes; sizes and velocities follow from the type and are not sent.
+ * Writes are buffered until flush, so a whole message goes out in as few packets as possible.
+ */
+public class ShardLink implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    /**
+     * Constructor for ShardLink.
+     *
+     * @param socket The connected socket.
+     * @throws IOException If the socket streams cannot be opened.
+     */
+    public ShardLink(Socket socket) throws IOException {
+        this.socket = socket;
+        socket.setTcpNoDelay(true);
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+    }
+
+    /**
+     * Writes an unsigned value in seven-bit groups, least significant first.
+     *
+     * @param value The value; negative values take ten bytes.
+     * @throws IOException If the connection fails.
+     */
+    public void writeVarint(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Writes a signed value as a zigzag-encoded varint, so small negative values stay short.
+     *
+     * @param value The value.
+     * @throws IOException If the connection fails.
+     */
+    public void writeSigned(long value) throws IOException {
+        writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Writes a string.
+     *
+     * @param value The string.
+     * @throws IOException If the connection fails.
+     */
+    public void writeString(String value) throws IOException {
+        out.writeUTF(value);
+    }
+
+    /**
+     * Writes some of the characters of a store, in the order given, which must be ascending by id.
+     *
+     * @param entities The store holding the characters.
+     * @param indices  The indices of the characters to write.
+     * @param count    The number of indices to use.
+     * @throws IOException If the connection fails.
+     */
+    public void writeEntities(EntityStore entities, int[] indices, int count) throws IOException {
+        writeVarint(count);
+        int previousId = -1;
+        for (int k = 0; k < count; k++) {
+            previousId = writeEntity(entities, indices[k], previousId);
+        }
+    }
+
+    /**
+     * Writes every character of a store, which must be sorted by id.
+     *
+     * @param entities The store holding the characters.
+     * @throws IOException If the connection fails.
+     */
+    public void writeEntities(EntityStore entities) throws IOException {
+        writeVarint(entities.size());
+        int previousId = -1;
+        for (int i = 0; i < entities.size(); i++) {
+            previousId = writeEntity(entities, i, previousId);
+        }
+    }
+
+    /**
+     * Writes a single character of a list.
+     *
+     * @param entities   The store holding the character.
+     * @param index      The index of the character.
+     * @param previousId The id of the previous character of the list, or -1 for the first.
+     * @return The id of the character.
+     * @throws IOException If the connection fails.
+     */
+    private int writeEntity(EntityStore entities, int index, int previousId) throws IOException {
+        int id = entities.getId(index);
+        writeVarint(id - previousId);
+        writeVarint(entities.getType(index));
+        writeSigned(entities.getX(index));
+        writeSigned(entities.getY(index));
+        return id;
+    }
+
+    /**
+     * Sends everything written since the last flush.
+     *
+     * @throws IOException If the connection fails.
+     */
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Reads a value written by writeVarint.
+     *
+     * @return The value.
+     * @throws IOException If the connection fails or the value is malformed.
+     */
+    public long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint from shard link");
+    }
+
+    /**
+     * Reads a value written by writeVarint that must fit in an int.
+     *
+     * @return The value.
+     * @throws IOException If the connection fails or the value is malformed.
+     */
+    public int readInt() throws IOException {
+        long value = readVarint();
+        if (value > Integer.MAX_VALUE) {
+            throw new IOException("Value out of range from shard link: " + value);
+        }
+        return (int) value;
+    }
+
+    /**
+     * Reads a value written by writeSigned.
+     *
+     * @return The value.
+     * @throws IOException If the connection fails or the value is malformed.
+     */
+    public long readSigned() throws IOException {
+        long value = readVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Reads a string written by writeString.
+     *
+     * @return The string.
+     * @throws IOException If the connection fails.
+     */
+    public String readString() throws IOException {
+        return in.readUTF();
+    }
+
+    /**
+     * Reads a list of characters written by writeEntities and appends them to a store with their ids.
+     *
+     * @param entities The store to append the characters to.
+     * @return The number of characters read.
+     * @throws IOException If the connection fails or a character has an unknown type.
+     */
+    public int readEntities(EntityStore entities) throws IOException {
+        int count = readInt();
+        entities.ensureCapacity(entities.size() + count);
+        long id = -1;
+        for (int k = 0; k < count; k++) {
+            id += readVarint();
+            int ordinal = readInt();
+            if (ordinal >= CharacterType.count()) {
+                throw new IOException("Unknown character type " + ordinal + " from shard link");
+            }
+            CharacterType type = CharacterType.get(ordinal);
+            int x = (int) readSigned();
+            int y = (int) readSigned();
+            entities.addWithId((int) id, x, y, type.getWidth(), type.getHeight(), type.getVelocityX(),
+                    type.getVelocityY(), ordinal);
+        }
+        return count;
+    }
+
+    /**
+     * Gets the address of the other end of the connection.
+     *
+     * @return The host address of the peer.
+     */
+    public String getPeerAddress() {
+        return socket.getInetAddress().getHostAddress();
+    }
+
+    /**
+     * Closes the connection.
+     *
+     * @throws IOException If the socket cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
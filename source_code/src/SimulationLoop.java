@@ -0,0 +1,84 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * SimulationLoop runs the battlefield simulation on its own thread with a fixed timestep.
+ * Elapsed wall-clock time is collected in an accumulator and drained one tick at a time, so the
+ * simulation advances at the same rate no matter how long painting or event handling takes on
+ * the event dispatch thread. If the simulation falls far behind, the backlog is dropped instead
+ * of running an ever-growing burst of catch-up ticks.
+ */
+public class SimulationLoop implements Runnable {
+
+    private static final int MAX_CATCH_UP_TICKS = 5;
+
+    private final String name;
+    private final long tickNanos;
+    private final Runnable tick;
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * Constructor for SimulationLoop.
+     *
+     * @param name       The name of the simulation thread.
+     * @param tickMillis The fixed duration of a single tick in milliseconds.
+     * @param tick       The work to run once per tick.
+     */
+    public SimulationLoop(String name, long tickMillis, Runnable tick) {
+        this.name = name;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.tick = tick;
+    }
+
+    /**
+     * Starts the simulation thread. The thread is a daemon so it never keeps the application alive.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the simulation thread after the tick that is currently running, if any.
+     */
+    public synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            thread = null;
+        }
+    }
+
+    /**
+     * Runs the accumulator loop until the simulation is stopped.
+     */
+    @Override
+    public void run() {
+        long previous = System.nanoTime();
+        long accumulator = 0;
+        while (running) {
+            long now = System.nanoTime();
+            accumulator += now - previous;
+            previous = now;
+
+            if (accumulator > MAX_CATCH_UP_TICKS * tickNanos) {
+                accumulator = MAX_CATCH_UP_TICKS * tickNanos;
+            }
+            while (accumulator >= tickNanos && running) {
+                try {
+                    tick.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+                accumulator -= tickNanos;
+            }
+            LockSupport.parkNanos(this, tickNanos - accumulator);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SnapshotBuffer hands world snapshots from the simulation thread to the painting thread
+ * without locks, using three rotating buffers. The writer always owns one buffer, the reader
+ * always owns another, and the third sits in the middle holding the most recently published state.
+ * Publishing and acquiring are single atomic swaps with the middle slot, so neither side can
+ * block the other and neither ever sees a buffer that is still being written.
+ * There must be exactly one writer thread and one reader thread.
+ */
+public class SnapshotBuffer {
+
+    private static final int FRESH = 4;
+    private static final int INDEX_MASK = 3;
+
+    private final WorldSnapshot[] buffers = {new WorldSnapshot(), new WorldSnapshot(), new WorldSnapshot()};
+    private final AtomicInteger middle = new AtomicInteger(1);
+    private int back = 0;
+    private int front = 2;
+
+    /**
+     * Gets the buffer the writer may fill next. Only called from the writer thread.
+     *
+     * @return The snapshot to write into.
+     */
+    public WorldSnapshot getBackBuffer() {
+        return buffers[back];
+    }
+
+    /**
+     * Publishes the back buffer as the newest snapshot. Only called from the writer thread.
+     */
+    public void publish() {
+        back = middle.getAndSet(back | FRESH) & INDEX_MASK;
+    }
+
+    /**
+     * Gets the newest published snapshot. Only called from the reader thread.
+     * The returned snapshot stays untouched until the next call to acquire.
+     *
+     * @return The most recently published snapshot.
+     */
+    public WorldSnapshot acquire() {
+        if ((middle.get() & FRESH) != 0) {
+            front = middle.getAndSet(front) & INDEX_MASK;
+        }
+        return buffers[front];
+    }
+}
@@ -0,0 +1,426 @@
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import kuusisto.tinysound.Sound;
+import kuusisto.tinysound.TinySound;
+
+/**
+ * SoundEffects plays a short cue whenever a character type wins a fight. It subscribes to the
+ * battlefield's GameEventBus and runs entirely on its subscriber thread, so however many collisions a
+ * tick resolves, the simulation never waits for audio.
+ * <p>
+ * All the wins of one type within a tick are coalesced into a single cue, louder the bigger the burst,
+ * so a tick starts at most one cue per type. At most MAX_VOICES cues play at once. When every voice is
+ * busy, a new cue steals the voice of the quietest cue playing, the oldest one among equals, unless
+ * every cue playing is louder than the new one, in which case the new cue is dropped. The work per
+ * event and the number of voices TinySound has to mix are both bounded, whatever the collision rate.
+ * <p>
+ * The cue of a type is read from the file named after it, for example hello_kitty_win.wav. A type
+ * without a file gets a short synthesized chime instead, pitched differently for every type. TinySound
+ * stops every playback of a Sound at once, so each type's clip is loaded VOICES_PER_TYPE times to give
+ * every voice a handle that can be stolen on its own.
+ */
+public class SoundEffects implements GameEventListener, AutoCloseable {
+
+    static final int MAX_VOICES = 8;
+    static final int VOICES_PER_TYPE = 3;
+    private static final double BASE_VOLUME = 0.35;
+    private static final double VOLUME_PER_DOUBLING = 0.1; // Added to the volume each time a burst doubles
+    private static final long DEFAULT_DURATION_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final float TONE_SAMPLE_RATE = 44100f;
+    private static final int TONE_MILLIS = 150;
+    private static final double TONE_BASE_HZ = 523.25; // C5; every further type is a whole tone higher
+    private static final double TONE_DECAY_PER_SECOND = 25.0;
+
+    private volatile Sound[][] sounds = new Sound[0][];
+    private volatile long[] durations = new long[0];
+    private GameEventBus.Subscription subscription;
+
+    // Only used on the subscriber thread
+    private int[] wins = new int[0];
+    private final int[] voiceType = new int[MAX_VOICES];
+    private final int[] voiceHandle = new int[MAX_VOICES];
+    private final int[] voicePriority = new int[MAX_VOICES];
+    private final long[] voiceStart = new long[MAX_VOICES];
+    private final long[] voiceEnd = new long[MAX_VOICES]; // System.nanoTime values, only compared by difference
+
+    private volatile long cuesPlayed;
+    private volatile long cuesDropped;
+    private volatile long voicesStolen;
+    private volatile long winsCoalesced;
+    private volatile int peakVoices;
+
+    /**
+     * Constructor for SoundEffects. No cues are loaded and no voice is playing.
+     */
+    public SoundEffects() {
+        // nanoTime may be negative, so a voice is free once its end is not after now, not once it is 0
+        Arrays.fill(voiceEnd, System.nanoTime());
+    }
+
+    /**
+     * Gets the name of the file the cue of a type is read from.
+     *
+     * @param type The character type.
+     * @return The file name, such as hello_kitty_win.wav.
+     */
+    public static String getFileName(CharacterType type) {
+        return type.getName().toLowerCase(Locale.ROOT).replace(' ', '_') + "_win.wav";
+    }
+
+    /**
+     * Loads the cue of every registered type, from its file or else a synthesized chime. Does nothing
+     * if TinySound could not be initialized.
+     * Safe to call while the effects are already subscribed; cues play from the next tick on.
+     */
+    public void load() {
+        if (!TinySound.isInitialized()) {
+            return;
+        }
+        int count = CharacterType.count();
+        Sound[][] loaded = new Sound[count][];
+        long[] lengths = new long[count];
+        for (int type = 0; type < count; type++) {
+            File file = new File(getFileName(CharacterType.get(type)));
+            if (!file.isFile()) {
+                file = synthesizeTone(type);
+                if (file == null) {
+                    continue;
+                }
+            }
+            Sound[] pool = new Sound[VOICES_PER_TYPE];
+            for (int handle = 0; handle < pool.length; handle++) {
+                pool[handle] = TinySound.loadSound(file);
+                if (pool[handle] == null) {
+                    unload(pool);
+                    pool = null;
+                    break;
+                }
+            }
+            loaded[type] = pool;
+            lengths[type] = durationOf(file);
+        }
+        setSounds(loaded, lengths);
+    }
+
+    /**
+     * Writes a short chime for a type that has no cue file into a temporary WAV file, which is
+     * deleted when the JVM exits.
+     *
+     * @param type The type ordinal, which picks the pitch.
+     * @return The file, or null if it could not be written.
+     */
+    private static File synthesizeTone(int type) {
+        double frequency = TONE_BASE_HZ * Math.pow(2, (type % 12) / 6.0);
+        int frames = (int) (TONE_SAMPLE_RATE * TONE_MILLIS / 1000);
+        byte[] pcm = new byte[frames * 2];
+        for (int i = 0; i < frames; i++) {
+            double t = i / TONE_SAMPLE_RATE;
+            double sample = Math.sin(2 * Math.PI * frequency * t) * Math.exp(-TONE_DECAY_PER_SECOND * t);
+            short value = (short) (sample * Short.MAX_VALUE * 0.8);
+            pcm[2 * i] = (byte) value;
+            pcm[2 * i + 1] = (byte) (value >> 8);
+        }
+        AudioFormat format = new AudioFormat(TONE_SAMPLE_RATE, 16, 1, true, false);
+        try {
+            File file = Files.createTempFile("cue-" + type + "-", ".wav").toFile();
+            file.deleteOnExit();
+            try (AudioInputStream stream = new AudioInputStream(new ByteArrayInputStream(pcm), format, frames)) {
+                AudioSystem.write(stream, AudioFileFormat.Type.WAVE, file);
+            }
+            return file;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the cues, for example with sounds that were loaded elsewhere.
+     *
+     * @param sounds        The handles of every type, VOICES_PER_TYPE each, indexed by type ordinal; a
+     *                      null entry leaves a type silent.
+     * @param durationNanos How long the cue of each type plays, indexed by type ordinal.
+     */
+    void setSounds(Sound[][] sounds, long[] durationNanos) {
+        this.durations = durationNanos;
+        this.sounds = sounds;
+    }
+
+    /**
+     * Reads how long a clip plays from its header.
+     *
+     * @param file The clip.
+     * @return The length in nanoseconds, or DEFAULT_DURATION_NANOS if the header does not say.
+     */
+    private static long durationOf(File file) {
+        try {
+            AudioFileFormat format = AudioSystem.getAudioFileFormat(file);
+            float frameRate = format.getFormat().getFrameRate();
+            if (format.getFrameLength() > 0 && frameRate > 0) {
+                return (long) (format.getFrameLength() / (double) frameRate * TimeUnit.SECONDS.toNanos(1));
+            }
+        } catch (IOException | UnsupportedAudioFileException e) {
+            e.printStackTrace();
+        }
+        return DEFAULT_DURATION_NANOS;
+    }
+
+    /**
+     * Subscribes the effects to a bus, on a thread of their own.
+     *
+     * @param events The bus the battlefield publishes to.
+     */
+    public void subscribe(GameEventBus events) {
+        subscription = events.subscribe("sound-effects", this);
+    }
+
+    /**
+     * Counts every win towards the cue of the winner's type, and plays the cues when a tick ends.
+     *
+     * @param event The event.
+     */
+    @Override
+    public void onEvent(GameEvent event) {
+        if (event.getKind() == GameEvent.COLLISION) {
+            int type = event.getOtherType();
+            if (type >= wins.length) {
+                wins = Arrays.copyOf(wins, CharacterType.count());
+            }
+            wins[type]++;
+        } else if (event.getKind() == GameEvent.TICK_END) {
+            playCues(System.nanoTime());
+        }
+    }
+
+    /**
+     * Plays one cue for every type that won a fight since the last tick ended.
+     *
+     * @param now The current System.nanoTime.
+     */
+    private void playCues(long now) {
+        Sound[][] current = sounds;
+        long[] lengths = durations;
+        for (int type = 0; type < wins.length; type++) {
+            int count = wins[type];
+            if (count == 0) {
+                continue;
+            }
+            wins[type] = 0;
+            winsCoalesced += count - 1;
+            if (type < current.length && current[type] != null) {
+                play(current, type, count, lengths[type], now);
+            }
+        }
+    }
+
+    /**
+     * Plays the cue of a type on a free voice, or on a stolen one if there is none.
+     *
+     * @param current  The loaded sounds.
+     * @param type     The type that won.
+     * @param count    The number of wins the cue stands for, which is also its priority.
+     * @param duration How long the cue plays, in nanoseconds.
+     * @param now      The current System.nanoTime.
+     */
+    private void play(Sound[][] current, int type, int count, long duration, long now) {
+        int handle = freeHandle(type, now);
+        int voice = handle >= 0 ? freeVoice(now) : -1;
+        if (voice < 0) {
+            // With a handle to spare any voice may go; otherwise only a voice of this type frees one
+            voice = quietestVoice(handle >= 0 ? -1 : type, now);
+            if (voice < 0 || voicePriority[voice] > count) {
+                cuesDropped++;
+                return;
+            }
+            Sound[] victim = voiceType[voice] < current.length ? current[voiceType[voice]] : null;
+            if (victim != null && victim[voiceHandle[voice]] != null) {
+                victim[voiceHandle[voice]].stop();
+            }
+            voicesStolen++;
+            if (handle < 0) {
+                handle = voiceHandle[voice];
+            }
+        }
+        Sound sound = current[type][handle];
+        sound.stop();
+        sound.play(volumeFor(count));
+        voiceType[voice] = type;
+        voiceHandle[voice] = handle;
+        voicePriority[voice] = count;
+        voiceStart[voice] = now;
+        voiceEnd[voice] = now + duration;
+        cuesPlayed++;
+        int playing = 0;
+        for (int v = 0; v < MAX_VOICES; v++) {
+            if (isPlaying(v, now)) {
+                playing++;
+            }
+        }
+        if (playing > peakVoices) {
+            peakVoices = playing;
+        }
+    }
+
+    /**
+     * Picks the volume of a cue: one step louder for every doubling of the wins it stands for.
+     *
+     * @param count The number of wins.
+     * @return The volume, at most 1.
+     */
+    static double volumeFor(int count) {
+        return Math.min(1.0, BASE_VOLUME + VOLUME_PER_DOUBLING * (31 - Integer.numberOfLeadingZeros(count)));
+    }
+
+    /**
+     * Finds a handle of a type that no voice is playing.
+     *
+     * @param type The type ordinal.
+     * @param now  The current System.nanoTime.
+     * @return The handle index, or -1 if every handle of the type is playing.
+     */
+    private int freeHandle(int type, long now) {
+        int busy = 0;
+        for (int v = 0; v < MAX_VOICES; v++) {
+            if (isPlaying(v, now) && voiceType[v] == type) {
+                busy |= 1 << voiceHandle[v];
+            }
+        }
+        int free = Integer.numberOfTrailingZeros(~busy);
+        return free < VOICES_PER_TYPE ? free : -1;
+    }
+
+    /**
+     * Checks whether a voice is still playing its cue, comparing nanoTime values by their difference
+     * so the check holds wherever the clock starts.
+     *
+     * @param voice The voice index.
+     * @param now   The current System.nanoTime.
+     * @return True if the cue of the voice has not finished.
+     */
+    private boolean isPlaying(int voice, long now) {
+        return voiceEnd[voice] - now > 0;
+    }
+
+    /**
+     * Finds a voice that is not playing.
+     *
+     * @param now The current System.nanoTime.
+     * @return The voice index, or -1 if every voice is playing.
+     */
+    private int freeVoice(long now) {
+        for (int v = 0; v < MAX_VOICES; v++) {
+            if (!isPlaying(v, now)) {
+                return v;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the voice to steal: the playing one with the lowest priority, the oldest among equals.
+     *
+     * @param type The type the voice must be playing, or -1 for any type.
+     * @param now  The current System.nanoTime.
+     * @return The voice index, or -1 if no voice qualifies.
+     */
+    private int quietestVoice(int type, long now) {
+        int quietest = -1;
+        for (int v = 0; v < MAX_VOICES; v++) {
+            if (!isPlaying(v, now) || (type >= 0 && voiceType[v] != type)) {
+                continue;
+            }
+            if (quietest < 0 || voicePriority[v] < voicePriority[quietest]
+                    || (voicePriority[v] == voicePriority[quietest] && voiceStart[v] - voiceStart[quietest] < 0)) {
+                quietest = v;
+            }
+        }
+        return quietest;
+    }
+
+    /**
+     * Gets the number of cues started.
+     *
+     * @return The cue count.
+     */
+    public long getCuesPlayed() {
+        return cuesPlayed;
+    }
+
+    /**
+     * Gets the number of cues dropped because every voice was playing a louder cue.
+     *
+     * @return The dropped count.
+     */
+    public long getCuesDropped() {
+        return cuesDropped;
+    }
+
+    /**
+     * Gets the number of cues cut short to make room for a new one.
+     *
+     * @return The stolen count.
+     */
+    public long getVoicesStolen() {
+        return voicesStolen;
+    }
+
+    /**
+     * Gets the number of wins that did not get a cue of their own, because another win of the same
+     * type in the same tick did.
+     *
+     * @return The coalesced count.
+     */
+    public long getWinsCoalesced() {
+        return winsCoalesced;
+    }
+
+    /**
+     * Gets the largest number of cues that played at the same time.
+     *
+     * @return The peak voice count, at most MAX_VOICES.
+     */
+    public int getPeakVoices() {
+        return peakVoices;
+    }
+
+    /**
+     * Stops the subscriber, then every cue, and unloads the sounds.
+     */
+    @Override
+    public void close() {
+        if (subscription != null) {
+            subscription.close();
+        }
+        Sound[][] current = sounds;
+        sounds = new Sound[0][];
+        for (Sound[] pool : current) {
+            if (pool != null) {
+                unload(pool);
+            }
+        }
+    }
+
+    /**
+     * Stops and unloads the handles of one type.
+     *
+     * @param pool The handles, some of which may be null.
+     */
+    private static void unload(Sound[] pool) {
+        for (Sound sound : pool) {
+            if (sound != null) {
+                sound.stop();
+                sound.unload();
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+import java.util.Arrays;
+
+/**
+ * SpatialHashGrid is a uniform-grid broad phase for collision detection on the battlefield.
+ * Every entry is bucketed by the grid cell containing its top-left corner. As long as the cell size
+ * is at least as large as the widest and tallest shape, two shapes can only intersect when their cells
+ * are neighbours, so a collision query only has to look at the surrounding 3x3 block of cells.
+ * The grid is cleared and refilled every tick and reuses its arrays, so rebuilding it does not
+ * allocate once the battlefield has reached a steady population.
+ */
+public class SpatialHashGrid {
+
+    private int cellSize = 1;
+    private int mask;
+    private int[] bucketHeads = new int[0];
+    private int[] next = new int[0];
+    private int[] cellX = new int[0];
+    private int[] cellY = new int[0];
+
+    /**
+     * Empties the grid and prepares it for the given number of entries.
+     * Entry ids passed to insert must be in the range [0, count).
+     *
+     * @param count    The number of entries that will be inserted.
+     * @param cellSize The side length of a grid cell; must not be smaller than the largest shape dimension.
+     */
+    public void clear(int count, int cellSize) {
+        this.cellSize = Math.max(1, cellSize);
+        ensureCapacity(count);
+        Arrays.fill(bucketHeads, -1);
+    }
+
+    /**
+     * Inserts an entry into the cell containing its top-left corner.
+     *
+     * @param id The entry id.
+     * @param x  The x coordinate of the top-left corner.
+     * @param y  The y coordinate of the top-left corner.
+     */
+    public void insert(int id, int x, int y) {
+        int cx = Math.floorDiv(x, cellSize);
+        int cy = Math.floorDiv(y, cellSize);
+        int bucket = bucketOf(cx, cy);
+        cellX[id] = cx;
+        cellY[id] = cy;
+        next[id] = bucketHeads[bucket];
+        bucketHeads[bucket] = id;
+    }
+
+    /**
+     * Gets the cell column of an entry in the grid.
+     *
+     * @param id The entry id.
+     * @return The column of the cell containing the entry.
+     */
+    public int getCellX(int id) {
+        return cellX[id];
+    }
+
+    /**
+     * Gets the cell row of an entry in the grid.
+     *
+     * @param id The entry id.
+     * @return The row of the cell containing the entry.
+     */
+    public int getCellY(int id) {
+        return cellY[id];
+    }
+
+    /**
+     * Gets the first entry stored in a cell.
+     * Together with nextInCell this walks a single cell without allocating.
+     *
+     * @param cx The cell column.
+     * @param cy The cell row.
+     * @return The id of the first entry in the cell, or -1 if the cell is empty.
+     */
+    public int firstInCell(int cx, int cy) {
+        return skipToCell(bucketHeads[bucketOf(cx, cy)], cx, cy);
+    }
+
+    /**
+     * Gets the entry following the given one in the same cell.
+     *
+     * @param id The id of the current entry.
+     * @return The id of the next entry in the same cell, or -1 if there are no more.
+     */
+    public int nextInCell(int id) {
+        return skipToCell(next[id], cellX[id], cellY[id]);
+    }
+
+    /**
+     * Follows a bucket chain until it reaches an entry that really belongs to the given cell.
+     * Different cells can hash to the same bucket, so foreign entries have to be skipped.
+     *
+     * @param id The entry to start from.
+     * @param cx The cell column being walked.
+     * @param cy The cell row being walked.
+     * @return The id of the next entry in the cell, or -1 if there are no more.
+     */
+    private int skipToCell(int id, int cx, int cy) {
+        while (id != -1 && (cellX[id] != cx || cellY[id] != cy)) {
+            id = next[id];
+        }
+        return id;
+    }
+
+    /**
+     * Hashes a cell coordinate to a bucket index.
+     *
+     * @param cx The cell column.
+     * @param cy The cell row.
+     * @return The bucket the cell maps to.
+     */
+    private int bucketOf(int cx, int cy) {
+        int hash = cx * 0x9E3779B1 + cy * 0x85EBCA77;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    /**
+     * Grows the internal arrays so that the given number of entries can be stored.
+     * The bucket table is kept at a power of two of at least twice the entry count.
+     *
+     * @param count The number of entries that will be inserted.
+     */
+    private void ensureCapacity(int count) {
+        if (next.length < count) {
+            int capacity = Math.max(count, next.length * 2);
+            next = new int[capacity];
+            cellX = new int[capacity];
+            cellY = new int[capacity];
+        }
+        int buckets = Integer.highestOneBit(Math.max(16, count * 2 - 1)) << 1;
+        if (bucketHeads.length < buckets) {
+            bucketHeads = new int[buckets];
+            mask = buckets - 1;
+        }
+    }
+}
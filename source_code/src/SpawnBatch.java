@@ -0,0 +1,150 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * SpawnBatch is a group of characters that join the battlefield together.
+ * The characters are kept in primitive columns of type ordinal and position, so a batch of thousands
+ * of characters is a handful of arrays rather than thousands of objects, and the engine adds the
+ * whole batch to its entity store in one go at the start of a tick.
+ * Batches are filled either one character at a time or by the uniform and gaussian wave factories.
+ */
+public class SpawnBatch {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int size;
+    private int[] type = new int[INITIAL_CAPACITY];
+    private int[] x = new int[INITIAL_CAPACITY];
+    private int[] y = new int[INITIAL_CAPACITY];
+
+    /**
+     * Constructor for SpawnBatch. Creates an empty batch.
+     */
+    public SpawnBatch() {
+    }
+
+    /**
+     * Creates a wave of characters spread evenly over a rectangular area.
+     *
+     * @param type   The type of the characters.
+     * @param count  The number of characters in the wave.
+     * @param width  The width of the area, starting at x = 0.
+     * @param height The height of the area, starting at y = 0.
+     * @param random The random generator that picks the positions.
+     * @return The batch holding the wave.
+     */
+    public static SpawnBatch uniform(CharacterType type, int count, int width, int height, Random random) {
+        SpawnBatch batch = new SpawnBatch();
+        batch.ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            batch.add(type, random.nextInt(Math.max(1, width)), random.nextInt(Math.max(1, height)));
+        }
+        return batch;
+    }
+
+    /**
+     * Creates a wave of characters clustered around a point, with positions drawn from a normal
+     * distribution on each axis.
+     *
+     * @param type    The type of the characters.
+     * @param count   The number of characters in the wave.
+     * @param centerX The x coordinate the wave is centered on.
+     * @param centerY The y coordinate the wave is centered on.
+     * @param spread  The standard deviation of the positions, in pixels.
+     * @param random  The random generator that picks the positions.
+     * @return The batch holding the wave.
+     */
+    public static SpawnBatch gaussian(CharacterType type, int count, int centerX, int centerY, double spread,
+                                      Random random) {
+        SpawnBatch batch = new SpawnBatch();
+        batch.ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            int spawnX = (int) Math.round(centerX + random.nextGaussian() * spread);
+            int spawnY = (int) Math.round(centerY + random.nextGaussian() * spread);
+            batch.add(type, spawnX, spawnY);
+        }
+        return batch;
+    }
+
+    /**
+     * Adds a character to the batch.
+     *
+     * @param type The type of the character.
+     * @param x    The x coordinate of the top-left corner.
+     * @param y    The y coordinate of the top-left corner.
+     */
+    public void add(CharacterType type, int x, int y) {
+        if (size == this.x.length) {
+            ensureCapacity(size * 2);
+        }
+        this.type[size] = type.getOrdinal();
+        this.x[size] = x;
+        this.y[size] = y;
+        size++;
+    }
+
+    /**
+     * Adds every character of another batch to the end of this one.
+     *
+     * @param other The batch to append.
+     */
+    public void addAll(SpawnBatch other) {
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.type, 0, type, size, other.size);
+        System.arraycopy(other.x, 0, x, size, other.size);
+        System.arraycopy(other.y, 0, y, size, other.size);
+        size += other.size;
+    }
+
+    /**
+     * Makes sure the batch can hold a number of characters without growing.
+     *
+     * @param capacity The number of characters.
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity > x.length) {
+            type = Arrays.copyOf(type, capacity);
+            x = Arrays.copyOf(x, capacity);
+            y = Arrays.copyOf(y, capacity);
+        }
+    }
+
+    /**
+     * Gets the number of characters in the batch.
+     *
+     * @return The batch size.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the type of a character in the batch.
+     *
+     * @param index The index of the character.
+     * @return The type ordinal.
+     */
+    public int getType(int index) {
+        return type[index];
+    }
+
+    /**
+     * Gets the x coordinate of a character in the batch.
+     *
+     * @param index The index of the character.
+     * @return The x coordinate of the top-left corner.
+     */
+    public int getX(int index) {
+        return x[index];
+    }
+
+    /**
+     * Gets the y coordinate of a character in the batch.
+     *
+     * @param index The index of the character.
+     * @return The y coordinate of the top-left corner.
+     */
+    public int getY(int index) {
+        return y[index];
+    }
+}
@@ -0,0 +1,297 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * SpectatorModel is a spectator's copy of a battle streamed by a SpectatorServer. It starts empty,
+ * takes the whole battlefield from the first keyframe, and from then on applies every delta: it
+ * removes the characters that left, moves the rest by the velocity of their type, applies the
+ * corrections and adds the characters that joined. After every delta the copy is checked against the
+ * count and hash the server sent, so a spectator notices at once if it ever falls out of step.
+ * A model is not thread-safe.
+ */
+public class SpectatorModel {
+
+    private final EntityStore entities = new EntityStore();
+    private boolean synced;
+    private long tick;
+    private int fieldWidth;
+    private int fieldHeight;
+    private long jumpScares;
+    private long collisions;
+    private long despawns;
+    private long keyframes;
+    private long deltas;
+
+    /**
+     * Applies a frame to the copy. Deltas that arrive before the first keyframe are skipped.
+     *
+     * @param frame The frame, from just after its length to its end.
+     * @return True if the frame was applied, or false if it was skipped.
+     * @throws IOException If the frame is malformed, or the copy no longer matches the server's.
+     */
+    public boolean apply(ByteBuffer frame) throws IOException {
+        try {
+            int kind = readInt(frame);
+            if (kind == SpectatorServer.FRAME_KEY) {
+                applyKeyframe(frame);
+                return true;
+            }
+            if (kind != SpectatorServer.FRAME_DELTA) {
+                throw new IOException("Unknown spectator frame " + kind);
+            }
+            if (!synced) {
+                return false;
+            }
+            applyDelta(frame);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            synced = false;
+            throw e instanceof IOException ? (IOException) e : new IOException("Malformed spectator frame", e);
+        }
+    }
+
+    /**
+     * Replaces the copy with the battlefield of a keyframe.
+     *
+     * @param frame The frame, just after its kind.
+     * @throws IOException If the frame is malformed.
+     */
+    private void applyKeyframe(ByteBuffer frame) throws IOException {
+        readHeader(frame);
+        int count = readInt(frame);
+        entities.clear();
+        entities.ensureCapacity(count);
+        readCharacters(frame, count, -1);
+        synced = true;
+        keyframes++;
+    }
+
+    /**
+     * Applies a delta to the copy and checks the result.
+     *
+     * @param frame The frame, just after its kind.
+     * @throws IOException If the frame is malformed or the result does not match the server's.
+     */
+    private void applyDelta(ByteBuffer frame) throws IOException {
+        int scale = readHeader(frame);
+
+        int removed = readInt(frame);
+        int index = 0;
+        long id = -1;
+        for (int k = 0; k < removed; k++) {
+            long value = readVarint(frame);
+            id += value >>> 1;
+            while (index < entities.size() && entities.getId(index) < id) {
+                index++;
+            }
+            if (index == entities.size() || entities.getId(index) != id) {
+                throw new IOException("Spectator frame removes unknown character " + id);
+            }
+            entities.markRemoved(index);
+            if ((value & 1) != 0) {
+                collisions++;
+            } else {
+                despawns++;
+            }
+        }
+        entities.compact();
+        entities.moveAll(scale);
+
+        int corrections = readInt(frame);
+        index = -1;
+        for (int k = 0; k < corrections; k++) {
+            index += readInt(frame);
+            int dx = (int) readSigned(frame);
+            int dy = (int) readSigned(frame);
+            entities.setPosition(index, entities.getX(index) + dx, entities.getY(index) + dy);
+        }
+
+        int spawned = readInt(frame);
+        readCharacters(frame, spawned, entities.size() > 0 ? entities.getId(entities.size() - 1) : -1);
+
+        int count = readInt(frame);
+        int hash = frame.getInt();
+        if (count != entities.size() || hash != SpectatorServer.hash(entities)) {
+            throw new IOException("Spectator copy out of step at tick " + tick);
+        }
+        deltas++;
+    }
+
+    /**
+     * Reads the header shared by both kinds of frame.
+     *
+     * @param frame The frame, just after its kind.
+     * @return The speed scale of the tick.
+     * @throws IOException If the frame is malformed.
+     */
+    private int readHeader(ByteBuffer frame) throws IOException {
+        tick = readVarint(frame);
+        int scale = readInt(frame);
+        fieldWidth = readInt(frame);
+        fieldHeight = readInt(frame);
+        jumpScares += readVarint(frame);
+        return scale;
+    }
+
+    /**
+     * Reads a list of characters and adds them to the copy.
+     *
+     * @param frame      The frame.
+     * @param count      The number of characters.
+     * @param previousId The id the first character's id is relative to.
+     * @throws IOException If the frame is malformed.
+     */
+    private void readCharacters(ByteBuffer frame, int count, long previousId) throws IOException {
+        long id = previousId;
+        int x = 0;
+        int y = 0;
+        for (int k = 0; k < count; k++) {
+            id += readVarint(frame);
+            int ordinal = readInt(frame);
+            if (ordinal >= CharacterType.count()) {
+                throw new IOException("Unknown character type " + ordinal + " in spectator frame");
+            }
+            x += (int) readSigned(frame);
+            y += (int) readSigned(frame);
+            CharacterType type = CharacterType.get(ordinal);
+            entities.addWithId((int) id, x, y, type.getWidth(), type.getHeight(), type.getVelocityX(),
+                    type.getVelocityY(), ordinal);
+        }
+    }
+
+    /**
+     * Reads an unsigned value written in seven-bit groups, least significant first.
+     *
+     * @param frame The frame.
+     * @return The value.
+     * @throws IOException If the value is malformed.
+     */
+    private static long readVarint(ByteBuffer frame) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = frame.get() & 0xFF;
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in spectator frame");
+    }
+
+    /**
+     * Reads a varint that must fit in an int.
+     *
+     * @param frame The frame.
+     * @return The value.
+     * @throws IOException If the value is malformed or too large.
+     */
+    private static int readInt(ByteBuffer frame) throws IOException {
+        long value = readVarint(frame);
+        if (value > Integer.MAX_VALUE) {
+            throw new IOException("Value out of range in spectator frame: " + value);
+        }
+        return (int) value;
+    }
+
+    /**
+     * Reads a zigzag-encoded signed varint.
+     *
+     * @param frame The frame.
+     * @return The value.
+     * @throws IOException If the value is malformed.
+     */
+    private static long readSigned(ByteBuffer frame) throws IOException {
+        long value = readVarint(frame);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Checks whether the copy has taken a keyframe and has been in step since.
+     *
+     * @return True if the copy matches the server's battlefield as of the last applied frame.
+     */
+    public boolean isSynced() {
+        return synced;
+    }
+
+    /**
+     * Gets the characters of the copy, sorted by id.
+     *
+     * @return The characters.
+     */
+    public EntityStore getEntities() {
+        return entities;
+    }
+
+    /**
+     * Gets the tick of the last applied frame.
+     *
+     * @return The tick.
+     */
+    public long getTick() {
+        return tick;
+    }
+
+    /**
+     * Gets the battlefield width of the last applied frame.
+     *
+     * @return The width in pixels.
+     */
+    public int getFieldWidth() {
+        return fieldWidth;
+    }
+
+    /**
+     * Gets the battlefield height of the last applied frame.
+     *
+     * @return The height in pixels.
+     */
+    public int getFieldHeight() {
+        return fieldHeight;
+    }
+
+    /**
+     * Gets the number of jump scares seen so far.
+     *
+     * @return The jump scare count.
+     */
+    public long getJumpScares() {
+        return jumpScares;
+    }
+
+    /**
+     * Gets the number of characters seen losing a collision.
+     *
+     * @return The collision count.
+     */
+    public long getCollisions() {
+        return collisions;
+    }
+
+    /**
+     * Gets the number of characters seen despawning.
+     *
+     * @return The despawn count.
+     */
+    public long getDespawns() {
+        return despawns;
+    }
+
+    /**
+     * Gets the number of keyframes applied.
+     *
+     * @return The keyframe count.
+     */
+    public long getKeyframes() {
+        return keyframes;
+    }
+
+    /**
+     * Gets the number of deltas applied.
+     *
+     * @return The delta count.
+     */
+    public long getDeltas() {
+        return deltas;
+    }
+}
@@ -0,0 +1,758 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SpectatorServer streams a running battle to any number of remote spectators over TCP.
+ * After every tick the simulation thread calls publish, which encodes what changed since the previous
+ * tick into a delta frame: the characters that joined, the ones that left and whether they lost a
+ * collision or despawned, and the jump scares that played. Movement is not sent, since every character
+ * moves by the velocity of its type; only positions that differ from that prediction are sent as
+ * corrections, so a tick of a steady battle costs a few bytes no matter how many characters are on the
+ * battlefield. A keyframe holds the whole battlefield and is sent to spectators that join or fall
+ * behind. SpectatorModel decodes both kinds of frame.
+ *
+ * <p>A single selector thread serves every spectator with non-blocking writes. Each frame is encoded
+ * once and shared by every spectator. A spectator whose unsent frames exceed the backlog limit loses
+ * them and waits for the next keyframe instead, so a slow spectator never holds more than about one
+ * backlog plus one keyframe of memory, and never slows down the simulation or the other spectators.
+ * Frames are only encoded while someone is watching.
+ *
+ * <p>Every frame starts with its length as a four-byte big-endian int, followed by its kind. Numbers are
+ * varints, signed numbers are zigzag-encoded, and ids and positions are sent as differences to the
+ * previous character of the list. Every delta ends with the character count and a hash of every id
+ * and position, so a spectator can check that it is still in step.
+ */
+public class SpectatorServer implements Closeable {
+
+    static final int FRAME_KEY = 1;
+    static final int FRAME_DELTA = 2;
+    static final int DEFAULT_MAX_BACKLOG_BYTES = 1 << 20;
+    // Kept small so a stalled spectator shows up in its backlog instead of hiding in kernel buffers
+    private static final int SEND_BUFFER_BYTES = 16 * 1024;
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final Thread thread;
+    private final int maxBacklogBytes;
+    private final Queue<Frame> published = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean keyframeRequested = new AtomicBoolean();
+    private final AtomicInteger jumpScares = new AtomicInteger();
+    private final List<Spectator> spectators = new ArrayList<>();
+    private volatile int spectatorCount;
+    private volatile boolean running = true;
+    private volatile long keyframesSent;
+    private volatile long resyncs;
+    private volatile long bytesSent;
+
+    // The battlefield as the spectators last saw it, owned by the simulation thread
+    private final FrameWriter writer = new FrameWriter();
+    private boolean lastValid;
+    private int lastCount;
+    private int[] lastId = new int[0];
+    private int[] lastType = new int[0];
+    private int[] lastX = new int[0];
+    private int[] lastY = new int[0];
+
+    /**
+     * Constructor for SpectatorServer. Opens the port and starts the selector thread.
+     *
+     * @param port            The port to listen on, or 0 for any free port.
+     * @param maxBacklogBytes The most unsent bytes a spectator may fall behind by before it is resent
+     *                        a keyframe instead.
+     * @throws IOException If the port cannot be opened.
+     */
+    public SpectatorServer(int port, int maxBacklogBytes) throws IOException {
+        this.maxBacklogBytes = maxBacklogBytes;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+        this.thread = new Thread(this::serve, "spectator-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Gets the port the server listens on.
+     *
+     * @return The port.
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Notes that a jump scare played; it is sent with the next delta. Safe to call from any thread.
+     */
+    public void recordJumpScare() {
+        jumpScares.incrementAndGet();
+    }
+
+    /**
+     * Sends the spectators what the last tick changed. Call on the simulation thread after every step
+     * of the engine.
+     *
+     * @param engine The engine that just finished a tick.
+     */
+    public void publish(BattlefieldEngine engine) {
+        if (spectatorCount == 0) {
+            lastValid = false;
+            jumpScares.set(0);
+            return;
+        }
+        EntityStore entities = engine.getEntities();
+        boolean keyframe = keyframeRequested.getAndSet(false);
+        int scares = jumpScares.getAndSet(0);
+        if (!lastValid || !encodeDelta(engine, entities, scares)) {
+            // Nothing to compare with, or a change a delta cannot express, such as a loaded save
+            publishFrame(encodeKeyframe(engine, entities, scares), true, true);
+        } else {
+            publishFrame(writer.toFrame(), false, false);
+            if (keyframe) {
+                // The delta already carried the jump scares to the spectators that are in step
+                publishFrame(encodeKeyframe(engine, entities, 0), true, false);
+            }
+        }
+        remember(entities);
+    }
+
+    /**
+     * Encodes the changes since the battlefield the spectators last saw into the frame writer.
+     *
+     * @param engine   The engine.
+     * @param entities The characters after the tick.
+     * @param scares   The number of jump scares since the last frame.
+     * @return False if the changes cannot be expressed as a delta, because characters were replaced
+     *         rather than added, removed or moved.
+     */
+    private boolean encodeDelta(BattlefieldEngine engine, EntityStore entities, int scares) {
+        int scale = engine.getSpeedScale();
+        int margin = engine.getDespawnMargin();
+        int width = engine.getFieldWidth();
+        int height = engine.getFieldHeight();
+        writer.begin(FRAME_DELTA);
+        writer.writeVarint(engine.getTickCount());
+        writer.writeVarint(scale);
+        writer.writeVarint(width);
+        writer.writeVarint(height);
+        writer.writeVarint(scares);
+
+        // Removals: every last id that is gone, flagged with whether it lost a collision
+        int count = entities.size();
+        int removed = 0;
+        int removedAt = writer.reserveVarint();
+        int previousId = -1;
+        int j = 0;
+        for (int i = 0; i < lastCount; i++) {
+            while (j < count && entities.getId(j) < lastId[i]) {
+                j++;
+            }
+            if (j < count && entities.getId(j) == lastId[i]) {
+                continue;
+            }
+            CharacterType type = CharacterType.get(lastType[i]);
+            int x = lastX[i] + type.getVelocityX() * scale;
+            int y = lastY[i] + type.getVelocityY() * scale;
+            boolean despawned = x + type.getWidth() <= -margin || x >= width + margin
+                    || y + type.getHeight() <= -margin || y >= height + margin;
+            writer.writeVarint(((long) (lastId[i] - previousId) << 1) | (despawned ? 0 : 1));
+            previousId = lastId[i];
+            removed++;
+        }
+        writer.patchVarint(removedAt, removed);
+
+        // Corrections: survivors that are not where their velocity took them, by survivor index
+        int corrections = 0;
+        int spawnStart = count;
+        int survivor = 0;
+        int correctionsAt = writer.reserveVarint();
+        int previousSurvivor = -1;
+        int i = 0;
+        for (j = 0; j < count; j++) {
+            int id = entities.getId(j);
+            while (i < lastCount && lastId[i] < id) {
+                i++;
+            }
+            if (i == lastCount || lastId[i] != id) {
+                if (spawnStart == count) {
+                    spawnStart = j;
+                }
+                continue;
+            }
+            if (spawnStart != count || lastType[i] != entities.getType(j)) {
+                return false; // A new character before an old one, or a character that changed type
+            }
+            CharacterType type = CharacterType.get(lastType[i]);
+            int dx = entities.getX(j) - (lastX[i] + type.getVelocityX() * scale);
+            int dy = entities.getY(j) - (lastY[i] + type.getVelocityY() * scale);
+            if (dx != 0 || dy != 0) {
+                writer.writeVarint(survivor - previousSurvivor);
+                writer.writeSigned(dx);
+                writer.writeSigned(dy);
+                previousSurvivor = survivor;
+                corrections++;
+            }
+            survivor++;
+        }
+        writer.patchVarint(correctionsAt, corrections);
+
+        // Spawns: the new characters, which always come after the survivors
+        writer.writeVarint(count - spawnStart);
+        previousId = spawnStart > 0 ? entities.getId(spawnStart - 1) : -1;
+        int previousX = 0;
+        int previousY = 0;
+        for (j = spawnStart; j < count; j++) {
+            writer.writeVarint(entities.getId(j) - previousId);
+            writer.writeVarint(entities.getType(j));
+            writer.writeSigned(entities.getX(j) - previousX);
+            writer.writeSigned(entities.getY(j) - previousY);
+            previousId = entities.getId(j);
+            previousX = entities.getX(j);
+            previousY = entities.getY(j);
+        }
+        writer.writeVarint(count);
+        writer.writeInt(hash(entities));
+        return true;
+    }
+
+    /**
+     * Encodes the whole battlefield as a keyframe.
+     *
+     * @param engine   The engine.
+     * @param entities The characters.
+     * @param scares   The number of jump scares since the last frame.
+     * @return The frame.
+     */
+    private ByteBuffer encodeKeyframe(BattlefieldEngine engine, EntityStore entities, int scares) {
+        writer.begin(FRAME_KEY);
+        writer.writeVarint(engine.getTickCount());
+        writer.writeVarint(engine.getSpeedScale());
+        writer.writeVarint(engine.getFieldWidth());
+        writer.writeVarint(engine.getFieldHeight());
+        writer.writeVarint(scares);
+        writer.writeVarint(entities.size());
+        int previousId = -1;
+        int previousX = 0;
+        int previousY = 0;
+        for (int i = 0; i < entities.size(); i++) {
+            writer.writeVarint(entities.getId(i) - previousId);
+            writer.writeVarint(entities.getType(i));
+            writer.writeSigned(entities.getX(i) - previousX);
+            writer.writeSigned(entities.getY(i) - previousY);
+            previousId = entities.getId(i);
+            previousX = entities.getX(i);
+            previousY = entities.getY(i);
+        }
+        return writer.toFrame();
+    }
+
+    /**
+     * Remembers the battlefield as the spectators now see it, for the next delta.
+     *
+     * @param entities The characters.
+     */
+    private void remember(EntityStore entities) {
+        int count = entities.size();
+        if (lastId.length < count) {
+            int capacity = Math.max(count, lastId.length * 2);
+            lastId = new int[capacity];
+            lastType = new int[capacity];
+            lastX = new int[capacity];
+            lastY = new int[capacity];
+        }
+        for (int i = 0; i < count; i++) {
+            lastId[i] = entities.getId(i);
+            lastType[i] = entities.getType(i);
+            lastX[i] = entities.getX(i);
+            lastY[i] = entities.getY(i);
+        }
+        lastCount = count;
+        lastValid = true;
+    }
+
+    /**
+     * Hashes the ids and positions of every character, for spectators to check their copy against.
+     *
+     * @param entities The characters.
+     * @return The hash.
+     */
+    static int hash(EntityStore entities) {
+        int hash = 1;
+        for (int i = 0; i < entities.size(); i++) {
+            hash = hash * 31 + entities.getId(i);
+            hash = hash * 31 + entities.getX(i);
+            hash = hash * 31 + entities.getY(i);
+        }
+        return hash;
+    }
+
+    /**
+     * Hands a frame to the selector thread.
+     *
+     * @param data     The encoded frame.
+     * @param keyframe True for a keyframe.
+     * @param reset    True if the frame replaces the delta of its tick, so every spectator needs it.
+     */
+    private void publishFrame(ByteBuffer data, boolean keyframe, boolean reset) {
+        published.add(new Frame(data, keyframe, reset));
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the selector loop: accepts spectators, queues published frames for them and writes as much
+     * as each socket takes without blocking.
+     */
+    private void serve() {
+        while (running) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Spectator spectator = (Spectator) key.attachment();
+                    if (key.isReadable()) {
+                        spectator.drainInput();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        spectator.flush();
+                    }
+                }
+                Frame frame;
+                while ((frame = published.poll()) != null) {
+                    for (int s = 0; s < spectators.size(); s++) {
+                        spectators.get(s).offer(frame);
+                    }
+                }
+                spectators.removeIf(Spectator::isClosed);
+                spectatorCount = spectators.size();
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Accepts a new spectator, which waits for the next keyframe.
+     *
+     * @throws IOException If the connection cannot be set up.
+     */
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.socket().setSendBufferSize(SEND_BUFFER_BYTES);
+        Spectator spectator = new Spectator(channel);
+        spectator.key = channel.register(selector, SelectionKey.OP_READ, spectator);
+        spectators.add(spectator);
+        spectatorCount = spectators.size();
+        keyframeRequested.set(true);
+    }
+
+    /**
+     * Gets the number of connected spectators.
+     *
+     * @return The spectator count.
+     */
+    public int getSpectatorCount() {
+        return spectatorCount;
+    }
+
+    /**
+     * Gets the number of keyframes written out to spectators in full, counting every spectator separately.
+     *
+     * @return The keyframe count.
+     */
+    public long getKeyframesSent() {
+        return keyframesSent;
+    }
+
+    /**
+     * Gets the number of times a spectator fell too far behind and had its backlog dropped.
+     *
+     * @return The resync count.
+     */
+    public long getResyncs() {
+        return resyncs;
+    }
+
+    /**
+     * Gets the number of bytes sent to all spectators together.
+     *
+     * @return The byte count.
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Stops the selector thread and disconnects every spectator.
+     *
+     * @throws IOException If the port cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Spectator spectator : spectators) {
+            spectator.close();
+        }
+        serverChannel.close();
+        selector.close();
+    }
+
+    /**
+     * Frame is an encoded frame, shared read-only by every spectator it is queued for.
+     */
+    private static final class Frame {
+
+        private final ByteBuffer data;
+        private final boolean keyframe;
+        private final boolean reset;
+
+        /**
+         * Constructor for Frame.
+         *
+         * @param data     The encoded frame, including its length.
+         * @param keyframe True for a keyframe.
+         * @param reset    True if every spectator needs the frame.
+         */
+        Frame(ByteBuffer data, boolean keyframe, boolean reset) {
+            this.data = data;
+            this.keyframe = keyframe;
+            this.reset = reset;
+        }
+    }
+
+    /**
+     * Pending is a frame queued for one spectator, with its own write position.
+     */
+    private static final class Pending {
+
+        private final ByteBuffer data;
+        private final boolean keyframe;
+
+        /**
+         * Constructor for Pending.
+         *
+         * @param data     A duplicate of the encoded frame.
+         * @param keyframe True for a keyframe.
+         */
+        Pending(ByteBuffer data, boolean keyframe) {
+            this.data = data;
+            this.keyframe = keyframe;
+        }
+    }
+
+    /**
+     * Spectator is a connected spectator and the frames still to be written to it.
+     * Only used on the selector thread.
+     */
+    private final class Spectator {
+
+        private final SocketChannel channel;
+        private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+        private final ByteBuffer input = ByteBuffer.allocate(256);
+        private SelectionKey key;
+        private long backlog; // Unsent bytes of every queued frame
+        private long keyframeBacklog; // The part of the backlog that is keyframes, which the limit leaves out
+        private boolean awaitingKeyframe = true;
+        private boolean closed;
+
+        /**
+         * Constructor for Spectator.
+         *
+         * @param channel The connected channel.
+         */
+        Spectator(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Queues a frame if the spectator needs it, and writes what the socket takes.
+         * A keyframe makes every queued frame before it that has not started to be written redundant.
+         * A spectator whose deltas would fall more than the backlog limit behind drops them and waits
+         * for a keyframe; keyframes do not count towards the limit, so one larger than the limit still
+         * gets through.
+         *
+         * @param frame The frame.
+         */
+        void offer(Frame frame) {
+            if (closed) {
+                return;
+            }
+            if (frame.keyframe) {
+                if (!awaitingKeyframe && !frame.reset) {
+                    return;
+                }
+                dropUnstarted(true);
+                awaitingKeyframe = false;
+            } else if (awaitingKeyframe) {
+                return;
+            } else if (backlog - keyframeBacklog + frame.data.remaining() > maxBacklogBytes) {
+                dropBacklog();
+                return;
+            }
+            ByteBuffer data = frame.data.duplicate();
+            pending.add(new Pending(data, frame.keyframe));
+            backlog += data.remaining();
+            if (frame.keyframe) {
+                keyframeBacklog += data.remaining();
+            }
+            flush();
+        }
+
+        /**
+         * Drops the queued deltas that have not started to be written, so the spectator does not see a
+         * frame cut in half, and waits for a keyframe. Queued keyframes are kept, since the spectator can
+         * pick up from them; the next keyframe is asked for once everything queued has been written.
+         */
+        void dropBacklog() {
+            dropUnstarted(false);
+            awaitingKeyframe = true;
+            resyncs++;
+            requestKeyframeIfDrained();
+        }
+
+        /**
+         * Removes the queued frames that have not started to be written.
+         *
+         * @param keyframes True to remove keyframes as well as deltas.
+         */
+        private void dropUnstarted(boolean keyframes) {
+            Iterator<Pending> frames = pending.iterator();
+            while (frames.hasNext()) {
+                Pending frame = frames.next();
+                if (frame.data.position() == 0 && (keyframes || !frame.keyframe)) {
+                    frames.remove();
+                    backlog -= frame.data.remaining();
+                    if (frame.keyframe) {
+                        keyframeBacklog -= frame.data.remaining();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Asks the simulation thread for a keyframe if this spectator waits for one and has nothing
+         * left to write, so the keyframe is not queued behind frames it replaces.
+         */
+        private void requestKeyframeIfDrained() {
+            if (awaitingKeyframe && pending.isEmpty()) {
+                keyframeRequested.set(true);
+            }
+        }
+
+        /**
+         * Writes queued frames until the socket stops taking data, and watches for the socket to become
+         * writable again if anything is left.
+         */
+        void flush() {
+            try {
+                while (!pending.isEmpty()) {
+                    Pending frame = pending.peek();
+                    int written = channel.write(frame.data);
+                    backlog -= written;
+                    bytesSent += written;
+                    if (frame.keyframe) {
+                        keyframeBacklog -= written;
+                    }
+                    if (frame.data.hasRemaining()) {
+                        break;
+                    }
+                    pending.poll();
+                    if (frame.keyframe) {
+                        keyframesSent++;
+                    }
+                }
+                key.interestOps(pending.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                requestKeyframeIfDrained();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Reads and discards whatever the spectator sent, closing the connection once it hangs up.
+         */
+        void drainInput() {
+            try {
+                input.clear();
+                if (channel.read(input) < 0) {
+                    close();
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Checks whether the connection has been closed.
+         *
+         * @return True once closed.
+         */
+        boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * Closes the connection and forgets the queued frames.
+         */
+        void close() {
+            closed = true;
+            pending.clear();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * FrameWriter encodes a frame into a growable buffer that is reused from frame to frame.
+     * Only used on the simulation thread.
+     */
+    private static final class FrameWriter {
+
+        private byte[] buffer = new byte[4096];
+        private int position;
+
+        /**
+         * Starts a new frame, leaving room for its length.
+         *
+         * @param kind The kind of frame.
+         */
+        void begin(int kind) {
+            position = 4;
+            writeVarint(kind);
+        }
+
+        /**
+         * Writes an unsigned value in seven-bit groups, least significant first.
+         *
+         * @param value The value.
+         */
+        void writeVarint(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        /**
+         * Writes a signed value as a zigzag-encoded varint.
+         *
+         * @param value The value.
+         */
+        void writeSigned(long value) {
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        /**
+         * Writes a four-byte big-endian int.
+         *
+         * @param value The value.
+         */
+        void writeInt(int value) {
+            ensureCapacity(4);
+            buffer[position++] = (byte) (value >>> 24);
+            buffer[position++] = (byte) (value >>> 16);
+            buffer[position++] = (byte) (value >>> 8);
+            buffer[position++] = (byte) value;
+        }
+
+        /**
+         * Leaves room for a varint whose value is only known later, written with patchVarint.
+         *
+         * @return The position of the reserved room.
+         */
+        int reserveVarint() {
+            ensureCapacity(5);
+            int at = position;
+            position += 5;
+            return at;
+        }
+
+        /**
+         * Writes a value into room left by reserveVarint, padded to five bytes.
+         *
+         * @param at    The position returned by reserveVarint.
+         * @param value The value, which must not be negative.
+         */
+        void patchVarint(int at, int value) {
+            for (int k = 0; k < 4; k++) {
+                buffer[at + k] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[at + 4] = (byte) value;
+        }
+
+        /**
+         * Finishes the frame, filling in its length.
+         *
+         * @return A copy of the frame, ready to be written.
+         */
+        ByteBuffer toFrame() {
+            int length = position - 4;
+            buffer[0] = (byte) (length >>> 24);
+            buffer[1] = (byte) (length >>> 16);
+            buffer[2] = (byte) (length >>> 8);
+            buffer[3] = (byte) length;
+            return ByteBuffer.wrap(Arrays.copyOf(buffer, position)).asReadOnlyBuffer();
+        }
+
+        /**
+         * Grows the buffer if fewer than the given number of bytes are left.
+         *
+         * @param bytes The number of bytes about to be written.
+         */
+        private void ensureCapacity(int bytes) {
+            if (position + bytes > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(position + bytes, buffer.length * 2));
+            }
+        }
+    }
+}
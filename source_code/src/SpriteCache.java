@@ -0,0 +1,95 @@
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.imageio.ImageIO;
+
+/**
+ * SpriteCache loads every character sprite once and shares it between all shapes of the same type.
+ * Each sprite is decoded a single time and pre-scaled into an image compatible with the screen at the
+ * size it is drawn at, so spawning a character does not touch the disk and drawing one is a plain
+ * unscaled blit.
+ */
+public final class SpriteCache {
+
+    private static final Map<String, BufferedImage> SPRITES = new ConcurrentHashMap<>();
+
+    /**
+     * SpriteCache only has static members and is never instantiated.
+     */
+    private SpriteCache() {
+    }
+
+    /**
+     * Gets the shared sprite for an image file at the given size, loading and scaling it on first use.
+     *
+     * @param fileName The image file to load.
+     * @param width    The width the sprite is drawn at.
+     * @param height   The height the sprite is drawn at.
+     * @return The shared, pre-scaled sprite.
+     */
+    public static BufferedImage getSprite(String fileName, int width, int height) {
+        return SPRITES.computeIfAbsent(fileName + "@" + width + "x" + height,
+                key -> loadScaled(fileName, width, height));
+    }
+
+    /**
+     * Loads the sprites of every character so that the first spawn of each type has no loading hitch.
+     * Should be called once at startup, before the battlefield is shown.
+     */
+    public static void warmUp() {
+        for (CharacterType type : CharacterType.values()) {
+            type.getSprite();
+        }
+    }
+
+    /**
+     * Decodes an image file and draws it into a new image of the requested size.
+     * If the file cannot be read, a transparent image is returned so the game can keep running.
+     *
+     * @param fileName The image file to load.
+     * @param width    The target width.
+     * @param height   The target height.
+     * @return The scaled image.
+     */
+    private static BufferedImage loadScaled(String fileName, int width, int height) {
+        BufferedImage scaled = createCompatibleImage(width, height);
+        try {
+            BufferedImage source = ImageIO.read(new File(fileName));
+            if (source == null) {
+                throw new IOException("Unsupported image format: " + fileName);
+            }
+            Graphics2D g2 = scaled.createGraphics();
+            g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            g2.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g2.drawImage(source, 0, 0, width, height, null);
+            g2.dispose();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return scaled;
+    }
+
+    /**
+     * Creates a translucent image in the pixel layout of the default screen, which lets Java2D
+     * cache it in video memory. Falls back to a plain ARGB image when there is no display.
+     *
+     * @param width  The image width.
+     * @param height The image height.
+     * @return A new, fully transparent image.
+     */
+    private static BufferedImage createCompatibleImage(int width, int height) {
+        if (GraphicsEnvironment.isHeadless()) {
+            return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        }
+        GraphicsConfiguration gc = GraphicsEnvironment.getLocalGraphicsEnvironment()
+                .getDefaultScreenDevice().getDefaultConfiguration();
+        return gc.createCompatibleImage(width, height, Transparency.TRANSLUCENT);
+    }
+}
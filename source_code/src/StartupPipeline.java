@@ -0,0 +1,180 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.swing.SwingUtilities;
+
+/**
+ * StartupPipeline runs the independent loading steps of application startup concurrently and
+ * records how long each of them took.
+ * Each stage is a named piece of work that runs either on a small pool of background loader threads
+ * or on the event dispatch thread, and is represented by a CompletableFuture, so later steps such as
+ * enabling gameplay can wait for exactly the stages they need. Once every stage has finished, a
+ * timing breakdown is printed, measured from the moment the pipeline was created.
+ */
+public class StartupPipeline {
+
+    private static final int LOADER_THREADS = 3; // Loading mostly waits on disk and audio devices, not the CPU
+
+    private final long startNanos;
+    private final ExecutorService loaders;
+    private final List<Stage> stages = new ArrayList<>();
+    private final List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+    /**
+     * Constructor for StartupPipeline. The clock for the timing breakdown starts now.
+     */
+    public StartupPipeline() {
+        this.startNanos = System.nanoTime();
+        AtomicInteger counter = new AtomicInteger();
+        this.loaders = Executors.newFixedThreadPool(LOADER_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "startup-loader-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts a stage on a background loader thread.
+     *
+     * @param name The name of the stage in the timing breakdown.
+     * @param work The work of the stage.
+     * @return A future that completes when the stage has finished, exceptionally if it failed.
+     */
+    public CompletableFuture<Void> inBackground(String name, Runnable work) {
+        return add(name, work, loaders);
+    }
+
+    /**
+     * Starts a stage on the event dispatch thread, for work that must not leave it.
+     *
+     * @param name The name of the stage in the timing breakdown.
+     * @param work The work of the stage.
+     * @return A future that completes when the stage has finished, exceptionally if it failed.
+     */
+    public CompletableFuture<Void> onEventThread(String name, Runnable work) {
+        return add(name, work, SwingUtilities::invokeLater);
+    }
+
+    /**
+     * Starts a stage on the event dispatch thread once other stages have finished, whether they
+     * succeeded or not.
+     *
+     * @param name         The name of the stage in the timing breakdown.
+     * @param work         The work of the stage.
+     * @param dependencies The futures of the stages that must finish first.
+     * @return A future that completes when the stage has finished, exceptionally if it failed.
+     */
+    public synchronized CompletableFuture<Void> onEventThreadAfter(String name, Runnable work,
+                                                                   CompletableFuture<?>... dependencies) {
+        Stage stage = new Stage(name);
+        stages.add(stage);
+        CompletableFuture<Void> future = CompletableFuture.allOf(dependencies)
+                .handle((result, failure) -> null)
+                .thenRunAsync(() -> stage.run(work), SwingUtilities::invokeLater);
+        futures.add(future);
+        return future;
+    }
+
+    /**
+     * Records a step that already ran, such as work that had to happen before the pipeline existed,
+     * so that it appears in the timing breakdown.
+     *
+     * @param name  The name of the step in the timing breakdown.
+     * @param start The System.nanoTime at which the step started.
+     * @param end   The System.nanoTime at which the step finished.
+     */
+    public synchronized void record(String name, long start, long end) {
+        Stage stage = new Stage(name);
+        stage.start = start;
+        stage.end = end;
+        stages.add(stage);
+    }
+
+    /**
+     * Schedules a stage and times it.
+     *
+     * @param name     The name of the stage.
+     * @param work     The work of the stage.
+     * @param executor The executor that runs the work.
+     * @return The future of the stage.
+     */
+    private synchronized CompletableFuture<Void> add(String name, Runnable work, Executor executor) {
+        Stage stage = new Stage(name);
+        stages.add(stage);
+        CompletableFuture<Void> future = CompletableFuture.runAsync(() -> stage.run(work), executor);
+        futures.add(future);
+        return future;
+    }
+
+    /**
+     * Prints the timing breakdown once every stage started so far has finished, and lets the
+     * loader threads go.
+     *
+     * @param milestone The name of the point startup has reached, such as "interactive".
+     * @return A future that completes after the breakdown has been printed.
+     */
+    public synchronized CompletableFuture<Void> finish(String milestone) {
+        CompletableFuture<?>[] pending = futures.toArray(new CompletableFuture<?>[0]);
+        return CompletableFuture.allOf(pending).handle((result, failure) -> {
+            loaders.shutdown();
+            System.out.println(report(milestone, System.nanoTime()));
+            return null;
+        });
+    }
+
+    /**
+     * Formats the timing breakdown.
+     *
+     * @param milestone The name of the point startup has reached.
+     * @param now       The System.nanoTime of the milestone.
+     * @return The breakdown, one stage per line with its start and duration in milliseconds.
+     */
+    private synchronized String report(String milestone, long now) {
+        StringBuilder report = new StringBuilder("Startup timing:");
+        for (Stage stage : stages) {
+            report.append(String.format("%n  %-16s start %6d ms  took %6d ms", stage.name,
+                    TimeUnit.NANOSECONDS.toMillis(stage.start - startNanos),
+                    TimeUnit.NANOSECONDS.toMillis(stage.end - stage.start)));
+        }
+        report.append(String.format("%n  %-16s at    %6d ms", milestone, TimeUnit.NANOSECONDS.toMillis(now - startNanos)));
+        return report.toString();
+    }
+
+    /**
+     * Stage is the timing of a single startup step.
+     */
+    private static final class Stage {
+
+        private final String name;
+        private volatile long start;
+        private volatile long end;
+
+        /**
+         * Constructor for Stage.
+         *
+         * @param name The name of the stage.
+         */
+        Stage(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Runs the work of the stage and times it.
+         *
+         * @param work The work of the stage.
+         */
+        void run(Runnable work) {
+            start = System.nanoTime();
+            try {
+                work.run();
+            } finally {
+                end = System.nanoTime();
+            }
+        }
+    }
+}
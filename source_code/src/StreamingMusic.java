@@ -0,0 +1,513 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import kuusisto.tinysound.Music;
+import kuusisto.tinysound.TinySound;
+
+/**
+ * StreamingMusic plays a long audio file without ever holding it in memory.
+ * A decoder thread reads the file in chunks through a FileChannel and decodes it into a fixed-size
+ * ring buffer, and an output thread drains the ring buffer into an audio line, applying volume and pan
+ * on the way. Memory use is the ring buffer plus a few small work buffers, whatever the length of the
+ * track. When looping, the decoder reopens the file as soon as it reaches the end and keeps filling
+ * the ring buffer, which still holds more than a second of audio, so the loop point has no gap.
+ * Every seek starts a new generation of audio. Both threads note the generation of the chunk they are
+ * working on and drop it if a seek came in meanwhile, so nothing decoded or taken before a seek is
+ * heard after it.
+ * The file must be 16-bit PCM at 44.1 kHz, mono or stereo, or convertible to it by Java Sound.
+ * TinySound's mixer cannot be given new kinds of music, so StreamingMusic plays on its own line in
+ * TinySound's output format; it implements TinySound's Music interface and can be used in its place.
+ */
+public class StreamingMusic implements Music {
+
+    private static final int RING_BYTES = 256 * 1024; // About 1.5 seconds of 16-bit stereo at 44.1 kHz
+    private static final int CHUNK_BYTES = 16 * 1024; // Bytes decoded or played per step
+    private static final int LINE_BUFFER_BYTES = 32 * 1024;
+
+    private final Path path;
+    private final AudioFormat format;
+    private final int frameSize;
+    private final long frameLength;
+    private final SourceDataLine line;
+
+    private final Object lock = new Object();
+    private final byte[] ring = new byte[RING_BYTES];
+    private int ringStart;
+    private int ringCount;
+    private boolean playing;
+    private boolean loop;
+    private boolean endOfStream;
+    private boolean unloaded;
+    private long seekFrame = -1;
+    private long generation; // Bumped by every seek
+    private long loopFrame;
+    private volatile double volume = 1.0;
+    private volatile double pan;
+
+    private final Thread decoder;
+    private final Thread output;
+
+    /**
+     * Constructor for StreamingMusic. Checks that the file can be decoded, opens the audio line and
+     * starts the decoder and output threads; nothing plays until play is called.
+     *
+     * @param path The file path to the music.
+     * @throws IOException                   If the file cannot be read.
+     * @throws UnsupportedAudioFileException If the file cannot be decoded to 16-bit PCM at 44.1 kHz.
+     * @throws LineUnavailableException      If no audio line can be opened.
+     */
+    public StreamingMusic(Path path) throws IOException, UnsupportedAudioFileException, LineUnavailableException {
+        this.path = path;
+        try (AudioInputStream probe = open(path)) {
+            this.format = probe.getFormat();
+            this.frameLength = probe.getFrameLength();
+        }
+        this.frameSize = format.getFrameSize();
+        this.line = AudioSystem.getSourceDataLine(TinySound.FORMAT);
+        line.open(TinySound.FORMAT, LINE_BUFFER_BYTES);
+        line.start();
+
+        decoder = new Thread(this::decode, "music-decoder");
+        output = new Thread(this::play, "music-output");
+        decoder.setDaemon(true);
+        output.setDaemon(true);
+        decoder.start();
+        output.start();
+    }
+
+    /**
+     * Opens a decoding stream over the file, read in chunks through a FileChannel.
+     *
+     * @param path The file path to the music.
+     * @return A stream of 16-bit little-endian PCM at 44.1 kHz with the file's channel count.
+     * @throws IOException                   If the file cannot be read.
+     * @throws UnsupportedAudioFileException If the file cannot be decoded to the required format.
+     */
+    private static AudioInputStream open(Path path) throws IOException, UnsupportedAudioFileException {
+        InputStream file = new BufferedInputStream(Channels.newInputStream(FileChannel.open(path, StandardOpenOption.READ)), CHUNK_BYTES);
+        AudioInputStream source;
+        try {
+            source = AudioSystem.getAudioInputStream(file);
+        } catch (IOException | UnsupportedAudioFileException e) {
+            file.close();
+            throw e;
+        }
+        AudioFormat sourceFormat = source.getFormat();
+        int channels = sourceFormat.getChannels();
+        if (channels != 1 && channels != 2) {
+            source.close();
+            throw new UnsupportedAudioFileException("Only mono and stereo music is supported: " + path);
+        }
+        AudioFormat target = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, TinySound.FORMAT.getSampleRate(),
+                16, channels, channels * 2, TinySound.FORMAT.getFrameRate(), false);
+        if (sourceFormat.matches(target)) {
+            return source;
+        }
+        if (!AudioSystem.isConversionSupported(target, sourceFormat)) {
+            source.close();
+            throw new UnsupportedAudioFileException("Cannot convert " + sourceFormat + " to " + target);
+        }
+        return AudioSystem.getAudioInputStream(target, source);
+    }
+
+    /**
+     * Opens the file and skips to a frame.
+     *
+     * @param frame The frame to start at.
+     * @return The positioned stream.
+     * @throws IOException                   If the file cannot be read.
+     * @throws UnsupportedAudioFileException If the file cannot be decoded.
+     */
+    private AudioInputStream openAt(long frame) throws IOException, UnsupportedAudioFileException {
+        AudioInputStream stream = open(path);
+        long remaining = frame * frameSize;
+        while (remaining > 0) {
+            long skipped = stream.skip(remaining);
+            if (skipped <= 0) {
+                break;
+            }
+            remaining -= skipped;
+        }
+        return stream;
+    }
+
+    /**
+     * Runs the decoder thread: keeps the ring buffer topped up while the music is playing, restarts
+     * the file at the loop position when it runs out, and repositions it when asked to.
+     */
+    private void decode() {
+        byte[] chunk = new byte[CHUNK_BYTES - CHUNK_BYTES % frameSize];
+        AudioInputStream stream = null;
+        try {
+            while (true) {
+                long seek;
+                long chunkGeneration;
+                synchronized (lock) {
+                    while (!unloaded && seekFrame < 0 && (endOfStream || !playing || RING_BYTES - ringCount < chunk.length)) {
+                        lock.wait();
+                    }
+                    if (unloaded) {
+                        return;
+                    }
+                    seek = seekFrame;
+                    chunkGeneration = generation;
+                    if (seek >= 0) {
+                        seekFrame = -1;
+                        ringStart = 0;
+                        ringCount = 0;
+                        endOfStream = false;
+                    }
+                }
+                if (seek >= 0 || stream == null) {
+                    closeQuietly(stream);
+                    stream = openAt(Math.max(seek, 0));
+                }
+
+                int read = readFully(stream, chunk);
+                if (read == 0) {
+                    closeQuietly(stream);
+                    stream = null;
+                    boolean restart;
+                    long restartFrame;
+                    synchronized (lock) {
+                        restart = loop && seekFrame < 0;
+                        restartFrame = loopFrame;
+                        if (!restart && seekFrame < 0) {
+                            endOfStream = true;
+                            lock.notifyAll();
+                        }
+                    }
+                    if (restart) {
+                        // Start over straight away; the ring buffer bridges the reopen
+                        stream = openAt(restartFrame);
+                    }
+                    continue;
+                }
+                synchronized (lock) {
+                    if (chunkGeneration != generation) {
+                        continue; // Stale data from before a seek
+                    }
+                    int end = (ringStart + ringCount) % RING_BYTES;
+                    int first = Math.min(read, RING_BYTES - end);
+                    System.arraycopy(chunk, 0, ring, end, first);
+                    System.arraycopy(chunk, first, ring, 0, read - first);
+                    ringCount += read;
+                    lock.notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | UnsupportedAudioFileException e) {
+            e.printStackTrace();
+            synchronized (lock) {
+                endOfStream = true;
+                lock.notifyAll();
+            }
+        } finally {
+            closeQuietly(stream);
+        }
+    }
+
+    /**
+     * Reads whole frames from a stream until the buffer is full or the stream ends.
+     *
+     * @param stream The stream to read.
+     * @param buffer The buffer to fill.
+     * @return The number of bytes read, a multiple of the frame size; 0 at the end of the stream.
+     * @throws IOException If the stream cannot be read.
+     */
+    private int readFully(AudioInputStream stream, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int read = stream.read(buffer, total, buffer.length - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total - total % frameSize;
+    }
+
+    /**
+     * Runs the output thread: moves decoded audio from the ring buffer to the line, converting it to
+     * stereo with the current volume and pan, and stops playback once a non-looping track has ended.
+     */
+    private void play() {
+        byte[] chunk = new byte[CHUNK_BYTES / 2 - (CHUNK_BYTES / 2) % frameSize];
+        byte[] out = new byte[chunk.length / frameSize * 4];
+        long writtenGeneration = 0;
+        try {
+            while (true) {
+                int taken;
+                long chunkGeneration;
+                synchronized (lock) {
+                    while (!unloaded && (!playing || ringCount == 0)) {
+                        if (playing && endOfStream) {
+                            playing = false;
+                        }
+                        lock.wait();
+                    }
+                    if (unloaded) {
+                        return;
+                    }
+                    chunkGeneration = generation;
+                    taken = Math.min(chunk.length, ringCount);
+                    int first = Math.min(taken, RING_BYTES - ringStart);
+                    System.arraycopy(ring, ringStart, chunk, 0, first);
+                    System.arraycopy(ring, 0, chunk, first, taken - first);
+                    ringStart = (ringStart + taken) % RING_BYTES;
+                    ringCount -= taken;
+                    lock.notifyAll();
+                }
+                int length = toStereo(chunk, taken, out);
+                synchronized (lock) {
+                    if (chunkGeneration != generation) {
+                        continue; // Taken before a seek
+                    }
+                }
+                if (chunkGeneration != writtenGeneration) {
+                    // A stale chunk may have slipped into the line just after the seek flushed it
+                    line.flush();
+                    writtenGeneration = chunkGeneration;
+                }
+                line.write(out, 0, length);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Converts decoded frames to 16-bit little-endian stereo, applying the volume and pan.
+     *
+     * @param in     The decoded frames.
+     * @param length The number of bytes of decoded frames.
+     * @param out    The buffer to write the stereo frames to.
+     * @return The number of bytes written.
+     */
+    private int toStereo(byte[] in, int length, byte[] out) {
+        double currentVolume = volume;
+        double currentPan = pan;
+        double leftGain = currentVolume * (currentPan > 0 ? 1.0 - currentPan : 1.0);
+        double rightGain = currentVolume * (currentPan < 0 ? 1.0 + currentPan : 1.0);
+        int written = 0;
+        for (int i = 0; i < length; i += frameSize) {
+            int left = (short) ((in[i + 1] << 8) | (in[i] & 0xFF));
+            int right = frameSize == 4 ? (short) ((in[i + 3] << 8) | (in[i + 2] & 0xFF)) : left;
+            written = putSample(out, written, (int) (left * leftGain));
+            written = putSample(out, written, (int) (right * rightGain));
+        }
+        return written;
+    }
+
+    /**
+     * Writes a clamped 16-bit little-endian sample.
+     *
+     * @param out    The buffer to write to.
+     * @param offset The offset to write at.
+     * @param sample The sample value.
+     * @return The offset after the sample.
+     */
+    private static int putSample(byte[] out, int offset, int sample) {
+        int clamped = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+        out[offset] = (byte) clamped;
+        out[offset + 1] = (byte) (clamped >> 8);
+        return offset + 2;
+    }
+
+    /**
+     * Closes a stream, ignoring failures.
+     *
+     * @param stream The stream to close, or null.
+     */
+    private static void closeQuietly(AudioInputStream stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Moves playback to a frame, dropping whatever has been decoded but not yet heard, and starts a
+     * new generation so that chunks still on their way to the ring buffer or the line are dropped too.
+     * Must be called while holding the lock.
+     *
+     * @param frame The frame to continue from.
+     */
+    private void seek(long frame) {
+        seekFrame = frame;
+        generation++;
+        ringStart = 0;
+        ringCount = 0;
+        endOfStream = false;
+        line.flush();
+        lock.notifyAll();
+    }
+
+    @Override
+    public void play(boolean loop) {
+        play(loop, volume, pan);
+    }
+
+    @Override
+    public void play(boolean loop, double volume) {
+        play(loop, volume, pan);
+    }
+
+    @Override
+    public void play(boolean loop, double volume, double pan) {
+        synchronized (lock) {
+            this.loop = loop;
+            setVolume(volume);
+            setPan(pan);
+            seek(0);
+            playing = true;
+        }
+    }
+
+    @Override
+    public void stop() {
+        synchronized (lock) {
+            playing = false;
+            seek(0);
+        }
+    }
+
+    @Override
+    public void pause() {
+        synchronized (lock) {
+            playing = false;
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public void resume() {
+        synchronized (lock) {
+            playing = true;
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public void rewind() {
+        synchronized (lock) {
+            seek(0);
+        }
+    }
+
+    @Override
+    public void rewindToLoopPosition() {
+        synchronized (lock) {
+            seek(loopFrame);
+        }
+    }
+
+    @Override
+    public boolean playing() {
+        synchronized (lock) {
+            return playing;
+        }
+    }
+
+    @Override
+    public boolean done() {
+        synchronized (lock) {
+            return !playing && endOfStream && ringCount == 0;
+        }
+    }
+
+    @Override
+    public boolean loop() {
+        synchronized (lock) {
+            return loop;
+        }
+    }
+
+    @Override
+    public void setLoop(boolean loop) {
+        synchronized (lock) {
+            this.loop = loop;
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public int getLoopPositionByFrame() {
+        synchronized (lock) {
+            return (int) loopFrame;
+        }
+    }
+
+    @Override
+    public double getLoopPositionBySeconds() {
+        return getLoopPositionByFrame() / (double) format.getFrameRate();
+    }
+
+    @Override
+    public void setLoopPositionByFrame(int frameIndex) {
+        if (frameIndex >= 0 && (frameLength == AudioSystem.NOT_SPECIFIED || frameIndex < frameLength)) {
+            synchronized (lock) {
+                loopFrame = frameIndex;
+            }
+        }
+    }
+
+    @Override
+    public void setLoopPositionBySeconds(double seconds) {
+        setLoopPositionByFrame((int) Math.round(seconds * format.getFrameRate()));
+    }
+
+    @Override
+    public double getVolume() {
+        return volume;
+    }
+
+    @Override
+    public void setVolume(double volume) {
+        if (volume >= 0) {
+            this.volume = volume;
+        }
+    }
+
+    @Override
+    public double getPan() {
+        return pan;
+    }
+
+    @Override
+    public void setPan(double pan) {
+        this.pan = Math.max(-1.0, Math.min(1.0, pan));
+    }
+
+    /**
+     * Stops playback, ends both threads and closes the audio line. The music cannot be played again.
+     */
+    @Override
+    public void unload() {
+        synchronized (lock) {
+            if (unloaded) {
+                return;
+            }
+            unloaded = true;
+            playing = false;
+            lock.notifyAll();
+        }
+        line.stop();
+        line.flush();
+        line.close();
+    }
+}
@@ -0,0 +1,196 @@
+import java.awt.Dialog;
+import java.awt.GraphicsDevice;
+import java.awt.GraphicsEnvironment;
+import java.awt.Window;
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.swing.JDialog;
+import javax.swing.SwingUtilities;
+import uk.co.caprica.vlcj.media.Media;
+import uk.co.caprica.vlcj.media.MediaRef;
+import uk.co.caprica.vlcj.media.ParseFlag;
+import uk.co.caprica.vlcj.player.base.MediaPlayer;
+import uk.co.caprica.vlcj.player.base.MediaPlayerEventAdapter;
+import uk.co.caprica.vlcj.player.component.EmbeddedMediaPlayerComponent;
+
+/**
+ * VideoPlayerPool plays the intro and jump scare videos with a single, reused media player.
+ * The native libVLC instance, the player and the full-screen dialog are created once, and videos
+ * that are known up front are opened and parsed while the game starts, so a jump scare does not have
+ * to wait for libVLC to start up or for the file to be read cold from disk.
+ * The time from asking for a video to its first frame on screen is reported for every video.
+ * All native resources are freed by release, which must be called when the application shuts down.
+ * All methods must be called on the event dispatch thread.
+ */
+public class VideoPlayerPool {
+
+    private final Window owner;
+    private final EmbeddedMediaPlayerComponent playerComponent;
+    private final JDialog dialog;
+    private final Map<String, Media> preloaded = new LinkedHashMap<>();
+    private final Map<String, MediaRef> preloadedRefs = new LinkedHashMap<>();
+    private Runnable onFinished;
+    private String currentVideo;
+    private long requestedAt;
+    private boolean released;
+
+    /**
+     * Constructor for VideoPlayerPool. Starts libVLC and creates the player and its dialog,
+     * which stays hidden until a video plays.
+     *
+     * @param owner The window the video dialog belongs to.
+     */
+    public VideoPlayerPool(Window owner) {
+        this.owner = owner;
+        this.playerComponent = new EmbeddedMediaPlayerComponent();
+        this.dialog = new JDialog(owner, "Video Playback", Dialog.ModalityType.MODELESS);
+        dialog.setDefaultCloseOperation(JDialog.HIDE_ON_CLOSE);
+        dialog.setUndecorated(true);
+        dialog.add(playerComponent);
+
+        playerComponent.mediaPlayer().events().addMediaPlayerEventListener(new MediaPlayerEventAdapter() {
+            @Override
+            public void videoOutput(MediaPlayer mediaPlayer, int newCount) {
+                if (newCount > 0) {
+                    SwingUtilities.invokeLater(VideoPlayerPool.this::reportFirstFrame);
+                }
+            }
+
+            @Override
+            public void finished(MediaPlayer mediaPlayer) {
+                // libVLC must not be called back from its own event thread
+                SwingUtilities.invokeLater(VideoPlayerPool.this::finish);
+            }
+
+            @Override
+            public void error(MediaPlayer mediaPlayer) {
+                SwingUtilities.invokeLater(VideoPlayerPool.this::finish);
+            }
+        });
+    }
+
+    /**
+     * Opens a video ahead of time and starts parsing it in the background, so playing it later
+     * starts from media that libVLC has already read. Files that do not exist are skipped.
+     *
+     * @param videoPath The file path to the video.
+     */
+    public void preload(String videoPath) {
+        if (released || preloaded.containsKey(videoPath) || !new File(videoPath).isFile()) {
+            return;
+        }
+        Media media = playerComponent.mediaPlayerFactory().media().newMedia(new File(videoPath).getAbsolutePath());
+        if (media == null) {
+            return;
+        }
+        media.parsing().parse(ParseFlag.PARSE_LOCAL);
+        preloaded.put(videoPath, media);
+        preloadedRefs.put(videoPath, media.newMediaRef());
+    }
+
+    /**
+     * Plays a video full screen, replacing any video that is still playing.
+     *
+     * @param videoPath  The file path to the video.
+     * @param onFinished Run on the event dispatch thread once the video has finished or failed to play.
+     */
+    public void play(String videoPath, Runnable onFinished) {
+        if (released) {
+            return;
+        }
+        MediaPlayer mediaPlayer = playerComponent.mediaPlayer();
+        mediaPlayer.controls().stop();
+        this.onFinished = onFinished;
+        this.currentVideo = videoPath;
+        this.requestedAt = System.nanoTime();
+
+        showDialog();
+        MediaRef media = preloadedRefs.get(videoPath);
+        boolean started = media != null
+                ? mediaPlayer.media().play(media)
+                : mediaPlayer.media().play(new File(videoPath).getAbsolutePath());
+        if (!started) {
+            System.err.println("Could not play video " + videoPath);
+            finish();
+        }
+    }
+
+    /**
+     * Shows the video dialog full screen, or maximized over the owner if full screen is not supported.
+     */
+    private void showDialog() {
+        GraphicsDevice gd = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice();
+        if (gd.isFullScreenSupported()) {
+            gd.setFullScreenWindow(dialog);
+        } else {
+            dialog.setBounds(owner.getBounds());
+            dialog.setVisible(true);
+        }
+    }
+
+    /**
+     * Hides the video dialog, leaving full-screen mode if it is in it.
+     */
+    private void hideDialog() {
+        GraphicsDevice gd = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice();
+        if (gd.getFullScreenWindow() == dialog) {
+            gd.setFullScreenWindow(null);
+        }
+        dialog.setVisible(false);
+    }
+
+    /**
+     * Prints how long the current video took to show its first frame.
+     */
+    private void reportFirstFrame() {
+        if (currentVideo == null || requestedAt == 0) {
+            return;
+        }
+        long elapsed = System.nanoTime() - requestedAt;
+        requestedAt = 0;
+        System.out.printf("Video %s: first frame after %d ms (%s)%n", currentVideo,
+                TimeUnit.NANOSECONDS.toMillis(elapsed), preloadedRefs.containsKey(currentVideo) ? "preloaded" : "cold");
+    }
+
+    /**
+     * Stops the player, hides the dialog and runs the finish callback of the current video.
+     */
+    private void finish() {
+        if (released || currentVideo == null) {
+            return;
+        }
+        playerComponent.mediaPlayer().controls().stop();
+        hideDialog();
+        currentVideo = null;
+        Runnable callback = onFinished;
+        onFinished = null;
+        if (callback != null) {
+            callback.run();
+        }
+    }
+
+    /**
+     * Stops playback and frees the preloaded media, the player and the native libVLC instance.
+     * The pool cannot be used afterwards.
+     */
+    public void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        playerComponent.mediaPlayer().controls().stop();
+        hideDialog();
+        for (MediaRef media : preloadedRefs.values()) {
+            media.release();
+        }
+        for (Media media : preloaded.values()) {
+            media.release();
+        }
+        preloadedRefs.clear();
+        preloaded.clear();
+        playerComponent.release();
+        dialog.dispose();
+    }
+}
@@ -0,0 +1,243 @@
+import java.util.Arrays;
+
+/**
+ * WorldSnapshot is a copy of the drawable state of the battlefield at the end of a tick.
+ * The simulation thread fills a snapshot and publishes it through a SnapshotBuffer; once
+ * published it is only read, so the painting code never has to lock the simulation.
+ * <p>
+ * A reader that paints many small regions of one snapshot can index it by grid cell first. The
+ * renderers then only visit the characters of the cells around the area they draw, in the same order
+ * as a full walk, instead of walking every character once per region. The index belongs to the reader
+ * and is dropped when the snapshot is overwritten.
+ */
+public class WorldSnapshot {
+
+    static final int INDEX_CELL_SIZE = 128;
+
+    private long tick;
+    private int count;
+    private int[] x = new int[0];
+    private int[] y = new int[0];
+    private int[] type = new int[0];
+    private int[] width = new int[0];
+    private int[] height = new int[0];
+
+    // Grid index, only used by the reader
+    private boolean indexed;
+    private int indexColumns;
+    private int indexRows;
+    private int maxWidth;
+    private int maxHeight;
+    private int[] cellStart = new int[0]; // Start of each cell's characters in cellOrder, plus the end
+    private int[] cellOrder = new int[0]; // Character indices grouped by cell, ascending within a cell
+    private int[] selection = new int[0];
+
+    /**
+     * Overwrites this snapshot with the current contents of an entity store.
+     * The arrays are reused and only grow, so a steady population copies without allocating.
+     *
+     * @param entities The entity store to copy.
+     * @param tick     The number of the tick that produced the state.
+     */
+    public void copyFrom(EntityStore entities, long tick) {
+        int size = entities.size();
+        if (x.length < size) {
+            int capacity = Math.max(size, x.length * 2);
+            x = Arrays.copyOf(x, capacity);
+            y = Arrays.copyOf(y, capacity);
+            type = Arrays.copyOf(type, capacity);
+            width = Arrays.copyOf(width, capacity);
+            height = Arrays.copyOf(height, capacity);
+        }
+        for (int i = 0; i < size; i++) {
+            x[i] = entities.getX(i);
+            y[i] = entities.getY(i);
+            type[i] = entities.getType(i);
+            width[i] = entities.getWidth(i);
+            height[i] = entities.getHeight(i);
+        }
+        this.count = size;
+        this.tick = tick;
+        this.indexed = false;
+    }
+
+    /**
+     * Groups the characters by the grid cell their top-left corner lies in, so select can find the
+     * ones around an area without walking all of them. Characters outside the grid are put in its
+     * edge cells. Only called by the reader.
+     *
+     * @param width  The width of the area the grid covers, normally the drawn component.
+     * @param height The height of the area the grid covers.
+     */
+    public void buildIndex(int width, int height) {
+        indexColumns = Math.max(1, (width + INDEX_CELL_SIZE - 1) / INDEX_CELL_SIZE);
+        indexRows = Math.max(1, (height + INDEX_CELL_SIZE - 1) / INDEX_CELL_SIZE);
+        int cells = indexColumns * indexRows;
+        if (cellStart.length < cells + 1) {
+            cellStart = new int[cells + 1];
+        }
+        if (cellOrder.length < count) {
+            cellOrder = new int[x.length];
+        }
+        Arrays.fill(cellStart, 0, cells + 1, 0);
+        maxWidth = 0;
+        maxHeight = 0;
+        for (int i = 0; i < count; i++) {
+            cellStart[cellOf(x[i], y[i]) + 1]++;
+            maxWidth = Math.max(maxWidth, this.width[i]);
+            maxHeight = Math.max(maxHeight, this.height[i]);
+        }
+        for (int cell = 0; cell < cells; cell++) {
+            cellStart[cell + 1] += cellStart[cell];
+        }
+        // A counting sort keeps every cell in index order; cellStart is shifted back by one cell meanwhile
+        for (int i = 0; i < count; i++) {
+            cellOrder[cellStart[cellOf(x[i], y[i])]++] = i;
+        }
+        System.arraycopy(cellStart, 0, cellStart, 1, cells);
+        cellStart[0] = 0;
+        indexed = true;
+    }
+
+    /**
+     * Finds the index cell of a point, clamped to the grid.
+     *
+     * @param px The x coordinate.
+     * @param py The y coordinate.
+     * @return The cell index, row by row.
+     */
+    private int cellOf(int px, int py) {
+        return clamp(Math.floorDiv(py, INDEX_CELL_SIZE), indexRows) * indexColumns
+                + clamp(Math.floorDiv(px, INDEX_CELL_SIZE), indexColumns);
+    }
+
+    /**
+     * Clamps a grid column or row to the grid.
+     *
+     * @param value The column or row.
+     * @param size  The number of columns or rows.
+     * @return The value, between 0 and size - 1.
+     */
+    private static int clamp(int value, int size) {
+        return Math.max(0, Math.min(size - 1, value));
+    }
+
+    /**
+     * Checks whether buildIndex has been called since the snapshot was last overwritten.
+     *
+     * @return True if select may be used.
+     */
+    public boolean isIndexed() {
+        return indexed;
+    }
+
+    /**
+     * Selects every character that may touch an area, and some around it, in ascending index order.
+     * Needs an index; the selection is read with getSelected and replaced by the next call.
+     *
+     * @param left   The left edge of the area.
+     * @param top    The top edge of the area.
+     * @param right  The right edge of the area.
+     * @param bottom The bottom edge of the area.
+     * @return The number of characters selected.
+     */
+    public int select(int left, int top, int right, int bottom) {
+        // Clamped like the cells themselves, so characters outside the grid are found in its edge cells
+        int firstColumn = clamp(Math.floorDiv(left - maxWidth, INDEX_CELL_SIZE), indexColumns);
+        int firstRow = clamp(Math.floorDiv(top - maxHeight, INDEX_CELL_SIZE), indexRows);
+        int lastColumn = clamp(Math.floorDiv(right - 1, INDEX_CELL_SIZE), indexColumns);
+        int lastRow = clamp(Math.floorDiv(bottom - 1, INDEX_CELL_SIZE), indexRows);
+        int selected = 0;
+        for (int row = firstRow; row <= lastRow; row++) {
+            int first = cellStart[row * indexColumns + firstColumn];
+            int end = cellStart[row * indexColumns + lastColumn + 1];
+            if (selection.length < selected + end - first) {
+                selection = Arrays.copyOf(selection, Math.max(selected + end - first, selection.length * 2));
+            }
+            // The cells of a row are contiguous in cellOrder
+            System.arraycopy(cellOrder, first, selection, selected, end - first);
+            selected += end - first;
+        }
+        // Keep the drawing order of a full walk, so overlapping sprites stack the same way
+        Arrays.sort(selection, 0, selected);
+        return selected;
+    }
+
+    /**
+     * Gets a character chosen by the last call to select.
+     *
+     * @param k The position in the selection, between 0 and the count select returned - 1.
+     * @return The index of the character.
+     */
+    public int getSelected(int k) {
+        return selection[k];
+    }
+
+    /**
+     * Gets the number of the tick this snapshot was taken at.
+     *
+     * @return The tick number.
+     */
+    public long getTick() {
+        return tick;
+    }
+
+    /**
+     * Gets the number of entities in this snapshot.
+     *
+     * @return The entity count.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Gets the x coordinate of an entity.
+     *
+     * @param index The index of the entity.
+     * @return The x coordinate of the top-left corner.
+     */
+    public int getX(int index) {
+        return x[index];
+    }
+
+    /**
+     * Gets the y coordinate of an entity.
+     *
+     * @param index The index of the entity.
+     * @return The y coordinate of the top-left corner.
+     */
+    public int getY(int index) {
+        return y[index];
+    }
+
+    /**
+     * Gets the width of an entity.
+     *
+     * @param index The index of the entity.
+     * @return The width in pixels.
+     */
+    public int getWidth(int index) {
+        return width[index];
+    }
+
+    /**
+     * Gets the height of an entity.
+     *
+     * @param index The index of the entity.
+     * @return The height in pixels.
+     */
+    public int getHeight(int index) {
+        return height[index];
+    }
+
+    /**
+     * Gets the type ordinal of an entity.
+     *
+     * @param index The index of the entity.
+     * @return The type ordinal.
+     */
+    public int getType(int index) {
+        return type[index];
+    }
+}